@@ -0,0 +1,42 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets;
+
+import java.text.ParseException;
+
+import be.nabu.libs.http.server.websockets.api.CloseCode;
+
+/**
+ * Thrown when the incoming data is not acceptable, the connection is closed with the given code
+ */
+public class WebSocketCloseException extends ParseException {
+
+	private static final long serialVersionUID = 1L;
+	
+	private CloseCode code;
+
+	public WebSocketCloseException(CloseCode code, String message) {
+		super(message, 0);
+		this.code = code;
+	}
+
+	public CloseCode getCode() {
+		return code;
+	}
+	
+}
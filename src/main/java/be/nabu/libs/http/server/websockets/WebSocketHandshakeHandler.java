@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
 
 import be.nabu.libs.http.HTTPCodes;
 import be.nabu.libs.authentication.api.Authenticator;
@@ -35,10 +36,20 @@ import be.nabu.libs.events.api.EventDispatcher;
 import be.nabu.libs.events.api.EventHandler;
 import be.nabu.libs.http.api.HTTPRequest;
 import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.server.websockets.api.FragmentListener;
 import be.nabu.libs.http.server.websockets.api.OpCode;
+import be.nabu.libs.http.server.websockets.api.WebSocketExtension;
+import be.nabu.libs.http.server.websockets.api.WebSocketExtensionFactory;
 import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
 import be.nabu.libs.http.server.websockets.api.WebSocketRequest;
+import be.nabu.libs.http.server.websockets.impl.CompressionPolicy;
+import be.nabu.libs.http.server.websockets.impl.ControlLane;
+import be.nabu.libs.http.server.websockets.impl.MessageDeflater;
+import be.nabu.libs.http.server.websockets.impl.PerMessageDeflate;
+import be.nabu.libs.http.server.websockets.impl.PerMessageDeflateFactory;
+import be.nabu.libs.http.server.websockets.impl.WebSocketConnectionRegistry;
 import be.nabu.libs.http.server.websockets.impl.WebSocketExceptionFormatter;
+import be.nabu.libs.http.server.websockets.impl.WebSocketExtensionNegotiator;
 import be.nabu.libs.http.server.websockets.impl.WebSocketMessageFormatterFactory;
 import be.nabu.libs.http.server.websockets.impl.WebSocketMessageProcessorFactory;
 import be.nabu.libs.http.server.websockets.impl.WebSocketRequestParserFactory;
@@ -50,6 +61,7 @@ import be.nabu.libs.nio.api.MessagePipeline;
 import be.nabu.libs.nio.api.MessagePipelineListener;
 import be.nabu.libs.nio.api.NIOServer;
 import be.nabu.libs.nio.api.Pipeline;
+import be.nabu.libs.nio.api.StandardizedMessagePipeline;
 import be.nabu.libs.nio.api.UpgradeableMessagePipeline;
 import be.nabu.utils.codec.TranscoderUtils;
 import be.nabu.utils.codec.impl.Base64Encoder;
@@ -90,6 +102,27 @@ public class WebSocketHandshakeHandler implements EventHandler<HTTPRequest, HTTP
 	private PermissionHandler permissionHandler;
 	
 	private boolean requireUpgrade;
+	private int inMemoryThreshold = WebSocketRequestParserFactory.DEFAULT_IN_MEMORY_THRESHOLD;
+	private boolean reuseParser;
+	private boolean batch;
+	private long maxFrameSize, maxMessageSize;
+	private int maxFragments;
+	private FragmentListener fragmentListener;
+	private boolean validateText = true;
+	private int coalesceBudget;
+	private int fragmentSize;
+	/**
+	 * Whether we accept permessage-deflate offers, we can always ask for no context takeover on either side to limit the memory held per connection
+	 */
+	private boolean deflate;
+	private int deflateLevel = Deflater.DEFAULT_COMPRESSION;
+	private boolean serverNoContextTakeover, clientNoContextTakeover;
+	// larger outgoing messages are not compressed so they can be streamed
+	private long maxDeflateSize = PerMessageDeflate.DEFAULT_MAX_DEFLATE_SIZE;
+	// shared by all the connections of this handler so the compression history of a path carries over to new connections
+	private CompressionPolicy compressionPolicy = new CompressionPolicy();
+	// additional extensions that can be negotiated
+	private List<WebSocketExtensionFactory> extensions;
 
 	public WebSocketHandshakeHandler(EventDispatcher dispatcher, MessageDataProvider dataProvider, boolean shouldMaskResponses) {
 		this.dispatcher = dispatcher;
@@ -138,18 +171,52 @@ public class WebSocketHandshakeHandler implements EventHandler<HTTPRequest, HTTP
 					Pipeline pipeline = PipelineUtils.getPipeline();
 					if (pipeline instanceof UpgradeableMessagePipeline) {
 						double version = Double.parseDouble(versionHeader.getValue());
+						WebSocketRequestParserFactory parserFactory = new WebSocketRequestParserFactory(dataProvider, protocols, request.getTarget(), version, token, device, tokenValidator);
+						parserFactory.setInMemoryThreshold(inMemoryThreshold);
+						parserFactory.setReuseParser(reuseParser);
+						parserFactory.setBatch(batch);
+						parserFactory.setMaxFrameSize(maxFrameSize);
+						parserFactory.setMaxMessageSize(maxMessageSize);
+						parserFactory.setMaxFragments(maxFragments);
+						parserFactory.setValidateText(validateText);
+						WebSocketMessageProcessorFactory processorFactory = new WebSocketMessageProcessorFactory(dispatcher);
+						processorFactory.setFragmentListener(fragmentListener);
+						processorFactory.setValidateText(validateText);
+						WebSocketMessageFormatterFactory formatterFactory = new WebSocketMessageFormatterFactory(shouldMaskResponses);
+						formatterFactory.setCoalesceBudget(coalesceBudget);
+						formatterFactory.setFragmentSize(fragmentSize);
+						List<WebSocketExtension> negotiated = WebSocketExtensionNegotiator.negotiate(request.getContent().getHeaders(), request.getTarget(), getExtensionFactories());
+						if (!negotiated.isEmpty()) {
+							parserFactory.setAllowedReservedBits(WebSocketExtensionNegotiator.getReservedBits(negotiated));
+							parserFactory.setExtensions(negotiated);
+							processorFactory.setExtensions(negotiated);
+							formatterFactory.setExtensions(negotiated);
+						}
 						MessagePipeline<WebSocketRequest, WebSocketMessage> newPipeline = ((UpgradeableMessagePipeline<?, ?>) pipeline).upgrade(
-							new WebSocketRequestParserFactory(dataProvider, protocols, request.getTarget(), version, token, device, tokenValidator), 
-							new WebSocketMessageFormatterFactory(shouldMaskResponses), 
-							new WebSocketMessageProcessorFactory(dispatcher), 
+							parserFactory, 
+							formatterFactory, 
+							processorFactory, 
 							new KeepAliveDecider<WebSocketMessage>() {
 								@Override
 								public boolean keepConnectionAlive(WebSocketMessage response) {
-									return response == null || !OpCode.CLOSE.equals(response.getOpCode());
+									if (response != null && OpCode.CLOSE.equals(response.getOpCode())) {
+										parserFactory.close();
+										return false;
+									}
+									return true;
 								}
 							}, 
 							new WebSocketExceptionFormatter()
 						);
+						newPipeline.getContext().put(ControlLane.KEY, formatterFactory.getControlLane());
+						if (newPipeline instanceof StandardizedMessagePipeline) {
+							formatterFactory.setResponseQueue(((StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage>) newPipeline).getResponseQueue());
+							WebSocketConnectionRegistry.getInstance(newPipeline.getServer()).register((StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage>) newPipeline);
+						}
+						PerMessageDeflate perMessageDeflate = WebSocketExtensionNegotiator.getExtension(negotiated, PerMessageDeflate.NAME);
+						if (perMessageDeflate != null) {
+							newPipeline.getContext().put(MessageDeflater.KEY, perMessageDeflate.getDeflater());
+						}
 						String responseToken;
 						try {
 							responseToken = calculateResponse(keyHeader.getValue());
@@ -169,6 +236,9 @@ public class WebSocketHandshakeHandler implements EventHandler<HTTPRequest, HTTP
 						if (!protocols.isEmpty()) {
 							content.setHeader(new MimeHeader("Sec-WebSocket-Protocol", protocols.get(0)));
 						}
+						if (!negotiated.isEmpty()) {
+							content.setHeader(new MimeHeader(WebSocketExtensionNegotiator.HEADER, WebSocketExtensionNegotiator.respond(negotiated)));
+						}
 						AtomicReference<AutoCloseable> stopper = new AtomicReference<AutoCloseable>();
 						stopper.set(((ListenableMessagePipeline<HTTPRequest, HTTPResponse>) pipeline).listen(new MessagePipelineListener<HTTPRequest, HTTPResponse>() {
 							// by waiting until the response is ADDED (not removed), we ensure that the ResponseWriter is in a correct state to use the parent pipeline draining
@@ -225,6 +295,27 @@ public class WebSocketHandshakeHandler implements EventHandler<HTTPRequest, HTTP
 		return null;
 	}
 
+	/**
+	 * The configured extensions, permessage-deflate is added if it is enabled
+	 */
+	private List<WebSocketExtensionFactory> getExtensionFactories() {
+		List<WebSocketExtensionFactory> factories = new ArrayList<WebSocketExtensionFactory>();
+		if (extensions != null) {
+			factories.addAll(extensions);
+		}
+		if (deflate) {
+			PerMessageDeflateFactory deflateFactory = new PerMessageDeflateFactory(true);
+			deflateFactory.setLevel(deflateLevel);
+			deflateFactory.setServerNoContextTakeover(serverNoContextTakeover);
+			deflateFactory.setClientNoContextTakeover(clientNoContextTakeover);
+			deflateFactory.setMaxMessageSize(maxMessageSize);
+			deflateFactory.setPolicy(compressionPolicy);
+			deflateFactory.setMaxDeflateSize(maxDeflateSize);
+			factories.add(deflateFactory);
+		}
+		return factories;
+	}
+	
 	public static String calculateResponse(String value) throws IOException, NoSuchAlgorithmException {
 		// the magic string is detailed in: http://tools.ietf.org/html/rfc6455#section-1.3
 		String response = value + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
@@ -272,5 +363,144 @@ public class WebSocketHandshakeHandler implements EventHandler<HTTPRequest, HTTP
 	public void setDeviceResolver(DeviceResolver deviceResolver) {
 		this.deviceResolver = deviceResolver;
 	}
+
+	public int getInMemoryThreshold() {
+		return inMemoryThreshold;
+	}
+
+	public void setInMemoryThreshold(int inMemoryThreshold) {
+		this.inMemoryThreshold = inMemoryThreshold;
+	}
+
+	public boolean isReuseParser() {
+		return reuseParser;
+	}
+
+	public void setReuseParser(boolean reuseParser) {
+		this.reuseParser = reuseParser;
+	}
+
+	public boolean isBatch() {
+		return batch;
+	}
+
+	public void setBatch(boolean batch) {
+		this.batch = batch;
+	}
+
+	public long getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	public void setMaxFrameSize(long maxFrameSize) {
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	public long getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	public void setMaxMessageSize(long maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	public int getMaxFragments() {
+		return maxFragments;
+	}
+
+	public void setMaxFragments(int maxFragments) {
+		this.maxFragments = maxFragments;
+	}
+
+	public boolean isValidateText() {
+		return validateText;
+	}
+
+	public void setValidateText(boolean validateText) {
+		this.validateText = validateText;
+	}
+
+	public int getCoalesceBudget() {
+		return coalesceBudget;
+	}
+
+	public void setCoalesceBudget(int coalesceBudget) {
+		this.coalesceBudget = coalesceBudget;
+	}
+
+	public int getFragmentSize() {
+		return fragmentSize;
+	}
+
+	public void setFragmentSize(int fragmentSize) {
+		this.fragmentSize = fragmentSize;
+	}
+
+	public boolean isDeflate() {
+		return deflate;
+	}
+
+	public void setDeflate(boolean deflate) {
+		this.deflate = deflate;
+	}
+
+	public int getDeflateLevel() {
+		return deflateLevel;
+	}
+
+	public void setDeflateLevel(int deflateLevel) {
+		this.deflateLevel = deflateLevel;
+	}
+
+	public boolean isServerNoContextTakeover() {
+		return serverNoContextTakeover;
+	}
+
+	public void setServerNoContextTakeover(boolean serverNoContextTakeover) {
+		this.serverNoContextTakeover = serverNoContextTakeover;
+	}
+
+	public boolean isClientNoContextTakeover() {
+		return clientNoContextTakeover;
+	}
+
+	public void setClientNoContextTakeover(boolean clientNoContextTakeover) {
+		this.clientNoContextTakeover = clientNoContextTakeover;
+	}
+
+	public long getMaxDeflateSize() {
+		return maxDeflateSize;
+	}
+
+	public void setMaxDeflateSize(long maxDeflateSize) {
+		this.maxDeflateSize = maxDeflateSize;
+	}
+
+	/**
+	 * The policy decides which outgoing messages are compressed and keeps the metrics, if it is null, all messages are compressed
+	 */
+	public CompressionPolicy getCompressionPolicy() {
+		return compressionPolicy;
+	}
+
+	public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+		this.compressionPolicy = compressionPolicy;
+	}
+
+	public List<WebSocketExtensionFactory> getExtensions() {
+		return extensions;
+	}
+
+	public void setExtensions(List<WebSocketExtensionFactory> extensions) {
+		this.extensions = extensions;
+	}
+
+	public FragmentListener getFragmentListener() {
+		return fragmentListener;
+	}
+
+	public void setFragmentListener(FragmentListener fragmentListener) {
+		this.fragmentListener = fragmentListener;
+	}
 	
 }
@@ -26,8 +26,11 @@ import java.net.SocketAddress;
 import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -55,13 +58,25 @@ import be.nabu.libs.http.core.HTTPUtils;
 import be.nabu.libs.http.server.SimpleAuthenticationHeader;
 import be.nabu.libs.http.server.websockets.api.OpCode;
 import be.nabu.libs.http.server.websockets.api.PongListener;
+import be.nabu.libs.http.server.websockets.api.WebSocketExtensionFactory;
 import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
 import be.nabu.libs.http.server.websockets.api.WebSocketRequest;
 import be.nabu.libs.http.server.websockets.client.ClientWebSocketUpgradeHandler;
+import be.nabu.libs.http.server.websockets.impl.BroadcastFanOut;
+import be.nabu.libs.http.server.websockets.impl.BroadcastResult;
+import be.nabu.libs.http.server.websockets.impl.ClusterBroadcastImpl;
+import be.nabu.libs.http.server.websockets.impl.ClusterNode;
+import be.nabu.libs.http.server.websockets.impl.CompressionPolicy;
+import be.nabu.libs.http.server.websockets.impl.ControlLane;
+import be.nabu.libs.http.server.websockets.impl.EncodedWebSocketMessage;
+import be.nabu.libs.http.server.websockets.impl.MessageDeflater;
+import be.nabu.libs.http.server.websockets.impl.PerMessageDeflateFactory;
+import be.nabu.libs.http.server.websockets.impl.WebSocketConnectionRegistry;
+import be.nabu.libs.http.server.websockets.impl.WebSocketExtensionNegotiator;
 import be.nabu.libs.http.server.websockets.impl.WebSocketRequestParserFactory;
 import be.nabu.libs.http.server.websockets.util.PathFilter;
+import be.nabu.libs.http.server.websockets.util.TokenCache;
 import be.nabu.libs.nio.PipelineUtils;
-import be.nabu.libs.nio.api.MessageParserFactory;
 import be.nabu.libs.nio.api.NIOServer;
 import be.nabu.libs.nio.api.Pipeline;
 import be.nabu.libs.nio.api.SecurityContext;
@@ -158,20 +173,8 @@ public class WebSocketUtils {
 		}
 	}
 	
-	@SuppressWarnings("unchecked")
 	public static List<StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage>> getWebsocketPipelines(NIOServer server, String path) {
-		List<StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage>> pipelines = new ArrayList<StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage>>();
-		for (Pipeline pipeline : server.getPipelines()) {
-			if (pipeline instanceof StandardizedMessagePipeline) {
-				MessageParserFactory<?> requestParserFactory = ((StandardizedMessagePipeline<?, ?>) pipeline).getRequestParserFactory();
-				if (requestParserFactory instanceof WebSocketRequestParserFactory) {
-					if (path == null || path.equals(((WebSocketRequestParserFactory) requestParserFactory).getPath())) {
-						pipelines.add((StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage>) pipeline);
-					}
-				}
-			}
-		}
-		return pipelines;
+		return WebSocketConnectionRegistry.getInstance(server).getPipelines(path);
 	}
 	
 	public static Token getToken(StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline) {
@@ -229,6 +232,24 @@ public class WebSocketUtils {
 	}
 
 	public static HTTPResponse upgrade(HTTPClient client, SSLContext context, String host, Integer port, String path, Token token, MessageDataProvider dataProvider, EventDispatcher dispatcher, List<String> protocols, WebAuthorizationType preemptiveAuthorization) throws UnsupportedEncodingException, IOException, FormatException, ParseException {
+		return upgrade(client, context, host, port, path, token, dataProvider, dispatcher, protocols, preemptiveAuthorization, false);
+	}
+	
+	/**
+	 * If deflate is set, permessage-deflate is offered to the server, the client upgrade handler picks up whatever the server accepts
+	 */
+	public static HTTPResponse upgrade(HTTPClient client, SSLContext context, String host, Integer port, String path, Token token, MessageDataProvider dataProvider, EventDispatcher dispatcher, List<String> protocols, WebAuthorizationType preemptiveAuthorization, boolean deflate) throws UnsupportedEncodingException, IOException, FormatException, ParseException {
+		List<WebSocketExtensionFactory> extensions = new ArrayList<WebSocketExtensionFactory>();
+		if (deflate) {
+			extensions.add(new PerMessageDeflateFactory(false));
+		}
+		return upgrade(client, context, host, port, path, token, dataProvider, dispatcher, protocols, preemptiveAuthorization, extensions);
+	}
+	
+	/**
+	 * The extensions are offered in the given order, the client upgrade handler must be configured with the same extensions
+	 */
+	public static HTTPResponse upgrade(HTTPClient client, SSLContext context, String host, Integer port, String path, Token token, MessageDataProvider dataProvider, EventDispatcher dispatcher, List<String> protocols, WebAuthorizationType preemptiveAuthorization, List<WebSocketExtensionFactory> extensions) throws UnsupportedEncodingException, IOException, FormatException, ParseException {
 		if (port == null) {
 			port = context == null ? 80 : 443;
 		}
@@ -257,6 +278,9 @@ public class WebSocketUtils {
 			}
 			content.setHeader(new MimeHeader("Sec-WebSocket-Protocol", builder.toString()));
 		}
+		if (extensions != null && !extensions.isEmpty()) {
+			content.setHeader(new MimeHeader(WebSocketExtensionNegotiator.HEADER, WebSocketExtensionNegotiator.offer(extensions)));
+		}
 		
 		if (preemptiveAuthorization != null) {
 			switch (preemptiveAuthorization) {
@@ -281,48 +305,68 @@ public class WebSocketUtils {
 		), token, context != null, true);
 	}
 	
-	private boolean matches(TokenValidator tokenValidator, RoleHandler roleHandler, StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline, List<String> users, List<String> roles, List<String> devices, List<String> hosts, List<String> notUsers, List<String> notRoles, List<String> notDevices, List<String> notHosts) throws IOException {
-		// we want to target users/roles
-		if ((hosts != null && !hosts.isEmpty()) || (notHosts != null && !notHosts.isEmpty()) || (users != null && !users.isEmpty()) || (roles != null && !roles.isEmpty()) || (notUsers != null && !notUsers.isEmpty()) || (notRoles != null && !notRoles.isEmpty()) || (notDevices != null && !notDevices.isEmpty())) {
-			Token token = WebSocketUtils.getToken(pipeline);
-			if (tokenValidator != null && !tokenValidator.isValid(token)) {
-				token = null;
+	private boolean matches(TokenValidator tokenValidator, RoleHandler roleHandler, Token token, List<String> users, List<String> roles, List<String> notUsers, List<String> notRoles) {
+		// the cache is optional and only applies to the validator and role handler it was configured for
+		TokenCache cache = TokenCache.getInstance();
+		if (cache != null && !cache.isFor(tokenValidator, roleHandler)) {
+			cache = null;
+		}
+		if (tokenValidator != null && !(cache == null ? tokenValidator.isValid(token) : cache.isValid(token))) {
+			token = null;
+		}
+		if (roles != null && !roles.isEmpty()) {
+			if (roleHandler == null) {
+				throw new IllegalStateException("Role filtering requested but no role handler has been provided");
 			}
-			if (roles != null && !roles.isEmpty()) {
-				if (roleHandler == null) {
-					throw new IllegalStateException("Role filtering requested but no role handler has been provided");
-				}
-				boolean hasRole = false;
-				for (String role : roles) {
-					hasRole = roleHandler.hasRole(token, role);
-					if (hasRole) {
-						break;
-					}
-				}
-				if (!hasRole) {
-					return false;
+			boolean hasRole = false;
+			for (String role : roles) {
+				hasRole = cache == null ? roleHandler.hasRole(token, role) : cache.hasRole(token, role);
+				if (hasRole) {
+					break;
 				}
 			}
-			if (notRoles != null && !notRoles.isEmpty()) {
-				if (roleHandler == null) {
-					throw new IllegalStateException("Role filtering requested but no role handler has been provided");
-				}
-				for (String role : notRoles) {
-					if (roleHandler.hasRole(token, role)) {
-						return false;
-					}
-				}
+			if (!hasRole) {
+				return false;
+			}
+		}
+		if (notRoles != null && !notRoles.isEmpty()) {
+			if (roleHandler == null) {
+				throw new IllegalStateException("Role filtering requested but no role handler has been provided");
 			}
-			if (users != null && !users.isEmpty()) {
-				if (token == null || !users.contains(token.getName())) {
+			for (String role : notRoles) {
+				if (cache == null ? roleHandler.hasRole(token, role) : cache.hasRole(token, role)) {
 					return false;
 				}
 			}
-			if (notUsers != null && !notUsers.isEmpty()) {
-				if (token != null && notUsers.contains(token.getName())) {
-					return false;
+		}
+		if (users != null && !users.isEmpty()) {
+			if (token == null || !users.contains(token.getName())) {
+				return false;
+			}
+		}
+		if (notUsers != null && !notUsers.isEmpty()) {
+			if (token != null && notUsers.contains(token.getName())) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private boolean matches(TokenValidator tokenValidator, RoleHandler roleHandler, StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline, List<String> users, List<String> roles, List<String> devices, List<String> hosts, List<String> notUsers, List<String> notRoles, List<String> notDevices, List<String> notHosts, Map<Token, Boolean> evaluated) throws IOException {
+		// we want to target users/roles
+		if ((hosts != null && !hosts.isEmpty()) || (notHosts != null && !notHosts.isEmpty()) || (users != null && !users.isEmpty()) || (roles != null && !roles.isEmpty()) || (notUsers != null && !notUsers.isEmpty()) || (notRoles != null && !notRoles.isEmpty()) || (notDevices != null && !notDevices.isEmpty())) {
+			Token token = WebSocketUtils.getToken(pipeline);
+			// a user can have many connections, the token is only evaluated once per broadcast
+			Boolean tokenMatches = token == null ? null : evaluated.get(token);
+			if (tokenMatches == null) {
+				tokenMatches = matches(tokenValidator, roleHandler, token, users, roles, notUsers, notRoles);
+				if (token != null) {
+					evaluated.put(token, tokenMatches);
 				}
 			}
+			if (!tokenMatches) {
+				return false;
+			}
 			Device device = WebSocketUtils.getDevice(pipeline);
 			if (devices != null && !devices.isEmpty()) {
 				if (device == null || !devices.contains(device.getDeviceId())) {
@@ -355,23 +399,148 @@ public class WebSocketUtils {
 		return true;
 	}
 	
+	/**
+	 * Delivers to the matching connections on this server and, if the server is part of a cluster (see ClusterNode), publishes the broadcast to the other nodes
+	 * The returned clients are the local ones only
+	 */
 	@WebResult(name = "clients")
 	public List<Pipeline> broadcast(NIOServer server, String path, byte [] bytes, TokenValidator tokenValidator, RoleHandler roleHandler, List<String> users, List<String> roles, 
 			List<String> devices, List<String> hosts, List<String> notUsers, List<String> notRoles, List<String> notDevices, List<String> notHosts) throws IOException {
+		List<Pipeline> resultingPipelines = broadcastLocal(server, path, bytes, tokenValidator, roleHandler, users, roles, devices, hosts, notUsers, notRoles, notDevices, notHosts);
+		ClusterNode node = ClusterNode.getInstance(server);
+		if (node != null) {
+			node.publish(ClusterBroadcastImpl.newPathBroadcast(node.getNodeId(), path, bytes, users, roles, devices, hosts, notUsers, notRoles, notDevices, notHosts));
+		}
+		return resultingPipelines;
+	}
+	
+	@WebResult(name = "clients")
+	public List<Pipeline> broadcastLocal(NIOServer server, String path, byte [] bytes, TokenValidator tokenValidator, RoleHandler roleHandler, List<String> users, List<String> roles, 
+			List<String> devices, List<String> hosts, List<String> notUsers, List<String> notRoles, List<String> notDevices, List<String> notHosts) throws IOException {
 		// we want to return a list of clients that we delivered the message to
 		List<Pipeline> resultingPipelines = new ArrayList<Pipeline>();
-		for (StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline : WebSocketUtils.getWebsocketPipelines((NIOServer) server, path)) {
-			if (!matches(tokenValidator, roleHandler, pipeline, users, roles, devices, hosts, notUsers, notRoles, notDevices, notHosts)) {
-				continue;
+		Broadcast broadcast = new Broadcast(bytes, tokenValidator, roleHandler, users, roles, devices, hosts, notUsers, notRoles, notDevices, notHosts);
+		// the registry only returns the connections that can match the path, users, devices and hosts, the rest is checked per connection
+		for (StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline : WebSocketConnectionRegistry.getInstance(server).getPipelines(path, users, devices, hosts)) {
+			if (broadcast.deliver(pipeline)) {
+				resultingPipelines.add(pipeline);
 			}
-			pipeline.getResponseQueue().add(
-				WebSocketUtils.newMessage(OpCode.TEXT, true, bytes.length, IOUtils.wrap(bytes, true))	
-			);
-			resultingPipelines.add(pipeline);
 		}
 		return resultingPipelines;
 	}
 	
+	/**
+	 * Large broadcasts are split over the executor of the fan out (see BroadcastFanOut for the threshold), the future completes once the message is queued on all the matching connections.
+	 */
+	@WebResult(name = "result")
+	public Future<BroadcastResult> broadcastAsync(NIOServer server, String path, byte [] bytes, TokenValidator tokenValidator, RoleHandler roleHandler, List<String> users, List<String> roles, 
+			List<String> devices, List<String> hosts, List<String> notUsers, List<String> notRoles, List<String> notDevices, List<String> notHosts) throws IOException {
+		ClusterNode node = ClusterNode.getInstance(server);
+		if (node != null) {
+			node.publish(ClusterBroadcastImpl.newPathBroadcast(node.getNodeId(), path, bytes, users, roles, devices, hosts, notUsers, notRoles, notDevices, notHosts));
+		}
+		return BroadcastFanOut.getInstance().fanOut(
+			WebSocketConnectionRegistry.getInstance(server).getPipelines(path, users, devices, hosts), 
+			new Broadcast(bytes, tokenValidator, roleHandler, users, roles, devices, hosts, notUsers, notRoles, notDevices, notHosts)
+		);
+	}
+	
+	/**
+	 * Publishes the message to all the connections that subscribed to a matching topic, on this server and on the other nodes of the cluster (if any)
+	 */
+	@WebResult(name = "clients")
+	public List<Pipeline> publish(NIOServer server, String topic, byte [] bytes) throws IOException {
+		List<Pipeline> resultingPipelines = publishLocal(server, topic, bytes);
+		ClusterNode node = ClusterNode.getInstance(server);
+		if (node != null) {
+			node.publish(ClusterBroadcastImpl.newTopicBroadcast(node.getNodeId(), topic, bytes));
+		}
+		return resultingPipelines;
+	}
+	
+	@WebResult(name = "clients")
+	public List<Pipeline> publishLocal(NIOServer server, String topic, byte [] bytes) throws IOException {
+		List<Pipeline> resultingPipelines = new ArrayList<Pipeline>();
+		Broadcast broadcast = new Broadcast(bytes, null, null, null, null, null, null, null, null, null, null);
+		for (StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline : WebSocketConnectionRegistry.getInstance(server).getSubscribers(topic)) {
+			if (broadcast.deliver(pipeline)) {
+				resultingPipelines.add(pipeline);
+			}
+		}
+		return resultingPipelines;
+	}
+	
+	public static void subscribe(StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline, String topic) {
+		WebSocketConnectionRegistry.getInstance(pipeline.getServer()).subscribe(pipeline, topic);
+	}
+	
+	public static void unsubscribe(StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline, String topic) {
+		WebSocketConnectionRegistry.getInstance(pipeline.getServer()).unsubscribe(pipeline, topic);
+	}
+	
+	/**
+	 * The state of a single broadcast, it can be shared by multiple threads delivering to different connections
+	 */
+	private class Broadcast implements BroadcastFanOut.Delivery<StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage>> {
+		private byte [] bytes;
+		private TokenValidator tokenValidator;
+		private RoleHandler roleHandler;
+		private List<String> users, roles, devices, hosts, notUsers, notRoles, notDevices, notHosts;
+		// the frame is encoded once and shared by all the pipelines
+		private WebSocketMessage message;
+		// pipelines that deflate without context takeover all produce the same compressed frame for the same compression level and policy
+		// those with context takeover get the plain frame, their formatter compresses it with the state of the connection
+		// if the payload is too small, does not look compressible or does not get smaller, the group simply gets the plain frame
+		private Map<List<Object>, WebSocketMessage> compressed = new ConcurrentHashMap<List<Object>, WebSocketMessage>();
+		private Map<Token, Boolean> evaluated = new ConcurrentHashMap<Token, Boolean>();
+		
+		public Broadcast(byte [] bytes, TokenValidator tokenValidator, RoleHandler roleHandler, List<String> users, List<String> roles, 
+				List<String> devices, List<String> hosts, List<String> notUsers, List<String> notRoles, List<String> notDevices, List<String> notHosts) throws IOException {
+			this.bytes = bytes;
+			this.tokenValidator = tokenValidator;
+			this.roleHandler = roleHandler;
+			this.users = users;
+			this.roles = roles;
+			this.devices = devices;
+			this.hosts = hosts;
+			this.notUsers = notUsers;
+			this.notRoles = notRoles;
+			this.notDevices = notDevices;
+			this.notHosts = notHosts;
+			this.message = EncodedWebSocketMessage.encode(OpCode.TEXT, true, bytes);
+		}
+		
+		@Override
+		public boolean deliver(StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline) throws IOException {
+			if (!matches(tokenValidator, roleHandler, pipeline, users, roles, devices, hosts, notUsers, notRoles, notDevices, notHosts, evaluated)) {
+				return false;
+			}
+			WebSocketMessage toSend = message;
+			MessageDeflater deflater = getDeflater(pipeline);
+			if (deflater != null && deflater.isNoContextTakeover()) {
+				// the deflater of the connection itself is not used, it belongs to the send path of that connection
+				// instead we compress with a pooled deflater for the level and only consult the policy, which is shared and thread safe, on the content
+				CompressionPolicy policy = deflater.getPolicy();
+				List<Object> key = Arrays.<Object>asList(deflater.getLevel(), policy);
+				toSend = compressed.get(key);
+				// concurrent deliveries may both compress the first time, the result is the same
+				if (toSend == null) {
+					toSend = message;
+					if (policy == null || (policy.isEligible(bytes.length) && policy.isCompressible(bytes, bytes.length))) {
+						byte [] deflated = MessageDeflater.deflate(deflater.getLevel(), bytes);
+						// as in PerMessageDeflate, without context takeover we can send the original if compression did not help
+						if (deflated.length < bytes.length) {
+							toSend = EncodedWebSocketMessage.encode(OpCode.TEXT, true, 4, deflated);
+						}
+					}
+					compressed.put(key, toSend);
+				}
+			}
+			pipeline.getResponseQueue().add(toSend);
+			return true;
+		}
+	}
+	
 	// perform a ping pong
 	public static Future<Boolean> pingPong(StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline) {
 		// remove any pong listener already there, we chain it
@@ -388,9 +557,26 @@ public class WebSocketUtils {
 			}
 		});
 		System.out.println("[WEBSOCKET] PING sent");
-		pipeline.getResponseQueue().add(
-			WebSocketUtils.newMessage(OpCode.PING, true, 0, IOUtils.wrap(new byte[0], true))	
-		);
+		sendControl(pipeline, WebSocketUtils.newMessage(OpCode.PING, true, 0, IOUtils.wrap(new byte[0], true)));
 		return future;
 	}
+	
+	public static MessageDeflater getDeflater(Pipeline pipeline) {
+		return pipeline == null ? null : (MessageDeflater) pipeline.getContext().get(MessageDeflater.KEY);
+	}
+	
+	public static ControlLane getControlLane(Pipeline pipeline) {
+		return pipeline == null ? null : (ControlLane) pipeline.getContext().get(ControlLane.KEY);
+	}
+	
+	/**
+	 * Sends a control frame ahead of any data that is already queued for the pipeline
+	 */
+	public static void sendControl(StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline, WebSocketMessage message) {
+		ControlLane lane = getControlLane(pipeline);
+		if (lane != null) {
+			lane.add(message);
+		}
+		pipeline.getResponseQueue().add(message);
+	}
 }
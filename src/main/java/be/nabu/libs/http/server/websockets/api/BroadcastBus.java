@@ -0,0 +1,31 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Relays broadcasts between the nodes of a cluster, every node subscribes to the bus and delivers what it receives to its own connections.
+ * A bus delivers to all subscribers, including the one on the node that published, nodes suppress their own echo based on the origin.
+ */
+public interface BroadcastBus extends Closeable {
+	public void publish(ClusterBroadcast broadcast) throws IOException;
+	public void subscribe(BroadcastBusListener listener);
+	public void unsubscribe(BroadcastBusListener listener);
+}
@@ -0,0 +1,43 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.api;
+
+/**
+ * The status codes that can be sent along with a close frame: https://tools.ietf.org/html/rfc6455#section-7.4.1
+ */
+public enum CloseCode {
+	NORMAL(1000),
+	GOING_AWAY(1001),
+	PROTOCOL_ERROR(1002),
+	UNSUPPORTED_DATA(1003),
+	INVALID_DATA(1007),		// e.g. non-UTF-8 data in a text message
+	POLICY_VIOLATION(1008),
+	MESSAGE_TOO_BIG(1009),
+	INTERNAL_ERROR(1011)
+	;
+	
+	private int code;
+
+	private CloseCode(int code) {
+		this.code = code;
+	}
+
+	public int getCode() {
+		return code;
+	}
+}
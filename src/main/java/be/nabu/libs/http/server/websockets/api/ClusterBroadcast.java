@@ -0,0 +1,42 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.api;
+
+import java.util.List;
+
+/**
+ * A broadcast as it is sent over the bus, it either targets a topic or a path combined with the user, role, device and host filters.
+ * The token validator and role handler are not sent, every node applies its own.
+ */
+public interface ClusterBroadcast {
+	/**
+	 * The id of the node that published the broadcast
+	 */
+	public String getOrigin();
+	public String getTopic();
+	public String getPath();
+	public byte [] getBytes();
+	public List<String> getUsers();
+	public List<String> getRoles();
+	public List<String> getDevices();
+	public List<String> getHosts();
+	public List<String> getNotUsers();
+	public List<String> getNotRoles();
+	public List<String> getNotDevices();
+	public List<String> getNotHosts();
+}
@@ -26,6 +26,14 @@ public enum OpCode {
 	PONG((byte) 0xA)
 	;
 	
+	private static final OpCode [] OPCODES = new OpCode[16];
+	
+	static {
+		for (OpCode opCode : values()) {
+			OPCODES[opCode.getCode()] = opCode;
+		}
+	}
+	
 	private byte code;
 
 	private OpCode(byte code) {
@@ -36,12 +44,15 @@ public enum OpCode {
 		return code;
 	}
 	
+	/**
+	 * Control frames (close, ping, pong) have the most significant bit of the opcode set
+	 */
+	public boolean isControl() {
+		return (code & 8) != 0;
+	}
+	
 	public static OpCode getOpCode(byte value) {
-		for (OpCode opCode : values()) {
-			if (opCode.getCode() == value) {
-				return opCode;
-			}
-		}
-		return null;
+		return value >= 0 && value < OPCODES.length ? OPCODES[value] : null;
 	}
+
 }
@@ -0,0 +1,58 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.api;
+
+import java.io.IOException;
+
+import be.nabu.libs.http.server.websockets.WebSocketCloseException;
+
+/**
+ * An extension that was negotiated for a single connection: https://tools.ietf.org/html/rfc6455#section-9
+ * Outgoing messages pass through the extensions in the order they were negotiated, incoming frames in the reverse order.
+ */
+public interface WebSocketExtension {
+	/**
+	 * The name as it appears in the Sec-WebSocket-Extensions header
+	 */
+	public String getName();
+	/**
+	 * The RSV bits (RSV1 being 4) this extension uses, the parser rejects frames with reserved bits that no extension claimed
+	 */
+	public int getReservedBits();
+	/**
+	 * The extension element (name and parameters) the server responds with
+	 */
+	public String getResponse();
+	/**
+	 * Called for every incoming data frame in order, including frames of messages the extension did not transform (check the reserved bits of the first frame).
+	 * Return the frame as is if there is nothing to do.
+	 */
+	public WebSocketRequest decode(WebSocketRequest frame) throws IOException, WebSocketCloseException;
+	/**
+	 * Called for every complete (non-fragmented) outgoing data message in the order they are sent.
+	 * Return the message as is if there is nothing to do, otherwise set the reserved bits of the extension on the result.
+	 */
+	public WebSocketMessage encode(WebSocketMessage message) throws IOException;
+	/**
+	 * Called when the connection is closed, any resources held for the connection (e.g. native compression state) should be released.
+	 * It can be called more than once.
+	 */
+	public default void close() {
+		// do nothing
+	}
+}
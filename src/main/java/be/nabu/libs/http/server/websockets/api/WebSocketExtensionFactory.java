@@ -0,0 +1,43 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.api;
+
+import java.util.Map;
+
+/**
+ * Negotiates an extension during the handshake, the parameters of an extension element map to null if they have no value.
+ */
+public interface WebSocketExtensionFactory {
+	public String getName();
+	/**
+	 * The RSV bits the extension will use, an offer is declined if the bits are already taken by another accepted extension
+	 */
+	public int getReservedBits();
+	/**
+	 * Server side: respond to an offer of the client for the connection on the given path, return null to decline it
+	 */
+	public WebSocketExtension accept(String path, Map<String, String> parameters);
+	/**
+	 * Client side: the extension element to offer
+	 */
+	public String getOffer();
+	/**
+	 * Client side: the server accepted our offer with the given parameters, throw an exception if they are not acceptable
+	 */
+	public WebSocketExtension accepted(String path, Map<String, String> parameters);
+}
@@ -0,0 +1,36 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.api;
+
+/**
+ * A single frame of a fragmented message, as it is delivered to a FragmentListener
+ */
+public interface WebSocketFragment extends WebSocketRequest {
+	/**
+	 * An id that is shared by all the fragments of the same message, unique within the connection
+	 */
+	public long getMessageId();
+	/**
+	 * The offset of this fragment's data within the message
+	 */
+	public long getOffset();
+	/**
+	 * The opcode of the message (TEXT or BINARY), the opcode of all but the first fragment is CONTINUATION
+	 */
+	public OpCode getMessageOpCode();
+}
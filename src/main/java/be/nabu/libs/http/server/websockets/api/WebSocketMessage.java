@@ -24,4 +24,10 @@ public interface WebSocketMessage {
 	public boolean isFinal();
 	public long getSize();
 	public InputStream getData();
+	/**
+	 * The RSV1-3 bits of the (first) frame as a value between 0 and 7, RSV1 being 4. They can only be set by a negotiated extension.
+	 */
+	public default int getReservedBits() {
+		return 0;
+	}
 }
@@ -29,4 +29,10 @@ public interface WebSocketRequest extends WebSocketMessage {
 	public double getVersion();
 	public boolean isMasked();
 	public List<String> getProtocols();
+	/**
+	 * Whether the data of this text message has already been validated as UTF-8 by the parser, handlers can skip their own validation
+	 */
+	public default boolean isTextValidated() {
+		return false;
+	}
 }
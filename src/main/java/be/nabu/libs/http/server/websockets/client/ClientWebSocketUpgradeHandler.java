@@ -22,6 +22,7 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.zip.Deflater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,9 +42,17 @@ import be.nabu.libs.http.core.HTTPUtils;
 import be.nabu.libs.http.core.ServerHeader;
 import be.nabu.libs.http.server.websockets.WebSocketHandshakeHandler;
 import be.nabu.libs.http.server.websockets.api.OpCode;
+import be.nabu.libs.http.server.websockets.api.WebSocketExtension;
+import be.nabu.libs.http.server.websockets.api.WebSocketExtensionFactory;
 import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
 import be.nabu.libs.http.server.websockets.api.WebSocketRequest;
+import be.nabu.libs.http.server.websockets.impl.ControlLane;
+import be.nabu.libs.http.server.websockets.impl.MessageDeflater;
+import be.nabu.libs.http.server.websockets.impl.PerMessageDeflate;
+import be.nabu.libs.http.server.websockets.impl.PerMessageDeflateFactory;
+import be.nabu.libs.http.server.websockets.impl.WebSocketConnectionRegistry;
 import be.nabu.libs.http.server.websockets.impl.WebSocketExceptionFormatter;
+import be.nabu.libs.http.server.websockets.impl.WebSocketExtensionNegotiator;
 import be.nabu.libs.http.server.websockets.impl.WebSocketMessageFormatterFactory;
 import be.nabu.libs.http.server.websockets.impl.WebSocketMessageProcessorFactory;
 import be.nabu.libs.http.server.websockets.impl.WebSocketRequestParserFactory;
@@ -51,6 +60,7 @@ import be.nabu.libs.nio.PipelineUtils;
 import be.nabu.libs.nio.api.KeepAliveDecider;
 import be.nabu.libs.nio.api.MessagePipeline;
 import be.nabu.libs.nio.api.Pipeline;
+import be.nabu.libs.nio.api.StandardizedMessagePipeline;
 import be.nabu.libs.nio.api.UpgradeableMessagePipeline;
 import be.nabu.libs.resources.URIUtils;
 import be.nabu.utils.mime.api.Header;
@@ -62,6 +72,9 @@ public class ClientWebSocketUpgradeHandler implements EventHandler<HTTPResponse,
 	private Logger logger = LoggerFactory.getLogger(getClass());
 	private boolean shouldMaskResponses;
 	private EventDispatcher dispatcher;
+	private int deflateLevel = Deflater.DEFAULT_COMPRESSION;
+	// the extensions we can accept, if none are set we support permessage-deflate
+	private List<WebSocketExtensionFactory> extensions;
 	
 	public ClientWebSocketUpgradeHandler(MessageDataProvider dataProvider) {
 		this(dataProvider, true, null);
@@ -75,6 +88,7 @@ public class ClientWebSocketUpgradeHandler implements EventHandler<HTTPResponse,
 		this.dispatcher = dispatcher;
 	}
 	
+	@SuppressWarnings("unchecked")
 	@Override
 	public HTTPRequest handle(HTTPResponse response) {
 		try {
@@ -141,20 +155,43 @@ public class ClientWebSocketUpgradeHandler implements EventHandler<HTTPResponse,
 						requestPath = proxyPath.getValue().replaceAll("[/]+$", "") + "/" + requestPath.replaceFirst("^[/]+", "");
 					}
 				}
+				WebSocketRequestParserFactory parserFactory = new WebSocketRequestParserFactory(dataProvider, protocols, requestPath, version, token, device, tokenValidator);
+				WebSocketMessageFormatterFactory formatterFactory = new WebSocketMessageFormatterFactory(shouldMaskResponses);
+				WebSocketMessageProcessorFactory processorFactory = new WebSocketMessageProcessorFactory(dispatcher == null ? pipeline.getServer().getDispatcher() : dispatcher);
+				// the server can only accept extensions that we offered
+				List<WebSocketExtension> negotiated = WebSocketExtensionNegotiator.accept(response.getContent().getHeaders(), request.getContent().getHeaders(), requestPath, getExtensionFactories());
+				if (!negotiated.isEmpty()) {
+					parserFactory.setAllowedReservedBits(WebSocketExtensionNegotiator.getReservedBits(negotiated));
+					parserFactory.setExtensions(negotiated);
+					processorFactory.setExtensions(negotiated);
+					formatterFactory.setExtensions(negotiated);
+				}
 				MessagePipeline<WebSocketRequest, WebSocketMessage> upgrade = ((UpgradeableMessagePipeline<?, ?>) pipeline).upgrade(
-					new WebSocketRequestParserFactory(dataProvider, protocols, requestPath, version, token, device, tokenValidator), 
-					new WebSocketMessageFormatterFactory(shouldMaskResponses), 
-					new WebSocketMessageProcessorFactory(dispatcher == null ? pipeline.getServer().getDispatcher() : dispatcher), 
+					parserFactory, 
+					formatterFactory, 
+					processorFactory, 
 					new KeepAliveDecider<WebSocketMessage>() {
 						@Override
 						public boolean keepConnectionAlive(WebSocketMessage response) {
-							return response == null || !OpCode.CLOSE.equals(response.getOpCode());
+							if (response != null && OpCode.CLOSE.equals(response.getOpCode())) {
+								parserFactory.close();
+								return false;
+							}
+							return true;
 						}
 					}, 
 					new WebSocketExceptionFormatter()
 				);
 				// we want to inherit the context
 				upgrade.getContext().putAll(pipeline.getContext());
+				upgrade.getContext().put(ControlLane.KEY, formatterFactory.getControlLane());
+				if (upgrade instanceof StandardizedMessagePipeline) {
+					WebSocketConnectionRegistry.getInstance(upgrade.getServer()).register((StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage>) upgrade);
+				}
+				PerMessageDeflate perMessageDeflate = WebSocketExtensionNegotiator.getExtension(negotiated, PerMessageDeflate.NAME);
+				if (perMessageDeflate != null) {
+					upgrade.getContext().put(MessageDeflater.KEY, perMessageDeflate.getDeflater());
+				}
 			}
 			else {
 				throw new HTTPException(500, "Could not find pipeline to upgrade");
@@ -165,5 +202,30 @@ public class ClientWebSocketUpgradeHandler implements EventHandler<HTTPResponse,
 		}
 		return null;
 	}
+	
+	private List<WebSocketExtensionFactory> getExtensionFactories() {
+		if (extensions != null) {
+			return extensions;
+		}
+		PerMessageDeflateFactory deflateFactory = new PerMessageDeflateFactory(false);
+		deflateFactory.setLevel(deflateLevel);
+		return Arrays.asList((WebSocketExtensionFactory) deflateFactory);
+	}
+	
+	public List<WebSocketExtensionFactory> getExtensions() {
+		return extensions;
+	}
+	
+	public void setExtensions(List<WebSocketExtensionFactory> extensions) {
+		this.extensions = extensions;
+	}
+	
+	public int getDeflateLevel() {
+		return deflateLevel;
+	}
+	
+	public void setDeflateLevel(int deflateLevel) {
+		this.deflateLevel = deflateLevel;
+	}
 
 }
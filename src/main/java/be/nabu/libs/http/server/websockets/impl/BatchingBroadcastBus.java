@@ -0,0 +1,171 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.http.server.websockets.api.BroadcastBus;
+import be.nabu.libs.http.server.websockets.api.BroadcastBusListener;
+import be.nabu.libs.http.server.websockets.api.ClusterBroadcast;
+
+/**
+ * Published broadcasts are collected and sent as a single batch once the batch size is reached or the linger time has passed, whichever comes first.
+ * A linger time of 0 sends every broadcast immediately.
+ */
+abstract public class BatchingBroadcastBus implements BroadcastBus {
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private List<BroadcastBusListener> listeners = new CopyOnWriteArrayList<BroadcastBusListener>();
+	private List<ClusterBroadcast> pending = new ArrayList<ClusterBroadcast>();
+	private int batchSize = 64;
+	private long lingerTime = 5;
+	private boolean scheduled;
+	private ScheduledExecutorService scheduler;
+	private Object sendLock = new Object();
+	
+	@Override
+	public void publish(ClusterBroadcast broadcast) throws IOException {
+		boolean full;
+		synchronized(this) {
+			pending.add(broadcast);
+			full = lingerTime <= 0 || pending.size() >= batchSize;
+			if (!full && !scheduled) {
+				scheduled = true;
+				getScheduler().schedule(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							flush();
+						}
+						catch (Exception e) {
+							logger.error("Could not send broadcast batch", e);
+						}
+					}
+				}, lingerTime, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (full) {
+			flush();
+		}
+	}
+	
+	/**
+	 * Batches are drained and sent under the same lock so they are sent in the order they were published
+	 */
+	public void flush() throws IOException {
+		synchronized(sendLock) {
+			List<ClusterBroadcast> batch;
+			synchronized(this) {
+				scheduled = false;
+				batch = drain();
+			}
+			if (!batch.isEmpty()) {
+				send(batch);
+			}
+		}
+	}
+	
+	private List<ClusterBroadcast> drain() {
+		List<ClusterBroadcast> batch = pending;
+		pending = new ArrayList<ClusterBroadcast>();
+		return batch;
+	}
+	
+	private ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "broadcast-bus-flush");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return scheduler;
+	}
+	
+	/**
+	 * Send the batch to all the nodes on the bus (including this one)
+	 */
+	abstract protected void send(List<ClusterBroadcast> batch) throws IOException;
+	
+	/**
+	 * Called by the implementation when a batch arrives
+	 */
+	protected void deliver(List<ClusterBroadcast> batch) {
+		for (BroadcastBusListener listener : listeners) {
+			try {
+				listener.received(batch);
+			}
+			catch (Exception e) {
+				logger.error("Broadcast listener failed", e);
+			}
+		}
+	}
+	
+	@Override
+	public void subscribe(BroadcastBusListener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public void unsubscribe(BroadcastBusListener listener) {
+		listeners.remove(listener);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		flush();
+		synchronized(this) {
+			if (scheduler != null) {
+				scheduler.shutdown();
+				scheduler = null;
+			}
+		}
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * How long (in ms) a broadcast can wait for others to fill the batch
+	 */
+	public long getLingerTime() {
+		return lingerTime;
+	}
+
+	public void setLingerTime(long lingerTime) {
+		this.lingerTime = lingerTime;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Delivers a message to a large amount of targets by splitting them in partitions that are handled in parallel on an executor.
+ * Below the threshold the delivery is done on the calling thread, the overhead of scheduling is not worth it for small sets.
+ */
+public class BroadcastFanOut {
+
+	private static BroadcastFanOut instance = new BroadcastFanOut();
+	
+	private Executor executor = ForkJoinPool.commonPool();
+	private int threshold = 1024, partitionSize = 256;
+	
+	public interface Delivery<T> {
+		/**
+		 * Returns true if the message was delivered to the target, false if it was filtered out
+		 */
+		public boolean deliver(T target) throws IOException;
+	}
+	
+	public static BroadcastFanOut getInstance() {
+		return instance;
+	}
+	
+	public static void setInstance(BroadcastFanOut instance) {
+		BroadcastFanOut.instance = instance;
+	}
+	
+	public <T> CompletableFuture<BroadcastResult> fanOut(List<T> targets, final Delivery<T> delivery) {
+		if (targets.size() < threshold) {
+			CompletableFuture<BroadcastResult> future = new CompletableFuture<BroadcastResult>();
+			try {
+				future.complete(new BroadcastResult(targets.size(), deliver(targets, delivery), 1));
+			}
+			catch (Exception e) {
+				future.completeExceptionally(e);
+			}
+			return future;
+		}
+		final List<CompletableFuture<Integer>> partitions = new ArrayList<CompletableFuture<Integer>>();
+		for (int i = 0; i < targets.size(); i += partitionSize) {
+			final List<T> partition = targets.subList(i, Math.min(targets.size(), i + partitionSize));
+			partitions.add(CompletableFuture.supplyAsync(new Supplier<Integer>() {
+				@Override
+				public Integer get() {
+					try {
+						return deliver(partition, delivery);
+					}
+					catch (IOException e) {
+						throw new CompletionException(e);
+					}
+				}
+			}, executor));
+		}
+		final int candidates = targets.size();
+		return CompletableFuture.allOf(partitions.toArray(new CompletableFuture[partitions.size()])).thenApply(new Function<Void, BroadcastResult>() {
+			@Override
+			public BroadcastResult apply(Void nothing) {
+				int delivered = 0;
+				for (CompletableFuture<Integer> partition : partitions) {
+					delivered += partition.join();
+				}
+				return new BroadcastResult(candidates, delivered, partitions.size());
+			}
+		});
+	}
+	
+	private static <T> int deliver(List<T> targets, Delivery<T> delivery) throws IOException {
+		int delivered = 0;
+		for (T target : targets) {
+			if (delivery.deliver(target)) {
+				delivered++;
+			}
+		}
+		return delivered;
+	}
+	
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	public void setExecutor(Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("An executor is required");
+		}
+		this.executor = executor;
+	}
+
+	/**
+	 * The minimum amount of targets before the delivery is done in parallel
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	public void setThreshold(int threshold) {
+		this.threshold = threshold;
+	}
+
+	public int getPartitionSize() {
+		return partitionSize;
+	}
+
+	public void setPartitionSize(int partitionSize) {
+		if (partitionSize <= 0) {
+			throw new IllegalArgumentException("The partition size must be positive: " + partitionSize);
+		}
+		this.partitionSize = partitionSize;
+	}
+}
@@ -0,0 +1,52 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+public class BroadcastResult {
+	
+	private int candidates, delivered, partitions;
+
+	public BroadcastResult(int candidates, int delivered, int partitions) {
+		this.candidates = candidates;
+		this.delivered = delivered;
+		this.partitions = partitions;
+	}
+
+	/**
+	 * The amount of connections that were considered for delivery
+	 */
+	public int getCandidates() {
+		return candidates;
+	}
+
+	/**
+	 * The amount of connections the message was queued on
+	 */
+	public int getDelivered() {
+		return delivered;
+	}
+
+	public int getPartitions() {
+		return partitions;
+	}
+	
+	@Override
+	public String toString() {
+		return "delivered " + delivered + "/" + candidates + " in " + partitions + " partition(s)";
+	}
+}
@@ -0,0 +1,214 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import be.nabu.libs.http.server.websockets.api.ClusterBroadcast;
+
+/**
+ * The broadcast itself and its binary format, which is used by buses that send it over the network.
+ */
+public class ClusterBroadcastImpl implements ClusterBroadcast {
+	
+	private String origin, topic, path;
+	private byte [] bytes;
+	private List<String> users, roles, devices, hosts, notUsers, notRoles, notDevices, notHosts;
+	
+	public static ClusterBroadcastImpl newTopicBroadcast(String origin, String topic, byte [] bytes) {
+		ClusterBroadcastImpl broadcast = new ClusterBroadcastImpl();
+		broadcast.setOrigin(origin);
+		broadcast.setTopic(topic);
+		broadcast.setBytes(bytes);
+		return broadcast;
+	}
+	
+	public static ClusterBroadcastImpl newPathBroadcast(String origin, String path, byte [] bytes, List<String> users, List<String> roles, List<String> devices, List<String> hosts, 
+			List<String> notUsers, List<String> notRoles, List<String> notDevices, List<String> notHosts) {
+		ClusterBroadcastImpl broadcast = new ClusterBroadcastImpl();
+		broadcast.setOrigin(origin);
+		broadcast.setPath(path);
+		broadcast.setBytes(bytes);
+		broadcast.setUsers(users);
+		broadcast.setRoles(roles);
+		broadcast.setDevices(devices);
+		broadcast.setHosts(hosts);
+		broadcast.setNotUsers(notUsers);
+		broadcast.setNotRoles(notRoles);
+		broadcast.setNotDevices(notDevices);
+		broadcast.setNotHosts(notHosts);
+		return broadcast;
+	}
+	
+	public static void write(ClusterBroadcast broadcast, DataOutputStream output) throws IOException {
+		byte [] bytes = broadcast.getBytes();
+		write(output, broadcast.getOrigin());
+		write(output, broadcast.getTopic());
+		write(output, broadcast.getPath());
+		output.writeInt(bytes == null ? -1 : bytes.length);
+		if (bytes != null) {
+			output.write(bytes);
+		}
+		write(output, broadcast.getUsers());
+		write(output, broadcast.getRoles());
+		write(output, broadcast.getDevices());
+		write(output, broadcast.getHosts());
+		write(output, broadcast.getNotUsers());
+		write(output, broadcast.getNotRoles());
+		write(output, broadcast.getNotDevices());
+		write(output, broadcast.getNotHosts());
+	}
+	
+	/**
+	 * The size of the data is checked against the maximum before it is read, the data comes from another node that might not be well behaved
+	 */
+	public static ClusterBroadcastImpl read(DataInputStream input, int maxSize) throws IOException {
+		ClusterBroadcastImpl broadcast = new ClusterBroadcastImpl();
+		broadcast.setOrigin(readString(input));
+		broadcast.setTopic(readString(input));
+		broadcast.setPath(readString(input));
+		int length = input.readInt();
+		if (length > maxSize) {
+			throw new IOException("The broadcast size " + length + " exceeds the maximum of " + maxSize);
+		}
+		else if (length >= 0) {
+			byte [] bytes = new byte[length];
+			input.readFully(bytes);
+			broadcast.setBytes(bytes);
+		}
+		broadcast.setUsers(readList(input));
+		broadcast.setRoles(readList(input));
+		broadcast.setDevices(readList(input));
+		broadcast.setHosts(readList(input));
+		broadcast.setNotUsers(readList(input));
+		broadcast.setNotRoles(readList(input));
+		broadcast.setNotDevices(readList(input));
+		broadcast.setNotHosts(readList(input));
+		return broadcast;
+	}
+	
+	private static void write(DataOutputStream output, String value) throws IOException {
+		output.writeBoolean(value != null);
+		if (value != null) {
+			output.writeUTF(value);
+		}
+	}
+	
+	private static void write(DataOutputStream output, List<String> values) throws IOException {
+		output.writeInt(values == null ? -1 : values.size());
+		if (values != null) {
+			for (String value : values) {
+				write(output, value);
+			}
+		}
+	}
+	
+	private static String readString(DataInputStream input) throws IOException {
+		return input.readBoolean() ? input.readUTF() : null;
+	}
+	
+	private static List<String> readList(DataInputStream input) throws IOException {
+		int size = input.readInt();
+		if (size < 0) {
+			return null;
+		}
+		// the list grows as the values are actually read
+		List<String> values = new ArrayList<String>(Math.min(size, 16));
+		for (int i = 0; i < size; i++) {
+			values.add(readString(input));
+		}
+		return values;
+	}
+	
+	public String getOrigin() {
+		return origin;
+	}
+	public void setOrigin(String origin) {
+		this.origin = origin;
+	}
+	public String getTopic() {
+		return topic;
+	}
+	public void setTopic(String topic) {
+		this.topic = topic;
+	}
+	public String getPath() {
+		return path;
+	}
+	public void setPath(String path) {
+		this.path = path;
+	}
+	public byte[] getBytes() {
+		return bytes;
+	}
+	public void setBytes(byte[] bytes) {
+		this.bytes = bytes;
+	}
+	public List<String> getUsers() {
+		return users;
+	}
+	public void setUsers(List<String> users) {
+		this.users = users;
+	}
+	public List<String> getRoles() {
+		return roles;
+	}
+	public void setRoles(List<String> roles) {
+		this.roles = roles;
+	}
+	public List<String> getDevices() {
+		return devices;
+	}
+	public void setDevices(List<String> devices) {
+		this.devices = devices;
+	}
+	public List<String> getHosts() {
+		return hosts;
+	}
+	public void setHosts(List<String> hosts) {
+		this.hosts = hosts;
+	}
+	public List<String> getNotUsers() {
+		return notUsers;
+	}
+	public void setNotUsers(List<String> notUsers) {
+		this.notUsers = notUsers;
+	}
+	public List<String> getNotRoles() {
+		return notRoles;
+	}
+	public void setNotRoles(List<String> notRoles) {
+		this.notRoles = notRoles;
+	}
+	public List<String> getNotDevices() {
+		return notDevices;
+	}
+	public void setNotDevices(List<String> notDevices) {
+		this.notDevices = notDevices;
+	}
+	public List<String> getNotHosts() {
+		return notHosts;
+	}
+	public void setNotHosts(List<String> notHosts) {
+		this.notHosts = notHosts;
+	}
+}
@@ -0,0 +1,173 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.authentication.api.RoleHandler;
+import be.nabu.libs.authentication.api.TokenValidator;
+import be.nabu.libs.http.server.websockets.WebSocketUtils;
+import be.nabu.libs.http.server.websockets.api.BroadcastBus;
+import be.nabu.libs.http.server.websockets.api.BroadcastBusListener;
+import be.nabu.libs.http.server.websockets.api.ClusterBroadcast;
+import be.nabu.libs.nio.api.NIOServer;
+
+/**
+ * Connects a server to a broadcast bus: broadcasts on this server are published on the bus and broadcasts from other nodes are delivered to the local connections.
+ * The bus also returns our own broadcasts, those are dropped because they were already delivered locally.
+ * The node only refers to its server weakly so it does not keep the server in the map, but it should still be closed when the server is stopped so it leaves the bus.
+ */
+public class ClusterNode implements BroadcastBusListener, Closeable {
+
+	private static Map<NIOServer, ClusterNode> nodes = Collections.synchronizedMap(new WeakHashMap<NIOServer, ClusterNode>());
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private String nodeId = UUID.randomUUID().toString().replace("-", "");
+	private WeakReference<NIOServer> server;
+	private BroadcastBus bus;
+	// remote broadcasts are filtered with the local validator and role handler
+	private TokenValidator tokenValidator;
+	private RoleHandler roleHandler;
+	private AtomicLong published = new AtomicLong(), received = new AtomicLong(), suppressed = new AtomicLong();
+	
+	public static ClusterNode getInstance(NIOServer server) {
+		return nodes.get(server);
+	}
+	
+	/**
+	 * Remote broadcasts are filtered with the token validator and role handler of this node, both are required
+	 */
+	public static ClusterNode join(NIOServer server, BroadcastBus bus, TokenValidator tokenValidator, RoleHandler roleHandler) {
+		ClusterNode node = new ClusterNode(server, bus, tokenValidator, roleHandler);
+		ClusterNode previous = nodes.put(server, node);
+		if (previous != null) {
+			previous.bus.unsubscribe(previous);
+		}
+		bus.subscribe(node);
+		return node;
+	}
+	
+	ClusterNode(NIOServer server, BroadcastBus bus, TokenValidator tokenValidator, RoleHandler roleHandler) {
+		if (bus == null) {
+			throw new IllegalArgumentException("A broadcast bus is required");
+		}
+		if (tokenValidator == null || roleHandler == null) {
+			throw new IllegalArgumentException("A token validator and role handler are required to filter broadcasts from other nodes");
+		}
+		this.server = new WeakReference<NIOServer>(server);
+		this.bus = bus;
+		this.tokenValidator = tokenValidator;
+		this.roleHandler = roleHandler;
+	}
+	
+	/**
+	 * The origin of the broadcast must be the id of this node
+	 */
+	public void publish(ClusterBroadcast broadcast) throws IOException {
+		if (!nodeId.equals(broadcast.getOrigin())) {
+			throw new IllegalArgumentException("The broadcast does not originate from this node: " + broadcast.getOrigin());
+		}
+		bus.publish(broadcast);
+		published.incrementAndGet();
+	}
+	
+	@Override
+	public void received(List<ClusterBroadcast> broadcasts) {
+		for (ClusterBroadcast broadcast : broadcasts) {
+			if (nodeId.equals(broadcast.getOrigin())) {
+				suppressed.incrementAndGet();
+				continue;
+			}
+			received.incrementAndGet();
+			try {
+				deliver(broadcast);
+			}
+			catch (Exception e) {
+				logger.error("Could not deliver broadcast from node " + broadcast.getOrigin(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Delivers a broadcast from another node to the connections on this server
+	 */
+	protected void deliver(ClusterBroadcast broadcast) throws IOException {
+		NIOServer server = this.server.get();
+		// the server is gone without the node being closed
+		if (server == null) {
+			close();
+			return;
+		}
+		WebSocketUtils utils = new WebSocketUtils();
+		if (broadcast.getTopic() != null) {
+			utils.publishLocal(server, broadcast.getTopic(), broadcast.getBytes());
+		}
+		else {
+			utils.broadcastLocal(server, broadcast.getPath(), broadcast.getBytes(), tokenValidator, roleHandler, broadcast.getUsers(), broadcast.getRoles(), 
+				broadcast.getDevices(), broadcast.getHosts(), broadcast.getNotUsers(), broadcast.getNotRoles(), broadcast.getNotDevices(), broadcast.getNotHosts());
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		bus.unsubscribe(this);
+		NIOServer server = this.server.get();
+		if (server != null) {
+			nodes.remove(server, this);
+		}
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	public void setNodeId(String nodeId) {
+		this.nodeId = nodeId;
+	}
+
+	public TokenValidator getTokenValidator() {
+		return tokenValidator;
+	}
+
+	public RoleHandler getRoleHandler() {
+		return roleHandler;
+	}
+
+	public long getPublished() {
+		return published.get();
+	}
+
+	public long getReceived() {
+		return received.get();
+	}
+
+	public long getSuppressed() {
+		return suppressed.get();
+	}
+}
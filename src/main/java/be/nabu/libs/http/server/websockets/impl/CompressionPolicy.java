@@ -0,0 +1,211 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether an outgoing message is worth compressing, the same policy can be shared by all the connections of a handler and is thread safe.
+ * Small messages are never compressed, larger ones are first sampled to recognize data that is already compressed or random (images, protobuf blobs, encrypted content...).
+ * The achieved compression ratio is tracked per connection and per path, if it is bad the connection backs off and only periodically compresses a message to check whether it has improved.
+ * New connections on a path start from the ratio of the path.
+ */
+public class CompressionPolicy {
+
+	/**
+	 * The compression history of a single connection or path
+	 */
+	public static class Tracker {
+		// an exponentially weighted moving average of the compressed size divided by the original size, -1 as long as there are no samples
+		private volatile double ratio = -1;
+		private int skipped;
+		
+		synchronized void record(double sample) {
+			ratio = ratio < 0 ? sample : ratio * 0.8 + sample * 0.2;
+		}
+		
+		public double getRatio() {
+			return ratio;
+		}
+	}
+	
+	private int minSize = 128;
+	private double maxRatio = 0.9;
+	private int probeInterval = 16;
+	private int sampleSize = 512;
+	private double maxEntropy = 7;
+	private Map<String, Tracker> paths = new ConcurrentHashMap<String, Tracker>();
+	private AtomicLong compressed = new AtomicLong(), skippedSmall = new AtomicLong(), skippedEntropy = new AtomicLong(), skippedBackoff = new AtomicLong(), 
+		originalBytes = new AtomicLong(), compressedBytes = new AtomicLong();
+	
+	/**
+	 * A cheap check on the size alone, this is done before the data is read
+	 */
+	public boolean isEligible(long size) {
+		if (size < minSize) {
+			skippedSmall.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * This is checked after the size is found to be eligible, the connection tracker is optional: without it only the path history and the content are taken into account
+	 */
+	public boolean shouldCompress(Tracker connection, String path, byte [] bytes, int length) {
+		Tracker tracker = connection == null || connection.ratio < 0 ? getTracker(path) : connection;
+		if (tracker != null && tracker.ratio > maxRatio) {
+			synchronized(tracker) {
+				if (++tracker.skipped < probeInterval) {
+					skippedBackoff.incrementAndGet();
+					return false;
+				}
+				// we probe with this message
+				tracker.skipped = 0;
+			}
+		}
+		if (!isCompressible(bytes, length)) {
+			skippedEntropy.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Estimates the entropy (in bits per byte) of a sample at the start of the data, already compressed data is close to 8
+	 */
+	public boolean isCompressible(byte [] bytes, int length) {
+		int amount = Math.min(length, sampleSize);
+		if (amount == 0) {
+			return true;
+		}
+		int [] counts = new int[256];
+		for (int i = 0; i < amount; i++) {
+			counts[bytes[i] & 0xff]++;
+		}
+		double entropy = 0;
+		for (int count : counts) {
+			if (count > 0) {
+				double probability = (double) count / amount;
+				entropy -= probability * (Math.log(probability) / Math.log(2));
+			}
+		}
+		return entropy <= maxEntropy;
+	}
+	
+	public void record(Tracker connection, String path, long original, long compressed) {
+		if (original <= 0) {
+			return;
+		}
+		this.compressed.incrementAndGet();
+		originalBytes.addAndGet(original);
+		compressedBytes.addAndGet(compressed);
+		double ratio = (double) compressed / original;
+		if (connection != null) {
+			connection.record(ratio);
+		}
+		if (path != null) {
+			Tracker tracker = paths.get(path);
+			if (tracker == null) {
+				paths.putIfAbsent(path, new Tracker());
+				tracker = paths.get(path);
+			}
+			tracker.record(ratio);
+		}
+	}
+	
+	public Tracker getTracker(String path) {
+		return path == null ? null : paths.get(path);
+	}
+	
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public void setMinSize(int minSize) {
+		this.minSize = minSize;
+	}
+
+	/**
+	 * If the compressed size divided by the original size is larger than this, compression is considered not worth it
+	 */
+	public double getMaxRatio() {
+		return maxRatio;
+	}
+
+	public void setMaxRatio(double maxRatio) {
+		this.maxRatio = maxRatio;
+	}
+
+	/**
+	 * While backing off, one in this many messages is still compressed to check whether the ratio has improved
+	 */
+	public int getProbeInterval() {
+		return probeInterval;
+	}
+
+	public void setProbeInterval(int probeInterval) {
+		this.probeInterval = probeInterval;
+	}
+
+	public int getSampleSize() {
+		return sampleSize;
+	}
+
+	public void setSampleSize(int sampleSize) {
+		this.sampleSize = sampleSize;
+	}
+
+	/**
+	 * Samples with a higher entropy (in bits per byte) are not compressed
+	 */
+	public double getMaxEntropy() {
+		return maxEntropy;
+	}
+
+	public void setMaxEntropy(double maxEntropy) {
+		this.maxEntropy = maxEntropy;
+	}
+
+	public long getCompressed() {
+		return compressed.get();
+	}
+
+	public long getSkippedSmall() {
+		return skippedSmall.get();
+	}
+
+	public long getSkippedEntropy() {
+		return skippedEntropy.get();
+	}
+
+	public long getSkippedBackoff() {
+		return skippedBackoff.get();
+	}
+
+	public long getOriginalBytes() {
+		return originalBytes.get();
+	}
+
+	public long getCompressedBytes() {
+		return compressedBytes.get();
+	}
+	
+}
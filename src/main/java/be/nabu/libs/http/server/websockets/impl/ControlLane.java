@@ -0,0 +1,115 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.http.server.websockets.api.OpCode;
+import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
+
+/**
+ * A priority lane for control frames on a single connection.
+ * Control frames are added both here and to the regular response queue: the formatter sends anything in this lane ahead of the data it is formatting.
+ * When the control frame eventually reaches the front of the regular queue, it is recognized as already sent and skipped, but the keep alive decider still sees it.
+ * Once a close has been sent, no more data is sent.
+ */
+public class ControlLane {
+	
+	public static final String KEY = "websocket-control-lane";
+	
+	private static class QueuedControl {
+		private WebSocketMessage message;
+		private long queued;
+		
+		QueuedControl(WebSocketMessage message) {
+			this.message = message;
+			this.queued = System.nanoTime();
+		}
+	}
+	
+	private Queue<QueuedControl> queue = new ConcurrentLinkedQueue<QueuedControl>();
+	private Set<WebSocketMessage> sent = Collections.newSetFromMap(new ConcurrentHashMap<WebSocketMessage, Boolean>());
+	private volatile boolean closeSent;
+	private AtomicLong controlFrames = new AtomicLong(), totalDelay = new AtomicLong(), maxDelay = new AtomicLong();
+	
+	public void add(WebSocketMessage message) {
+		if (!message.getOpCode().isControl()) {
+			throw new IllegalArgumentException("Only control frames can be prioritized");
+		}
+		queue.add(new QueuedControl(message));
+	}
+	
+	WebSocketMessage poll() {
+		if (closeSent) {
+			return null;
+		}
+		QueuedControl control = queue.poll();
+		if (control == null) {
+			return null;
+		}
+		long delay = System.nanoTime() - control.queued;
+		controlFrames.incrementAndGet();
+		totalDelay.addAndGet(delay);
+		long max = maxDelay.get();
+		while (delay > max && !maxDelay.compareAndSet(max, delay)) {
+			max = maxDelay.get();
+		}
+		sent.add(control.message);
+		if (OpCode.CLOSE.equals(control.message.getOpCode())) {
+			closeSent = true;
+		}
+		return control.message;
+	}
+	
+	/**
+	 * Checks (once) whether the message was already sent through this lane
+	 */
+	boolean wasSent(WebSocketMessage message) {
+		return sent.remove(message);
+	}
+	
+	boolean isCloseSent() {
+		return closeSent;
+	}
+	
+	/**
+	 * The amount of control frames that were sent through the lane
+	 */
+	public long getControlFrames() {
+		return controlFrames.get();
+	}
+	
+	/**
+	 * The total time in nanoseconds that the control frames waited before being sent
+	 */
+	public long getTotalDelay() {
+		return totalDelay.get();
+	}
+	
+	/**
+	 * The longest time in nanoseconds a control frame waited before being sent
+	 */
+	public long getMaxDelay() {
+		return maxDelay.get();
+	}
+}
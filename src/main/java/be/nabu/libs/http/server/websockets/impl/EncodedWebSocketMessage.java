@@ -0,0 +1,95 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import be.nabu.libs.http.server.websockets.api.OpCode;
+import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
+
+/**
+ * A message that is encoded once as a complete unmasked frame (header and payload).
+ * The frame is immutable so the same instance can be queued on any number of connections, the formatter writes it as is.
+ * If a connection needs masking, the formatter falls back to encoding the payload like any other message.
+ */
+public class EncodedWebSocketMessage implements WebSocketMessage {
+
+	private OpCode opCode;
+	private boolean isFinal;
+	private int reservedBits;
+	private byte [] frame;
+	private int headerLength;
+	
+	private EncodedWebSocketMessage(OpCode opCode, boolean isFinal, int reservedBits, byte [] frame, int headerLength) {
+		this.opCode = opCode;
+		this.isFinal = isFinal;
+		this.reservedBits = reservedBits;
+		this.frame = frame;
+		this.headerLength = headerLength;
+	}
+	
+	public static EncodedWebSocketMessage encode(OpCode opCode, boolean isFinal, byte [] payload) {
+		return encode(opCode, isFinal, 0, payload);
+	}
+	
+	/**
+	 * The reserved bits indicate that the payload was already transformed by an extension, e.g. RSV1 (4) for a deflated payload
+	 */
+	public static EncodedWebSocketMessage encode(OpCode opCode, boolean isFinal, int reservedBits, byte [] payload) {
+		byte [] header = new byte[10];
+		int headerLength = WebSocketMessageFormatter.writeHeader(header, 0, isFinal, reservedBits, opCode, payload.length);
+		byte [] frame = new byte[headerLength + payload.length];
+		System.arraycopy(header, 0, frame, 0, headerLength);
+		System.arraycopy(payload, 0, frame, headerLength, payload.length);
+		return new EncodedWebSocketMessage(opCode, isFinal, reservedBits, frame, headerLength);
+	}
+	
+	@Override
+	public OpCode getOpCode() {
+		return opCode;
+	}
+
+	@Override
+	public boolean isFinal() {
+		return isFinal;
+	}
+
+	@Override
+	public int getReservedBits() {
+		return reservedBits;
+	}
+
+	@Override
+	public long getSize() {
+		return frame.length - headerLength;
+	}
+
+	@Override
+	public InputStream getData() {
+		return new ByteArrayInputStream(frame, headerLength, frame.length - headerLength);
+	}
+
+	/**
+	 * The complete frame, this must not be modified
+	 */
+	byte [] getFrame() {
+		return frame;
+	}
+	
+}
@@ -0,0 +1,90 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import be.nabu.libs.http.server.websockets.util.BufferPool;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * Reads the region of a file message with positional reads into a pooled array that is written directly to the target.
+ * The channel is only opened once the writer asks for data and the array is only held while data is being copied.
+ */
+class FileChannelContainer implements ReadableContainer<ByteBuffer> {
+
+	private static final int CHUNK_SIZE = 65536;
+	
+	private FileWebSocketMessage message;
+	private FileChannel channel;
+	private long position, remaining;
+	
+	FileChannelContainer(FileWebSocketMessage message) {
+		this.message = message;
+		this.position = message.getOffset();
+		this.remaining = message.getSize();
+	}
+	
+	@Override
+	public long read(ByteBuffer target) throws IOException {
+		if (remaining == 0) {
+			return -1;
+		}
+		if (channel == null) {
+			channel = FileChannel.open(message.getFile().toPath(), StandardOpenOption.READ);
+		}
+		long total = 0;
+		byte [] bytes = BufferPool.getInstance().borrow((int) Math.min(CHUNK_SIZE, remaining));
+		try {
+			while (remaining > 0 && target.remainingSpace() > 0) {
+				int length = (int) Math.min(Math.min(bytes.length, remaining), target.remainingSpace());
+				int read = channel.read(java.nio.ByteBuffer.wrap(bytes, 0, length), position);
+				if (read < 0) {
+					throw new IOException("The file " + message.getFile() + " was truncated while it was being sent");
+				}
+				else if (read == 0) {
+					break;
+				}
+				long written = target.write(IOUtils.wrap(bytes, 0, read, true));
+				if (written != read) {
+					throw new IOException("Could not write the file data to the target");
+				}
+				position += read;
+				remaining -= read;
+				total += read;
+			}
+		}
+		finally {
+			BufferPool.getInstance().release(bytes);
+		}
+		return total;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import be.nabu.libs.http.server.websockets.api.OpCode;
+import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
+
+/**
+ * A message that sends (a region of) a file.
+ * When the frame is not masked, the formatter reads the file straight into the outgoing buffers with positional reads instead of going through streams and transcoders.
+ */
+public class FileWebSocketMessage implements WebSocketMessage {
+
+	private OpCode opCode;
+	private boolean isFinal;
+	private File file;
+	private long offset, size;
+
+	public FileWebSocketMessage(OpCode opCode, File file) {
+		this(opCode, true, file, 0, file.length());
+	}
+	
+	public FileWebSocketMessage(OpCode opCode, boolean isFinal, File file, long offset, long size) {
+		if (offset < 0 || size < 0 || offset + size > file.length()) {
+			throw new IllegalArgumentException("The region " + offset + "+" + size + " is outside of the file: " + file);
+		}
+		this.opCode = opCode;
+		this.isFinal = isFinal;
+		this.file = file;
+		this.offset = offset;
+		this.size = size;
+	}
+	
+	@Override
+	public OpCode getOpCode() {
+		return opCode;
+	}
+
+	@Override
+	public boolean isFinal() {
+		return isFinal;
+	}
+
+	@Override
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public InputStream getData() {
+		if (size == 0) {
+			return null;
+		}
+		try {
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			channel.position(offset);
+			return Channels.newInputStream(channel);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+	
+}
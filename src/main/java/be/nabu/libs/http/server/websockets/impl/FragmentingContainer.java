@@ -0,0 +1,122 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import be.nabu.libs.http.server.websockets.api.OpCode;
+import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
+import be.nabu.libs.http.server.websockets.util.BufferPool;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * Sends a large message as a first frame with the original opcode followed by continuation frames, none of which exceed the fragment size.
+ * The frames are only encoded as the writer asks for data, in between frames any prioritized control frames are sent so heartbeats and closes are not stuck behind the bulk transfer.
+ */
+class FragmentingContainer implements ReadableContainer<ByteBuffer> {
+
+	private WebSocketMessageFormatter formatter;
+	private WebSocketMessage message;
+	private int fragmentSize;
+	private InputStream data;
+	private long remaining;
+	private boolean first = true, finished;
+	// the frame that is currently being written, the array is reused for every fragment because the previous frame is fully written before the next is encoded
+	// it is borrowed from the pool for as long as the message is being sent
+	private byte [] frameBytes;
+	private int frameSize;
+	private ByteBuffer current;
+	
+	FragmentingContainer(WebSocketMessageFormatter formatter, WebSocketMessage message, int fragmentSize) {
+		this.formatter = formatter;
+		this.message = message;
+		this.fragmentSize = fragmentSize;
+		this.remaining = message.getSize();
+		this.frameSize = fragmentSize + 14;
+	}
+	
+	@Override
+	public long read(ByteBuffer target) throws IOException {
+		long total = 0;
+		while (target.remainingSpace() > 0) {
+			if (current == null || current.remainingData() == 0) {
+				current = nextFrame();
+				if (current == null) {
+					break;
+				}
+			}
+			long written = target.write(current);
+			if (written <= 0) {
+				break;
+			}
+			total += written;
+		}
+		boolean exhausted = finished && (current == null || current.remainingData() == 0);
+		if (exhausted) {
+			release();
+		}
+		return total == 0 && exhausted ? -1 : total;
+	}
+
+	private ByteBuffer nextFrame() throws IOException {
+		if (finished) {
+			return null;
+		}
+		if (!first) {
+			WebSocketMessage control = formatter.pollControl();
+			if (control != null) {
+				byte [] bytes = new byte[(int) formatter.getFrameSize(control)];
+				// nothing may follow a close
+				if (formatter.isCloseSent()) {
+					finished = true;
+				}
+				return IOUtils.wrap(bytes, 0, formatter.encode(control, bytes, 0), true);
+			}
+		}
+		if (data == null) {
+			data = message.getData();
+			frameBytes = BufferPool.getInstance().borrow(frameSize);
+		}
+		int size = (int) Math.min(remaining, fragmentSize);
+		remaining -= size;
+		finished = remaining == 0;
+		// the reserved bits (e.g. compression) are only set on the first frame
+		int length = formatter.encode(finished && message.isFinal(), first ? message.getReservedBits() : 0, first ? message.getOpCode() : OpCode.CONTINUATION, data, size, frameBytes, 0);
+		first = false;
+		return IOUtils.wrap(frameBytes, 0, length, true);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		release();
+		if (data != null) {
+			data.close();
+		}
+	}
+	
+	private void release() {
+		if (frameBytes != null) {
+			BufferPool.getInstance().release(frameBytes);
+			frameBytes = null;
+		}
+	}
+
+}
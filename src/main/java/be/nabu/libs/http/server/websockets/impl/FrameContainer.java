@@ -0,0 +1,65 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.IOException;
+
+import be.nabu.libs.http.server.websockets.util.BufferPool;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * Frames that are encoded in a pooled array, the array is given back as soon as all the data is read or the container is closed
+ */
+class FrameContainer implements ReadableContainer<ByteBuffer> {
+
+	private byte [] bytes;
+	private ByteBuffer buffer;
+	
+	FrameContainer(byte [] bytes, int length) {
+		this.bytes = bytes;
+		this.buffer = IOUtils.wrap(bytes, 0, length, true);
+	}
+	
+	@Override
+	public long read(ByteBuffer target) throws IOException {
+		if (bytes == null) {
+			return -1;
+		}
+		long written = target.write(buffer);
+		if (buffer.remainingData() == 0) {
+			release();
+		}
+		return written;
+	}
+
+	@Override
+	public void close() throws IOException {
+		release();
+	}
+	
+	private void release() {
+		if (bytes != null) {
+			BufferPool.getInstance().release(bytes);
+			bytes = null;
+			buffer = null;
+		}
+	}
+
+}
@@ -0,0 +1,55 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import be.nabu.libs.http.server.websockets.api.ClusterBroadcast;
+
+/**
+ * A bus within a single JVM, mostly for testing: every node creates its own instance and joins the group of an existing one.
+ */
+public class LocalBroadcastBus extends BatchingBroadcastBus {
+
+	private List<LocalBroadcastBus> group;
+	
+	public LocalBroadcastBus() {
+		this.group = new CopyOnWriteArrayList<LocalBroadcastBus>();
+		this.group.add(this);
+	}
+	
+	public LocalBroadcastBus(LocalBroadcastBus member) {
+		this.group = member.group;
+		this.group.add(this);
+	}
+	
+	@Override
+	protected void send(List<ClusterBroadcast> batch) {
+		for (LocalBroadcastBus bus : group) {
+			bus.deliver(batch);
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		super.close();
+		group.remove(this);
+	}
+}
@@ -0,0 +1,95 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import be.nabu.libs.http.server.websockets.util.BufferPool;
+import be.nabu.libs.http.server.websockets.util.WebSocketMask;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * Masks the data of an outgoing message as the writer asks for it, the data is masked in place in chunks.
+ * The chunk array is borrowed from the pool while the data is being read.
+ */
+class MaskingContainer implements ReadableContainer<ByteBuffer> {
+
+	private InputStream data;
+	private int maskingKey;
+	private long position;
+	private int chunkSize;
+	private byte [] bytes;
+	private ByteBuffer current;
+	private boolean finished;
+	
+	MaskingContainer(InputStream data, int maskingKey, int chunkSize) {
+		this.data = data;
+		this.maskingKey = maskingKey;
+		this.chunkSize = chunkSize;
+	}
+	
+	@Override
+	public long read(ByteBuffer target) throws IOException {
+		long total = 0;
+		while (target.remainingSpace() > 0) {
+			if (current == null || current.remainingData() == 0) {
+				if (finished) {
+					break;
+				}
+				if (bytes == null) {
+					bytes = BufferPool.getInstance().borrow(chunkSize);
+				}
+				int read = data.read(bytes);
+				if (read < 0) {
+					finished = true;
+					release();
+					break;
+				}
+				else if (read == 0) {
+					break;
+				}
+				position = WebSocketMask.apply(bytes, 0, read, maskingKey, position);
+				current = IOUtils.wrap(bytes, 0, read, true);
+			}
+			long written = target.write(current);
+			if (written <= 0) {
+				break;
+			}
+			total += written;
+		}
+		return total == 0 && finished ? -1 : total;
+	}
+
+	@Override
+	public void close() throws IOException {
+		release();
+		data.close();
+	}
+	
+	private void release() {
+		if (bytes != null) {
+			BufferPool.getInstance().release(bytes);
+			bytes = null;
+			current = null;
+		}
+	}
+
+}
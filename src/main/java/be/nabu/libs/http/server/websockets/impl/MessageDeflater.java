@@ -0,0 +1,205 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import be.nabu.libs.http.server.websockets.util.BufferPool;
+import be.nabu.libs.http.server.websockets.util.CompressionPool;
+
+/**
+ * Compresses the outgoing messages of a single connection as described in: https://tools.ietf.org/html/rfc7692#section-7.2.1
+ * Without context takeover a pooled deflater is borrowed per message, otherwise the connection keeps its own deflater.
+ * With context takeover messages must be deflated in the order they are sent, without it the deflater is stateless and can be used from any thread.
+ */
+public class MessageDeflater {
+
+	/**
+	 * The deflater of a connection is stored in the pipeline context under this key
+	 */
+	public static final String KEY = "websocket-deflater";
+	private static final int CHUNK_SIZE = 8192;
+	private static final byte [] TAIL = new byte [] { 0x00, 0x00, (byte) 0xff, (byte) 0xff };
+	
+	private boolean noContextTakeover;
+	private int level;
+	private Deflater deflater;
+	private boolean closed;
+	// optional, decides which messages are worth compressing
+	private CompressionPolicy policy;
+	private CompressionPolicy.Tracker tracker = new CompressionPolicy.Tracker();
+	private String path;
+	
+	public MessageDeflater(boolean noContextTakeover, int level) {
+		this.noContextTakeover = noContextTakeover;
+		this.level = level;
+	}
+	
+	/**
+	 * Deflates a message with the deflater of this connection (or a pooled one without context takeover), the compression is not recorded in the policy (see record())
+	 */
+	public byte [] deflate(InputStream data) throws IOException {
+		if (noContextTakeover) {
+			return deflate(level, data);
+		}
+		synchronized (this) {
+			return deflate(getDeflater(), data);
+		}
+	}
+	
+	/**
+	 * Deflates a message without context takeover using a pooled deflater for the given level, this can be used from any thread
+	 */
+	public static byte [] deflate(int level, InputStream data) throws IOException {
+		Deflater deflater = CompressionPool.getInstance().borrowDeflater(level);
+		try {
+			return deflate(deflater, data);
+		}
+		finally {
+			CompressionPool.getInstance().release(deflater, level);
+		}
+	}
+	
+	public static byte [] deflate(int level, byte [] bytes) throws IOException {
+		return deflate(level, new ByteArrayInputStream(bytes));
+	}
+	
+	private static byte [] deflate(Deflater deflater, InputStream data) throws IOException {
+		byte [] input = BufferPool.getInstance().borrow(CHUNK_SIZE);
+		byte [] output = BufferPool.getInstance().borrow(CHUNK_SIZE);
+		try {
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			int read;
+			while ((read = data.read(input)) >= 0) {
+				deflater.setInput(input, 0, read);
+				while (!deflater.needsInput()) {
+					result.write(output, 0, deflater.deflate(output, 0, output.length, Deflater.NO_FLUSH));
+				}
+			}
+			// a sync flush ends with an empty stored block (0x00 0x00 0xff 0xff), we keep flushing until we have it
+			// note that a call to deflate can return no data at all, for example when it only applies changed parameters
+			byte [] tail = new byte[TAIL.length];
+			int tailLength = 0;
+			int attempts = 0;
+			while (tailLength < TAIL.length || !Arrays.equals(tail, TAIL)) {
+				int deflated = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+				result.write(output, 0, deflated);
+				tailLength = Math.min(TAIL.length, tailLength + deflated);
+				// keep the last bytes that were written
+				for (int i = Math.max(0, deflated - TAIL.length); i < deflated; i++) {
+					System.arraycopy(tail, 1, tail, 0, TAIL.length - 1);
+					tail[TAIL.length - 1] = output[i];
+				}
+				if (deflated == 0 && ++attempts > 1) {
+					// if nothing is pending since the previous flush (an empty message with context takeover), zlib produces nothing at all
+					// we send a single empty stored block without its tail instead: https://tools.ietf.org/html/rfc7692#section-7.2.3.6
+					if (result.size() == 0) {
+						return new byte [] { 0x00 };
+					}
+					throw new IOException("The deflater did not finish the sync flush");
+				}
+			}
+			byte [] bytes = result.toByteArray();
+			// the trailing 0x00 0x00 0xff 0xff of the empty block is not sent
+			return Arrays.copyOf(bytes, bytes.length - TAIL.length);
+		}
+		finally {
+			BufferPool.getInstance().release(input);
+			BufferPool.getInstance().release(output);
+		}
+	}
+	
+	/**
+	 * Records the result of a compression in the policy, this should only be called from the send path of the connection itself because the tracker is not shared
+	 */
+	public void record(long original, long compressed) {
+		if (policy != null) {
+			policy.record(tracker, path, original, compressed);
+		}
+	}
+	
+	public byte [] deflate(byte [] bytes) throws IOException {
+		return deflate(new ByteArrayInputStream(bytes));
+	}
+	
+	public boolean isEligible(long size) {
+		return policy == null || policy.isEligible(size);
+	}
+	
+	/**
+	 * Takes into account the compression history of this connection
+	 */
+	public boolean shouldCompress(byte [] bytes) {
+		return policy == null || policy.shouldCompress(tracker, path, bytes, bytes.length);
+	}
+	
+	/**
+	 * Only looks at the content itself
+	 */
+	public boolean isCompressible(byte [] bytes) {
+		return policy == null || policy.isCompressible(bytes, bytes.length);
+	}
+	
+	public void setPolicy(CompressionPolicy policy, String path) {
+		this.policy = policy;
+		this.path = path;
+	}
+	
+	public CompressionPolicy getPolicy() {
+		return policy;
+	}
+	
+	public CompressionPolicy.Tracker getTracker() {
+		return tracker;
+	}
+	
+	private Deflater getDeflater() throws IOException {
+		if (closed) {
+			throw new IOException("The deflater is closed");
+		}
+		if (deflater == null) {
+			deflater = new Deflater(level, true);
+		}
+		return deflater;
+	}
+	
+	/**
+	 * Ends the deflater of the connection, it is not garbage collected in time to free its native memory
+	 */
+	public synchronized void close() {
+		closed = true;
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+	}
+
+	public boolean isNoContextTakeover() {
+		return noContextTakeover;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+	
+}
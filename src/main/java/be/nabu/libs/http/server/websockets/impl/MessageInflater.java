@@ -0,0 +1,142 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import be.nabu.libs.http.server.websockets.WebSocketCloseException;
+import be.nabu.libs.http.server.websockets.api.CloseCode;
+import be.nabu.libs.http.server.websockets.util.BufferPool;
+import be.nabu.libs.http.server.websockets.util.CompressionPool;
+
+/**
+ * Decompresses the incoming messages of a single connection, the fragments of a message are inflated in order as they come in.
+ * The inflated size of a message is limited so a small compressed frame can not be used to exhaust memory.
+ */
+public class MessageInflater {
+
+	/**
+	 * The limit on the inflated size of a message if no other limit is configured
+	 */
+	public static final long DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+	private static final int CHUNK_SIZE = 8192;
+	// the tail that is stripped by the sender: https://tools.ietf.org/html/rfc7692#section-7.2.2
+	private static final byte [] TAIL = new byte [] { 0, 0, (byte) 0xff, (byte) 0xff };
+	
+	private boolean noContextTakeover;
+	private long maxMessageSize;
+	private Inflater inflater;
+	private boolean closed;
+	// the inflated size of the current message
+	private long messageSize;
+	
+	public MessageInflater(boolean noContextTakeover, long maxMessageSize) {
+		this.noContextTakeover = noContextTakeover;
+		this.maxMessageSize = maxMessageSize <= 0 ? DEFAULT_MAX_MESSAGE_SIZE : maxMessageSize;
+	}
+	
+	/**
+	 * Inflates the data of one frame, the final frame of the message must be indicated so the stripped tail can be added.
+	 */
+	public synchronized byte [] inflate(InputStream data, boolean isFinal) throws IOException, WebSocketCloseException {
+		if (closed) {
+			throw new IOException("The inflater is closed");
+		}
+		if (inflater == null) {
+			inflater = noContextTakeover ? CompressionPool.getInstance().borrowInflater() : new Inflater(true);
+		}
+		byte [] input = BufferPool.getInstance().borrow(CHUNK_SIZE);
+		byte [] output = BufferPool.getInstance().borrow(CHUNK_SIZE);
+		boolean failed = true;
+		try {
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			int read;
+			while ((read = data.read(input)) >= 0) {
+				inflater.setInput(input, 0, read);
+				drain(output, result);
+			}
+			if (isFinal) {
+				inflater.setInput(TAIL);
+				drain(output, result);
+				messageSize = 0;
+			}
+			failed = false;
+			return result.toByteArray();
+		}
+		catch (DataFormatException e) {
+			throw new WebSocketCloseException(CloseCode.INVALID_DATA, "Could not inflate the message: " + e.getMessage());
+		}
+		finally {
+			BufferPool.getInstance().release(input);
+			BufferPool.getInstance().release(output);
+			// without context takeover the inflater is only held for the duration of a message
+			// after a failure the state is undefined, the connection will be closed
+			if (failed || (isFinal && noContextTakeover)) {
+				release();
+			}
+		}
+	}
+	
+	private void drain(byte [] output, ByteArrayOutputStream result) throws DataFormatException, WebSocketCloseException {
+		int inflated;
+		while ((inflated = inflater.inflate(output)) > 0) {
+			messageSize += inflated;
+			if (messageSize > maxMessageSize) {
+				throw new WebSocketCloseException(CloseCode.MESSAGE_TOO_BIG, "The inflated message size exceeds the maximum of " + maxMessageSize);
+			}
+			result.write(output, 0, inflated);
+		}
+	}
+	
+	/**
+	 * Called when the connection is closed, a pooled inflater that is still held in the middle of a message is given back
+	 */
+	public synchronized void close() {
+		closed = true;
+		release();
+	}
+	
+	/**
+	 * Gives back (or ends) the inflater, it is recreated on the next message
+	 */
+	private void release() {
+		if (inflater != null) {
+			if (noContextTakeover) {
+				CompressionPool.getInstance().release(inflater);
+			}
+			else {
+				inflater.end();
+			}
+			inflater = null;
+		}
+		messageSize = 0;
+	}
+
+	public long getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	public boolean isNoContextTakeover() {
+		return noContextTakeover;
+	}
+	
+}
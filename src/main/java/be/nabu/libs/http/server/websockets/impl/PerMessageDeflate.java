@@ -0,0 +1,170 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import be.nabu.libs.http.server.websockets.WebSocketCloseException;
+import be.nabu.libs.http.server.websockets.api.OpCode;
+import be.nabu.libs.http.server.websockets.api.WebSocketExtension;
+import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
+import be.nabu.libs.http.server.websockets.api.WebSocketRequest;
+
+/**
+ * The permessage-deflate extension as negotiated for a single connection: https://tools.ietf.org/html/rfc7692
+ * Compressed messages have RSV1 set on their first frame.
+ */
+public class PerMessageDeflate implements WebSocketExtension {
+
+	public static final String NAME = "permessage-deflate";
+	/**
+	 * Messages are read into memory to be compressed, larger messages are sent as is so they can still be streamed
+	 */
+	public static final long DEFAULT_MAX_DEFLATE_SIZE = 1024 * 1024;
+	
+	private boolean serverNoContextTakeover, clientNoContextTakeover;
+	private MessageDeflater deflater;
+	private MessageInflater inflater;
+	// whether the incoming message is compressed, only the first frame indicates this
+	private boolean inflating;
+	private long maxDeflateSize = DEFAULT_MAX_DEFLATE_SIZE;
+	
+	PerMessageDeflate(boolean server, boolean serverNoContextTakeover, boolean clientNoContextTakeover, int level, long maxMessageSize, CompressionPolicy policy, String path) {
+		this.serverNoContextTakeover = serverNoContextTakeover;
+		this.clientNoContextTakeover = clientNoContextTakeover;
+		this.deflater = new MessageDeflater(server ? serverNoContextTakeover : clientNoContextTakeover, level);
+		this.deflater.setPolicy(policy, path);
+		this.inflater = new MessageInflater(server ? clientNoContextTakeover : serverNoContextTakeover, maxMessageSize);
+	}
+	
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public int getReservedBits() {
+		return 4;
+	}
+
+	@Override
+	public String getResponse() {
+		StringBuilder builder = new StringBuilder(NAME);
+		if (serverNoContextTakeover) {
+			builder.append("; server_no_context_takeover");
+		}
+		if (clientNoContextTakeover) {
+			builder.append("; client_no_context_takeover");
+		}
+		return builder.toString();
+	}
+
+	@Override
+	public WebSocketRequest decode(WebSocketRequest frame) throws IOException, WebSocketCloseException {
+		if (!OpCode.CONTINUATION.equals(frame.getOpCode())) {
+			inflating = (frame.getReservedBits() & 4) != 0;
+		}
+		if (!inflating) {
+			return frame;
+		}
+		byte [] bytes;
+		InputStream data = frame.getData();
+		try {
+			bytes = inflater.inflate(data, frame.isFinal());
+		}
+		finally {
+			if (data != null) {
+				data.close();
+			}
+		}
+		if (frame.isFinal()) {
+			inflating = false;
+		}
+		return WebSocketRequestImpl.newRequest(frame, bytes);
+	}
+
+	/**
+	 * The compression policy of the deflater can skip messages that are too small or don't compress well.
+	 * Messages above the maximum deflate size are not compressed so they are not read into memory.
+	 */
+	@Override
+	public WebSocketMessage encode(WebSocketMessage message) throws IOException {
+		if (message.getSize() == 0 || message.getSize() > Math.min(maxDeflateSize, Integer.MAX_VALUE - 16) || message instanceof FileWebSocketMessage || !deflater.isEligible(message.getSize())) {
+			return message;
+		}
+		byte [] bytes = new byte[(int) message.getSize()];
+		InputStream data = message.getData();
+		try {
+			int read = 0;
+			while (read < bytes.length) {
+				int amount = data.read(bytes, read, bytes.length - read);
+				if (amount < 0) {
+					throw new IOException("The message data is smaller than the indicated size " + bytes.length);
+				}
+				read += amount;
+			}
+		}
+		finally {
+			data.close();
+		}
+		// the data has been read, so from here on we send the bytes we have
+		if (!deflater.shouldCompress(bytes)) {
+			return message instanceof EncodedWebSocketMessage ? message : EncodedWebSocketMessage.encode(message.getOpCode(), true, message.getReservedBits(), bytes);
+		}
+		byte [] compressed = deflater.deflate(bytes);
+		// this is the send path of the connection so we can update its compression history
+		deflater.record(bytes.length, compressed.length);
+		// without context takeover the receiver does not need this message for the next one, so if compression did not help we can still send the original
+		if (deflater.isNoContextTakeover() && compressed.length >= bytes.length) {
+			return message instanceof EncodedWebSocketMessage ? message : EncodedWebSocketMessage.encode(message.getOpCode(), true, message.getReservedBits(), bytes);
+		}
+		return EncodedWebSocketMessage.encode(message.getOpCode(), true, message.getReservedBits() | 4, compressed);
+	}
+
+	@Override
+	public void close() {
+		deflater.close();
+		inflater.close();
+	}
+
+	public MessageDeflater getDeflater() {
+		return deflater;
+	}
+
+	public MessageInflater getInflater() {
+		return inflater;
+	}
+
+	public long getMaxDeflateSize() {
+		return maxDeflateSize;
+	}
+
+	public void setMaxDeflateSize(long maxDeflateSize) {
+		this.maxDeflateSize = maxDeflateSize;
+	}
+
+	public boolean isServerNoContextTakeover() {
+		return serverNoContextTakeover;
+	}
+
+	public boolean isClientNoContextTakeover() {
+		return clientNoContextTakeover;
+	}
+	
+}
@@ -0,0 +1,172 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import be.nabu.libs.http.server.websockets.api.WebSocketExtension;
+import be.nabu.libs.http.server.websockets.api.WebSocketExtensionFactory;
+
+/**
+ * Negotiates permessage-deflate, the parameters are described in: https://tools.ietf.org/html/rfc7692#section-7.1
+ * The JDK deflater always uses a window of 15 bits, so offers that require us to deflate with a smaller window are declined and as a client we don't offer client_max_window_bits.
+ * We can inflate data that was deflated with any window size, so there are no restrictions on that side.
+ * We can always ask for no context takeover on either side, it costs compression ratio but saves memory per connection.
+ */
+public class PerMessageDeflateFactory implements WebSocketExtensionFactory {
+
+	private boolean server;
+	private boolean serverNoContextTakeover, clientNoContextTakeover;
+	private int level = Deflater.DEFAULT_COMPRESSION;
+	private long maxMessageSize;
+	private long maxDeflateSize = PerMessageDeflate.DEFAULT_MAX_DEFLATE_SIZE;
+	private CompressionPolicy policy;
+	
+	public PerMessageDeflateFactory(boolean server) {
+		this.server = server;
+	}
+	
+	@Override
+	public String getName() {
+		return PerMessageDeflate.NAME;
+	}
+
+	@Override
+	public int getReservedBits() {
+		return 4;
+	}
+
+	@Override
+	public WebSocketExtension accept(String path, Map<String, String> parameters) {
+		boolean serverNoContextTakeover = this.serverNoContextTakeover, clientNoContextTakeover = this.clientNoContextTakeover;
+		for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+			if (parameter.getKey().equals("server_no_context_takeover") && parameter.getValue() == null) {
+				serverNoContextTakeover = true;
+			}
+			else if (parameter.getKey().equals("client_no_context_takeover") && parameter.getValue() == null) {
+				clientNoContextTakeover = true;
+			}
+			// we can only deflate with the full window
+			else if (parameter.getKey().equals("server_max_window_bits")) {
+				if (!"15".equals(parameter.getValue())) {
+					return null;
+				}
+			}
+			// the client may deflate with any window it wants, we don't need to restrict it
+			else if (parameter.getKey().equals("client_max_window_bits")) {
+				if (parameter.getValue() != null && !isWindowBits(parameter.getValue())) {
+					return null;
+				}
+			}
+			else {
+				return null;
+			}
+		}
+		PerMessageDeflate extension = new PerMessageDeflate(server, serverNoContextTakeover, clientNoContextTakeover, level, maxMessageSize, policy, path);
+		extension.setMaxDeflateSize(maxDeflateSize);
+		return extension;
+	}
+
+	@Override
+	public String getOffer() {
+		return PerMessageDeflate.NAME;
+	}
+
+	@Override
+	public WebSocketExtension accepted(String path, Map<String, String> parameters) {
+		boolean serverNoContextTakeover = false, clientNoContextTakeover = false;
+		for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+			if (parameter.getKey().equals("server_no_context_takeover") && parameter.getValue() == null) {
+				serverNoContextTakeover = true;
+			}
+			else if (parameter.getKey().equals("client_no_context_takeover") && parameter.getValue() == null) {
+				clientNoContextTakeover = true;
+			}
+			else if (!parameter.getKey().equals("server_max_window_bits") || !isWindowBits(parameter.getValue())) {
+				throw new IllegalStateException("The server responded with an unsupported " + PerMessageDeflate.NAME + " parameter: " + parameter.getKey());
+			}
+		}
+		PerMessageDeflate extension = new PerMessageDeflate(server, serverNoContextTakeover, clientNoContextTakeover, level, maxMessageSize, policy, path);
+		extension.setMaxDeflateSize(maxDeflateSize);
+		return extension;
+	}
+	
+	private static boolean isWindowBits(String value) {
+		if (value == null || !value.matches("[0-9]{1,2}")) {
+			return false;
+		}
+		int bits = Integer.parseInt(value);
+		return bits >= 8 && bits <= 15;
+	}
+
+	public boolean isServerNoContextTakeover() {
+		return serverNoContextTakeover;
+	}
+
+	public void setServerNoContextTakeover(boolean serverNoContextTakeover) {
+		this.serverNoContextTakeover = serverNoContextTakeover;
+	}
+
+	public boolean isClientNoContextTakeover() {
+		return clientNoContextTakeover;
+	}
+
+	public void setClientNoContextTakeover(boolean clientNoContextTakeover) {
+		this.clientNoContextTakeover = clientNoContextTakeover;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	/**
+	 * The limit on the inflated size of incoming messages, see MessageInflater for the default
+	 */
+	public long getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	public void setMaxMessageSize(long maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * Outgoing messages larger than this are sent uncompressed, see PerMessageDeflate for the default
+	 */
+	public long getMaxDeflateSize() {
+		return maxDeflateSize;
+	}
+
+	public void setMaxDeflateSize(long maxDeflateSize) {
+		this.maxDeflateSize = maxDeflateSize;
+	}
+
+	public CompressionPolicy getPolicy() {
+		return policy;
+	}
+
+	public void setPolicy(CompressionPolicy policy) {
+		this.policy = policy;
+	}
+	
+}
@@ -0,0 +1,199 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.http.server.websockets.api.ClusterBroadcast;
+
+/**
+ * A bus over plain TCP on the loopback interface, it can be used to test multiple nodes (in one or more JVMs) on a single machine.
+ * Every node listens on its own port and connects to the ports of its peers, a batch is written to every peer as a single frame.
+ * Batches are delivered to the local listeners directly.
+ * A peer that sends a batch or broadcast larger than the configured maximum is dropped.
+ */
+public class TcpBroadcastBus extends BatchingBroadcastBus {
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private ServerSocket serverSocket;
+	private List<Peer> peers = new CopyOnWriteArrayList<Peer>();
+	private List<Socket> accepted = new CopyOnWriteArrayList<Socket>();
+	private volatile boolean closed;
+	private int maxBatchSize = 10000;
+	private int maxBroadcastSize = 16 * 1024 * 1024;
+	
+	/**
+	 * Use port 0 to pick a free port
+	 */
+	public TcpBroadcastBus(int port) throws IOException {
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "broadcast-bus-accept-" + getPort());
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+	
+	public void connect(int port) throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		socket.setTcpNoDelay(true);
+		peers.add(new Peer(socket));
+	}
+	
+	@Override
+	protected void send(List<ClusterBroadcast> batch) throws IOException {
+		for (Peer peer : peers) {
+			try {
+				peer.write(batch);
+			}
+			catch (IOException e) {
+				logger.warn("Dropping peer " + peer.socket.getRemoteSocketAddress(), e);
+				peers.remove(peer);
+				peer.socket.close();
+			}
+		}
+		deliver(batch);
+	}
+	
+	private void accept() {
+		while (!closed) {
+			try {
+				final Socket socket = serverSocket.accept();
+				accepted.add(socket);
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						read(socket);
+					}
+				}, "broadcast-bus-read-" + socket.getRemoteSocketAddress());
+				thread.setDaemon(true);
+				thread.start();
+			}
+			catch (IOException e) {
+				if (!closed) {
+					logger.error("Could not accept broadcast bus connection", e);
+				}
+			}
+		}
+	}
+	
+	private void read(Socket socket) {
+		try {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			while (!closed) {
+				int size = input.readInt();
+				if (size < 0 || size > maxBatchSize) {
+					throw new IOException("Invalid batch size " + size + ", the maximum is " + maxBatchSize);
+				}
+				List<ClusterBroadcast> batch = new ArrayList<ClusterBroadcast>(size);
+				for (int i = 0; i < size; i++) {
+					batch.add(ClusterBroadcastImpl.read(input, maxBroadcastSize));
+				}
+				deliver(batch);
+			}
+		}
+		catch (EOFException e) {
+			// the peer closed the connection
+		}
+		catch (IOException e) {
+			if (!closed) {
+				logger.error("Could not read from broadcast bus connection", e);
+			}
+		}
+		finally {
+			accepted.remove(socket);
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		super.close();
+		closed = true;
+		serverSocket.close();
+		for (Peer peer : peers) {
+			peer.socket.close();
+		}
+		for (Socket socket : accepted) {
+			socket.close();
+		}
+	}
+	
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * The maximum size of the data of a single broadcast
+	 */
+	public int getMaxBroadcastSize() {
+		return maxBroadcastSize;
+	}
+
+	public void setMaxBroadcastSize(int maxBroadcastSize) {
+		this.maxBroadcastSize = maxBroadcastSize;
+	}
+
+	private static class Peer {
+		private Socket socket;
+		private DataOutputStream output;
+		
+		public Peer(Socket socket) throws IOException {
+			this.socket = socket;
+			this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+		
+		public synchronized void write(List<ClusterBroadcast> batch) throws IOException {
+			output.writeInt(batch.size());
+			for (ClusterBroadcast broadcast : batch) {
+				ClusterBroadcastImpl.write(broadcast, output);
+			}
+			output.flush();
+		}
+	}
+}
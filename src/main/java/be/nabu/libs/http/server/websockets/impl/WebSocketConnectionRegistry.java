@@ -0,0 +1,348 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
+import be.nabu.libs.http.server.websockets.api.WebSocketRequest;
+import be.nabu.libs.http.server.websockets.util.TopicIndex;
+import be.nabu.libs.nio.api.NIOServer;
+import be.nabu.libs.nio.api.Pipeline;
+import be.nabu.libs.nio.api.StandardizedMessagePipeline;
+
+/**
+ * Keeps track of the websocket connections of a server, indexed by path, user, device and host.
+ * Connections are added when they are upgraded and removed when the connection is closed (a close frame was sent or the remote end closed the socket).
+ * The server can also close a connection without us knowing (idle timeout, io errors, shutdown...), lookups periodically drop the connections the server no longer has.
+ * This means a targeted lookup only touches the connections that can match rather than all the pipelines on the server.
+ * Connections can also subscribe to topics, publishing to a topic only touches the subscribers.
+ * The registered connections refer to their server, so the registry of a server is only released once it is removed when the server is stopped (see remove()).
+ */
+public class WebSocketConnectionRegistry {
+
+	private static Map<NIOServer, WebSocketConnectionRegistry> registries = Collections.synchronizedMap(new WeakHashMap<NIOServer, WebSocketConnectionRegistry>());
+	
+	private Map<WebSocketRequestParserFactory, Connection> connections = new ConcurrentHashMap<WebSocketRequestParserFactory, Connection>();
+	private Map<String, Set<Connection>> paths = new ConcurrentHashMap<String, Set<Connection>>(),
+		users = new ConcurrentHashMap<String, Set<Connection>>(),
+		devices = new ConcurrentHashMap<String, Set<Connection>>(),
+		hosts = new ConcurrentHashMap<String, Set<Connection>>();
+	private TopicIndex<StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage>> topics = new TopicIndex<StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage>>();
+	// a server without connections can still be released from the weak map, the connections themselves refer to the server so they have to be removed explicitly
+	private WeakReference<NIOServer> server;
+	// every registration gets a sequence number so a prune only considers connections that were registered before it looked at the server
+	private AtomicLong sequence = new AtomicLong();
+	/**
+	 * How often (in ms) a lookup checks the server for connections that were closed without a close frame, 0 checks on every lookup
+	 */
+	private long pruneInterval = 5000;
+	private volatile long lastPruned = System.currentTimeMillis();
+	
+	WebSocketConnectionRegistry(NIOServer server) {
+		this.server = new WeakReference<NIOServer>(server);
+	}
+	
+	public static WebSocketConnectionRegistry getInstance(NIOServer server) {
+		synchronized(registries) {
+			WebSocketConnectionRegistry registry = registries.get(server);
+			if (registry == null) {
+				registry = new WebSocketConnectionRegistry(server);
+				registries.put(server, registry);
+			}
+			return registry;
+		}
+	}
+	
+	/**
+	 * Closes the connections of the server and drops its registry, this should be called when the server is stopped
+	 */
+	public static void remove(NIOServer server) {
+		WebSocketConnectionRegistry registry = registries.remove(server);
+		if (registry != null) {
+			registry.closeAll();
+		}
+	}
+	
+	private void closeAll() {
+		for (WebSocketRequestParserFactory factory : new ArrayList<WebSocketRequestParserFactory>(connections.keySet())) {
+			// this also unregisters the connection
+			factory.close();
+		}
+	}
+	
+	public void register(StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline) {
+		WebSocketRequestParserFactory factory = (WebSocketRequestParserFactory) pipeline.getRequestParserFactory();
+		synchronized(this) {
+			// the connection was already closed before we could register it
+			if (factory.isClosed()) {
+				return;
+			}
+			Connection connection = new Connection(pipeline, sequence.incrementAndGet());
+			index(connection);
+			connections.put(factory, connection);
+			factory.setRegistry(this);
+		}
+	}
+	
+	public void unregister(StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline) {
+		unregister((WebSocketRequestParserFactory) pipeline.getRequestParserFactory());
+	}
+	
+	synchronized void unregister(WebSocketRequestParserFactory factory) {
+		Connection connection = connections.remove(factory);
+		if (connection != null) {
+			unindex(connection);
+			topics.unsubscribeAll(connection.pipeline);
+		}
+	}
+	
+	/**
+	 * Subscribes the connection to a topic (wildcards are allowed, see TopicIndex), the subscriptions are removed when the connection is closed
+	 */
+	public synchronized void subscribe(StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline, String topic) {
+		if (!connections.containsKey(pipeline.getRequestParserFactory())) {
+			throw new IllegalStateException("The connection is not registered or already closed");
+		}
+		topics.subscribe(topic, pipeline);
+	}
+	
+	public synchronized void unsubscribe(StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline, String topic) {
+		topics.unsubscribe(topic, pipeline);
+	}
+	
+	/**
+	 * The connections that have a subscription matching the topic
+	 */
+	public List<StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage>> getSubscribers(String topic) {
+		pruneIfDue();
+		List<StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage>> pipelines = new ArrayList<StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage>>(topics.getSubscribers(topic));
+		Iterator<StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage>> iterator = pipelines.iterator();
+		while (iterator.hasNext()) {
+			if (isClosed((WebSocketRequestParserFactory) iterator.next().getRequestParserFactory())) {
+				iterator.remove();
+			}
+		}
+		return pipelines;
+	}
+	
+	public Set<String> getSubscriptions(StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline) {
+		return topics.getSubscriptions(pipeline);
+	}
+	
+	/**
+	 * The token or device of a connection can be updated after the upgrade
+	 */
+	synchronized void reindex(WebSocketRequestParserFactory factory) {
+		Connection connection = connections.get(factory);
+		if (connection != null) {
+			unindex(connection);
+			connection.update();
+			index(connection);
+		}
+	}
+	
+	/**
+	 * All the connections on the given path, or all the connections if no path is given
+	 */
+	public List<StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage>> getPipelines(String path) {
+		return getPipelines(path, null, null, null);
+	}
+	
+	/**
+	 * Returns the connections on the path that have one of the given users, devices and hosts, a null or empty list means there is no restriction.
+	 * The index is built from the state at the time of the upgrade so this only narrows down the candidates: token validity, roles and the remote port still have to be checked.
+	 */
+	public List<StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage>> getPipelines(String path, List<String> users, List<String> devices, List<String> hosts) {
+		pruneIfDue();
+		List<Collection<Connection>> candidates = new ArrayList<Collection<Connection>>();
+		candidates.add(path == null ? connections.values() : get(paths, path));
+		if (users != null && !users.isEmpty()) {
+			candidates.add(get(this.users, users));
+		}
+		if (devices != null && !devices.isEmpty()) {
+			candidates.add(get(this.devices, devices));
+		}
+		if (hosts != null && !hosts.isEmpty()) {
+			candidates.add(get(this.hosts, hosts));
+		}
+		// we start from the smallest set and check the other criteria on the connection itself
+		Collection<Connection> smallest = null;
+		for (Collection<Connection> candidate : candidates) {
+			if (smallest == null || candidate.size() < smallest.size()) {
+				smallest = candidate;
+			}
+		}
+		List<StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage>> pipelines = new ArrayList<StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage>>();
+		for (Connection connection : smallest) {
+			if (isClosed((WebSocketRequestParserFactory) connection.pipeline.getRequestParserFactory())) {
+				continue;
+			}
+			if (path != null && !path.equals(connection.path)) {
+				continue;
+			}
+			if (users != null && !users.isEmpty() && !users.contains(connection.user)) {
+				continue;
+			}
+			if (devices != null && !devices.isEmpty() && !devices.contains(connection.device)) {
+				continue;
+			}
+			if (hosts != null && !hosts.isEmpty() && !hosts.contains(connection.host)) {
+				continue;
+			}
+			pipelines.add(connection.pipeline);
+		}
+		return pipelines;
+	}
+	
+	public int size() {
+		return connections.size();
+	}
+	
+	/**
+	 * Drops the connections that are no longer known to the server
+	 */
+	public void prune() {
+		NIOServer server = this.server.get();
+		// anything registered after this point is not considered, it might not be in the snapshot yet
+		long registered = sequence.get();
+		Set<Pipeline> alive = Collections.newSetFromMap(new IdentityHashMap<Pipeline, Boolean>());
+		if (server != null) {
+			for (Pipeline pipeline : server.getPipelines()) {
+				alive.add(pipeline);
+			}
+		}
+		for (Map.Entry<WebSocketRequestParserFactory, Connection> entry : connections.entrySet()) {
+			if (entry.getValue().sequence <= registered && !alive.contains(entry.getValue().pipeline)) {
+				// this also unregisters the connection
+				entry.getKey().close();
+			}
+		}
+		lastPruned = System.currentTimeMillis();
+	}
+	
+	private void pruneIfDue() {
+		if (System.currentTimeMillis() - lastPruned >= pruneInterval) {
+			prune();
+		}
+	}
+	
+	// a connection that is closed but not yet unregistered (for example because the registry was not yet set on it) is dropped on lookup
+	private boolean isClosed(WebSocketRequestParserFactory factory) {
+		if (factory.isClosed()) {
+			unregister(factory);
+			return true;
+		}
+		return false;
+	}
+	
+	public long getPruneInterval() {
+		return pruneInterval;
+	}
+
+	public void setPruneInterval(long pruneInterval) {
+		this.pruneInterval = pruneInterval;
+	}
+	
+	private Collection<Connection> get(Map<String, Set<Connection>> index, String key) {
+		Set<Connection> set = index.get(key);
+		return set == null ? Collections.<Connection>emptySet() : set;
+	}
+	
+	private Collection<Connection> get(Map<String, Set<Connection>> index, List<String> keys) {
+		if (keys.size() == 1) {
+			return get(index, keys.get(0));
+		}
+		List<Connection> result = new ArrayList<Connection>();
+		for (String key : keys) {
+			result.addAll(get(index, key));
+		}
+		return result;
+	}
+	
+	private void index(Connection connection) {
+		add(paths, connection.path, connection);
+		add(users, connection.user, connection);
+		add(devices, connection.device, connection);
+		add(hosts, connection.host, connection);
+	}
+	
+	private void unindex(Connection connection) {
+		remove(paths, connection.path, connection);
+		remove(users, connection.user, connection);
+		remove(devices, connection.device, connection);
+		remove(hosts, connection.host, connection);
+	}
+	
+	private static void add(Map<String, Set<Connection>> index, String key, Connection connection) {
+		if (key != null) {
+			Set<Connection> set = index.get(key);
+			if (set == null) {
+				set = ConcurrentHashMap.newKeySet();
+				index.put(key, set);
+			}
+			set.add(connection);
+		}
+	}
+	
+	private static void remove(Map<String, Set<Connection>> index, String key, Connection connection) {
+		if (key != null) {
+			Set<Connection> set = index.get(key);
+			if (set != null) {
+				set.remove(connection);
+				if (set.isEmpty()) {
+					index.remove(key);
+				}
+			}
+		}
+	}
+	
+	private static class Connection {
+		private StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline;
+		private String path, user, device, host;
+		private long sequence;
+		
+		public Connection(StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline, long sequence) {
+			this.pipeline = pipeline;
+			this.sequence = sequence;
+			SocketAddress address = pipeline.getSourceContext() == null ? null : pipeline.getSourceContext().getSocketAddress();
+			this.host = address instanceof InetSocketAddress ? ((InetSocketAddress) address).getHostString() : null;
+			update();
+		}
+		
+		private void update() {
+			WebSocketRequestParserFactory factory = (WebSocketRequestParserFactory) pipeline.getRequestParserFactory();
+			this.path = factory.getPath();
+			this.user = factory.getToken() == null ? null : factory.getToken().getName();
+			this.device = factory.getDevice() == null ? null : factory.getDevice().getDeviceId();
+		}
+	}
+}
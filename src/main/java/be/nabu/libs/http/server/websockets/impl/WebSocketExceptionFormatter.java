@@ -17,13 +17,19 @@
 
 package be.nabu.libs.http.server.websockets.impl;
 
+import java.nio.charset.Charset;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import be.nabu.libs.http.server.websockets.WebSocketCloseException;
+import be.nabu.libs.http.server.websockets.WebSocketUtils;
+import be.nabu.libs.http.server.websockets.api.CloseCode;
 import be.nabu.libs.http.server.websockets.api.OpCode;
 import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
 import be.nabu.libs.http.server.websockets.api.WebSocketRequest;
 import be.nabu.libs.nio.api.ExceptionFormatter;
+import be.nabu.utils.io.IOUtils;
 
 public class WebSocketExceptionFormatter implements ExceptionFormatter<WebSocketRequest, WebSocketMessage> {
 
@@ -32,8 +38,27 @@ public class WebSocketExceptionFormatter implements ExceptionFormatter<WebSocket
 	@Override
 	public WebSocketMessage format(WebSocketRequest request, Exception e) {
 		logger.warn("Closing websocket connection due to exception", e);
-		// TODO: according to spec http://tools.ietf.org/html/rfc6455#section-5.5.1 you can send a 2-byte code followed by a UTF-8 encoded string explaining what went wrong
+		Throwable throwable = e;
+		while (throwable != null) {
+			if (throwable instanceof WebSocketCloseException) {
+				return newClose(((WebSocketCloseException) throwable).getCode(), throwable.getMessage());
+			}
+			throwable = throwable.getCause();
+		}
 		return new WebSocketMessageImpl(OpCode.CLOSE, true, 0l, null);
 	}
+	
+	/**
+	 * According to spec http://tools.ietf.org/html/rfc6455#section-5.5.1 you can send a 2-byte code followed by a UTF-8 encoded string explaining what went wrong
+	 * The whole payload of a control frame can not exceed 125 bytes
+	 */
+	public static WebSocketMessage newClose(CloseCode code, String reason) {
+		byte [] reasonBytes = reason == null ? new byte[0] : reason.getBytes(Charset.forName("UTF-8"));
+		byte [] bytes = new byte[2 + Math.min(reasonBytes.length, 123)];
+		bytes[0] = (byte) (code.getCode() >> 8);
+		bytes[1] = (byte) code.getCode();
+		System.arraycopy(reasonBytes, 0, bytes, 2, bytes.length - 2);
+		return WebSocketUtils.newMessage(OpCode.CLOSE, true, bytes.length, IOUtils.wrap(bytes, true));
+	}
 
 }
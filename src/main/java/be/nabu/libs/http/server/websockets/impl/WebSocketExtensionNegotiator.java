@@ -0,0 +1,210 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.http.server.websockets.api.WebSocketExtension;
+import be.nabu.libs.http.server.websockets.api.WebSocketExtensionFactory;
+import be.nabu.utils.mime.api.Header;
+
+/**
+ * Parses and builds the Sec-WebSocket-Extensions headers.
+ */
+public class WebSocketExtensionNegotiator {
+
+	public static final String HEADER = "Sec-WebSocket-Extensions";
+	
+	/**
+	 * An extension element in the header: the name with its parameters
+	 */
+	public static class ExtensionElement {
+		private String name;
+		private Map<String, String> parameters = new LinkedHashMap<String, String>();
+		
+		public String getName() {
+			return name;
+		}
+		public Map<String, String> getParameters() {
+			return parameters;
+		}
+	}
+	
+	/**
+	 * Server side: accepts the offers in the order the client sent them, an extension is accepted at most once and the reserved bits of accepted extensions can not overlap
+	 */
+	public static List<WebSocketExtension> negotiate(Header [] headers, String path, List<WebSocketExtensionFactory> factories) {
+		List<WebSocketExtension> extensions = new ArrayList<WebSocketExtension>();
+		int reservedBits = 0;
+		for (ExtensionElement element : parse(headers)) {
+			WebSocketExtensionFactory factory = getFactory(factories, element.getName());
+			if (factory == null || (factory.getReservedBits() & reservedBits) != 0 || getExtension(extensions, element.getName()) != null) {
+				continue;
+			}
+			WebSocketExtension extension = factory.accept(path, element.getParameters());
+			if (extension != null) {
+				extensions.add(extension);
+				reservedBits |= extension.getReservedBits();
+			}
+		}
+		return extensions;
+	}
+	
+	/**
+	 * Client side: interprets the response of the server, it can only contain extensions we offered and they must not overlap
+	 */
+	public static List<WebSocketExtension> accept(Header [] responseHeaders, Header [] requestHeaders, String path, List<WebSocketExtensionFactory> factories) {
+		List<String> offered = new ArrayList<String>();
+		for (ExtensionElement element : parse(requestHeaders)) {
+			offered.add(element.getName());
+		}
+		List<WebSocketExtension> extensions = new ArrayList<WebSocketExtension>();
+		int reservedBits = 0;
+		for (ExtensionElement element : parse(responseHeaders)) {
+			WebSocketExtensionFactory factory = getFactory(factories, element.getName());
+			if (factory == null || !offered.contains(element.getName())) {
+				throw new IllegalStateException("The server accepted the extension '" + element.getName() + "' which was not offered");
+			}
+			else if (getExtension(extensions, element.getName()) != null) {
+				throw new IllegalStateException("The server accepted the extension '" + element.getName() + "' multiple times");
+			}
+			WebSocketExtension extension = factory.accepted(path, element.getParameters());
+			if ((extension.getReservedBits() & reservedBits) != 0) {
+				throw new IllegalStateException("The extension '" + element.getName() + "' uses reserved bits that are already in use");
+			}
+			extensions.add(extension);
+			reservedBits |= extension.getReservedBits();
+		}
+		return extensions;
+	}
+	
+	/**
+	 * Client side: the value of the header to offer the given extensions
+	 */
+	public static String offer(List<WebSocketExtensionFactory> factories) {
+		StringBuilder builder = new StringBuilder();
+		for (WebSocketExtensionFactory factory : factories) {
+			if (builder.length() > 0) {
+				builder.append(", ");
+			}
+			builder.append(factory.getOffer());
+		}
+		return builder.toString();
+	}
+	
+	/**
+	 * Server side: the value of the header to respond with, null if no extensions were accepted
+	 */
+	public static String respond(List<WebSocketExtension> extensions) {
+		if (extensions.isEmpty()) {
+			return null;
+		}
+		StringBuilder builder = new StringBuilder();
+		for (WebSocketExtension extension : extensions) {
+			if (builder.length() > 0) {
+				builder.append(", ");
+			}
+			builder.append(extension.getResponse());
+		}
+		return builder.toString();
+	}
+	
+	public static int getReservedBits(List<WebSocketExtension> extensions) {
+		int reservedBits = 0;
+		for (WebSocketExtension extension : extensions) {
+			reservedBits |= extension.getReservedBits();
+		}
+		return reservedBits;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static <T extends WebSocketExtension> T getExtension(List<WebSocketExtension> extensions, String name) {
+		for (WebSocketExtension extension : extensions) {
+			if (extension.getName().equalsIgnoreCase(name)) {
+				return (T) extension;
+			}
+		}
+		return null;
+	}
+	
+	private static WebSocketExtensionFactory getFactory(List<WebSocketExtensionFactory> factories, String name) {
+		if (factories != null) {
+			for (WebSocketExtensionFactory factory : factories) {
+				if (factory.getName().equalsIgnoreCase(name)) {
+					return factory;
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Parses all the extension elements in the headers, elements with duplicate parameters are invalid and skipped
+	 */
+	public static List<ExtensionElement> parse(Header [] headers) {
+		List<ExtensionElement> elements = new ArrayList<ExtensionElement>();
+		if (headers == null) {
+			return elements;
+		}
+		for (Header header : headers) {
+			if (!HEADER.equalsIgnoreCase(header.getName())) {
+				continue;
+			}
+			for (String extension : getFullValue(header).split(",")) {
+				String [] parts = extension.split(";");
+				if (parts[0].trim().isEmpty()) {
+					continue;
+				}
+				ExtensionElement element = new ExtensionElement();
+				element.name = parts[0].trim().toLowerCase();
+				boolean valid = true;
+				for (int i = 1; i < parts.length; i++) {
+					String part = parts[i].trim();
+					if (part.isEmpty()) {
+						continue;
+					}
+					int index = part.indexOf('=');
+					String name = (index < 0 ? part : part.substring(0, index)).trim().toLowerCase();
+					String value = index < 0 ? null : part.substring(index + 1).trim().replaceAll("^\"|\"$", "");
+					if (element.parameters.containsKey(name)) {
+						valid = false;
+						break;
+					}
+					element.parameters.put(name, value);
+				}
+				if (valid) {
+					elements.add(element);
+				}
+			}
+		}
+		return elements;
+	}
+	
+	private static String getFullValue(Header header) {
+		StringBuilder builder = new StringBuilder(header.getValue());
+		if (header.getComments() != null) {
+			for (String comment : header.getComments()) {
+				builder.append(";").append(comment);
+			}
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,112 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.InputStream;
+import java.util.List;
+
+import be.nabu.libs.authentication.api.Device;
+import be.nabu.libs.authentication.api.Token;
+import be.nabu.libs.http.server.websockets.api.OpCode;
+import be.nabu.libs.http.server.websockets.api.WebSocketFragment;
+import be.nabu.libs.http.server.websockets.api.WebSocketRequest;
+
+public class WebSocketFragmentImpl implements WebSocketFragment {
+
+	private WebSocketRequest request;
+	private long messageId, offset;
+	private OpCode messageOpCode;
+
+	WebSocketFragmentImpl(WebSocketRequest request, long messageId, long offset, OpCode messageOpCode) {
+		this.request = request;
+		this.messageId = messageId;
+		this.offset = offset;
+		this.messageOpCode = messageOpCode;
+	}
+	
+	@Override
+	public long getMessageId() {
+		return messageId;
+	}
+
+	@Override
+	public long getOffset() {
+		return offset;
+	}
+
+	@Override
+	public OpCode getMessageOpCode() {
+		return messageOpCode;
+	}
+	
+	@Override
+	public OpCode getOpCode() {
+		return request.getOpCode();
+	}
+
+	@Override
+	public boolean isFinal() {
+		return request.isFinal();
+	}
+
+	@Override
+	public long getSize() {
+		return request.getSize();
+	}
+
+	@Override
+	public InputStream getData() {
+		return request.getData();
+	}
+
+	@Override
+	public Token getToken() {
+		return request.getToken();
+	}
+
+	@Override
+	public Device getDevice() {
+		return request.getDevice();
+	}
+
+	@Override
+	public String getPath() {
+		return request.getPath();
+	}
+
+	@Override
+	public double getVersion() {
+		return request.getVersion();
+	}
+
+	@Override
+	public boolean isMasked() {
+		return request.isMasked();
+	}
+
+	@Override
+	public boolean isTextValidated() {
+		return request.isTextValidated();
+	}
+
+	@Override
+	public List<String> getProtocols() {
+		return request.getProtocols();
+	}
+
+}
@@ -18,22 +18,47 @@
 package be.nabu.libs.http.server.websockets.impl;
 
 import java.io.IOException;
-import java.util.Random;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
 
+import be.nabu.libs.http.server.websockets.api.OpCode;
+import be.nabu.libs.http.server.websockets.api.WebSocketExtension;
 import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
+import be.nabu.libs.http.server.websockets.util.BufferPool;
+import be.nabu.libs.http.server.websockets.util.WebSocketMask;
 import be.nabu.libs.nio.api.MessageFormatter;
-import be.nabu.utils.codec.TranscoderUtils;
-import be.nabu.utils.codec.impl.XORMaskTranscoder;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.io.api.ByteBuffer;
 import be.nabu.utils.io.api.ReadableContainer;
-import be.nabu.utils.io.buffers.bytes.ByteBufferFactory;
 
 public class WebSocketMessageFormatter implements MessageFormatter<WebSocketMessage> {
 
-	private ByteBuffer header;
-	private byte[] maskingKey;
+	/**
+	 * The size of the chunks in which streamed data is masked
+	 */
+	private static final int MASK_SIZE = 4096;
+	
+	/**
+	 * The header is at most 14 bytes, it is encoded into the same array for every message.
+	 * This is safe because a formatter is only used for one connection and a message is fully written before the next one is formatted.
+	 * When the formatter is created by a factory, the array is shared by all the formatters of the connection.
+	 */
+	private byte [] headerBytes;
+	private int maskingKey;
 	private boolean mask;
+	private WebSocketMessageFormatterFactory factory;
+	/**
+	 * If set, small data messages that are queued for the same connection are combined into a single write, up to this amount of bytes
+	 */
+	private int coalesceBudget;
+	/**
+	 * If set, data messages that are larger are sent as multiple frames of at most this size
+	 */
+	private int fragmentSize;
+	private ControlLane controlLane;
+	private List<WebSocketExtension> extensions;
 	
 	public WebSocketMessageFormatter(boolean mask) {
 		this.mask = mask;
@@ -43,78 +68,298 @@ public class WebSocketMessageFormatter implements MessageFormatter<WebSocketMess
 	@Override
 	public ReadableContainer<ByteBuffer> format(WebSocketMessage message) {
 		try {
-			header = formatHeader(message);
-			header.close();
-			if (message.getSize() == 0) {
-				return header;
-			}
-			else {
-				ReadableContainer<ByteBuffer> data = mask ? TranscoderUtils.transcodeBytes(IOUtils.wrap(message.getData()), new XORMaskTranscoder(maskingKey)) : IOUtils.wrap(message.getData());
-				return IOUtils.chain(true, header, data);
+			// any prioritized control frames go first
+			ByteBuffer control = controlLane == null ? null : formatControl();
+			// if the message itself was already sent through the priority lane or we have already sent a close, there is nothing left to send
+			if (controlLane != null && (controlLane.wasSent(message) || controlLane.isCloseSent())) {
+				if (control == null) {
+					control = IOUtils.wrap(new byte[0], true);
+					control.close();
+				}
+				return control;
 			}
+			ReadableContainer<ByteBuffer> formatted = formatMessage(message);
+			return control == null ? formatted : IOUtils.chain(true, control, formatted);
 		}
 		catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 	
-	private ByteBuffer formatHeader(WebSocketMessage message) throws IOException {
-		ByteBuffer buffer = ByteBufferFactory.getInstance().newInstance(14, false);
-		byte [] single = new byte[1];
-		
-		// first byte: final & rsv & opcode
-		byte firstByte = 0;
-		if (message.isFinal()) {
-			firstByte = (byte) (firstByte | 128);
+	@SuppressWarnings("unchecked")
+	private ReadableContainer<ByteBuffer> formatMessage(WebSocketMessage message) throws IOException {
+		message = applyExtensions(message);
+		// pre-encoded frames are shared read-only between connections, we just need a new wrapper around them
+		if (!mask && message instanceof EncodedWebSocketMessage && (fragmentSize <= 0 || message.getSize() <= fragmentSize)) {
+			ByteBuffer frame = IOUtils.wrap(((EncodedWebSocketMessage) message).getFrame(), true);
+			frame.close();
+			return frame;
 		}
-		firstByte |= message.getOpCode().getCode();
-		single[0] = firstByte;
-		buffer.write(single);
-		
-		// second byte: mask & length
-		byte secondByte = 0;
+		if (fragmentSize > 0 && !message.getOpCode().isControl() && message.getSize() > fragmentSize) {
+			return new FragmentingContainer(this, message, fragmentSize);
+		}
+		// file regions are read directly from the file channel rather than through streams
+		if (!mask && message instanceof FileWebSocketMessage && message.getSize() > 0) {
+			int length = formatHeader(message);
+			ByteBuffer header = IOUtils.wrap(headerBytes, 0, length, true);
+			header.close();
+			return IOUtils.chain(true, header, new FileChannelContainer((FileWebSocketMessage) message));
+		}
+		ReadableContainer<ByteBuffer> coalesced = coalesce(message);
+		if (coalesced != null) {
+			return coalesced;
+		}
+		int length = formatHeader(message);
+		ByteBuffer header = IOUtils.wrap(headerBytes, 0, length, true);
+		header.close();
+		if (message.getSize() == 0) {
+			return header;
+		}
+		else {
+			ReadableContainer<ByteBuffer> data = mask ? new MaskingContainer(message.getData(), maskingKey, MASK_SIZE) : IOUtils.wrap(message.getData());
+			return IOUtils.chain(true, header, data);
+		}
+	}
+	
+	/**
+	 * Writes the header into the header bytes and returns the length of the header
+	 */
+	private int formatHeader(WebSocketMessage message) {
+		if (headerBytes == null) {
+			headerBytes = factory == null ? new byte[14] : factory.getHeaderBytes();
+		}
+		int length = writeHeader(headerBytes, 0, message.isFinal(), message.getReservedBits(), message.getOpCode(), message.getSize());
+		// write the masking key if required
 		if (mask) {
-			secondByte = (byte) (secondByte | 128);
-		}
-		byte [] extendedLength = null;
-		java.nio.ByteBuffer byteBuffer = java.nio.ByteBuffer.allocate(Long.BYTES);
-		byteBuffer.putLong(message.getSize());
-		byteBuffer.flip();
-		// this sort of ignores the fact that the short is signed, but all it does (or should do) is use the 64 bit field for a value that might've also fit in the 16 bit one, nothing in the spec prevents that
-//		if (message.getSize() > Short.MAX_VALUE) {
+			headerBytes[1] |= 128;
+			maskingKey = WebSocketMask.newKey();
+			headerBytes[length++] = (byte) (maskingKey >>> 24);
+			headerBytes[length++] = (byte) (maskingKey >>> 16);
+			headerBytes[length++] = (byte) (maskingKey >>> 8);
+			headerBytes[length++] = (byte) maskingKey;
+		}
+		return length;
+	}
+	
+	/**
+	 * Writes an unmasked header at the given offset and returns its length (2, 4 or 10 bytes)
+	 */
+	static int writeHeader(byte [] bytes, int offset, boolean isFinal, int reservedBits, OpCode opCode, long size) {
+		// first byte: final & rsv & opcode
+		bytes[offset] = (byte) ((isFinal ? 128 : 0) | (reservedBits << 4) | opCode.getCode());
+		
+		// second byte: mask & length, followed by any extended length
 		// the maximum value of an unsigned short
-		// apparently it DOES matter, browsers will throw an: Invalid frame header
-		if (message.getSize() > 65535) {
+		// it does matter that we use the smallest possible encoding, browsers will throw an: Invalid frame header
+		if (size > 65535) {
 			// we go for 64 bits
-			secondByte |= 127;
-			extendedLength = new byte[8];
-			byteBuffer.get(extendedLength);
+			bytes[offset + 1] = 127;
+			for (int i = 0; i < 8; i++) {
+				bytes[offset + 2 + i] = (byte) (size >>> (56 - (i * 8)));
+			}
+			return 10;
 		}
-		else if (message.getSize() > 125) {
+		else if (size > 125) {
 			// we go for 16 bit
-			secondByte |= 126;
-			extendedLength = new byte[2];
-			byteBuffer.position(6);
-			byteBuffer.get(extendedLength);
+			bytes[offset + 1] = 126;
+			bytes[offset + 2] = (byte) (size >>> 8);
+			bytes[offset + 3] = (byte) size;
+			return 4;
 		}
 		else {
-			secondByte += message.getSize();
+			bytes[offset + 1] = (byte) size;
+			return 2;
 		}
-		single[0] = secondByte;
-		buffer.write(single);
-		
-		// write any extended length header parts if required
-		if (extendedLength != null) {
-			buffer.write(extendedLength);
+	}
+	
+	/**
+	 * The size of the encoded frame for a message
+	 */
+	long getFrameSize(WebSocketMessage message) {
+		return message.getSize() + (message.getSize() > 65535 ? 10 : (message.getSize() > 125 ? 4 : 2)) + (mask ? 4 : 0);
+	}
+	
+	/**
+	 * Takes the data messages that are already queued behind the given message and encodes them all in one array, as long as they fit within the budget.
+	 * This allows them to be written to the socket in one go rather than one (small) write per message.
+	 * Control frames are never taken from the queue, they stay in line for the writer (and the keep alive decider) to see.
+	 * Messages that have to be fragmented are not taken either, they are formatted on their own.
+	 */
+	private ReadableContainer<ByteBuffer> coalesce(WebSocketMessage message) throws IOException {
+		if (coalesceBudget <= 0 || message.getOpCode().isControl() || getFrameSize(message) > coalesceBudget) {
+			return null;
 		}
-		
-		// write the masking key if required
+		Queue<WebSocketMessage> queue = getQueue();
+		if (queue == null || queue.isEmpty()) {
+			return null;
+		}
+		List<WebSocketMessage> messages = new ArrayList<WebSocketMessage>();
+		messages.add(message);
+		long total = getFrameSize(message);
+		while (true) {
+			WebSocketMessage next = queue.peek();
+			if (next == null || next.getOpCode().isControl() || (fragmentSize > 0 && next.getSize() > fragmentSize) || total + getFrameSize(next) > coalesceBudget) {
+				break;
+			}
+			// only the writer takes from the queue, so the peeked message is the one we poll
+			// extensions are applied after polling, messages have to be transformed in the order they are sent
+			queue.poll();
+			next = applyExtensions(next);
+			messages.add(next);
+			total += getFrameSize(next);
+		}
+		if (messages.size() == 1) {
+			return null;
+		}
+		// any control frames that go before this are encoded in their own array
+		byte [] bytes = BufferPool.getInstance().borrow((int) total);
+		int position = 0;
+		try {
+			for (WebSocketMessage single : messages) {
+				position = encode(single, bytes, position);
+			}
+		}
+		catch (IOException e) {
+			BufferPool.getInstance().release(bytes);
+			throw e;
+		}
+		return new FrameContainer(bytes, position);
+	}
+	
+	/**
+	 * The outgoing queue of the connection this formatter is writing for, it is set on the factory when the connection is upgraded
+	 */
+	Queue<WebSocketMessage> getQueue() {
+		return factory == null ? null : factory.getResponseQueue();
+	}
+	
+	int encode(WebSocketMessage message, byte [] bytes, int position) throws IOException {
+		if (!mask && message instanceof EncodedWebSocketMessage) {
+			byte[] frame = ((EncodedWebSocketMessage) message).getFrame();
+			System.arraycopy(frame, 0, bytes, position, frame.length);
+			return position + frame.length;
+		}
+		int size = (int) message.getSize();
+		if (size == 0) {
+			return encode(message.isFinal(), message.getReservedBits(), message.getOpCode(), null, 0, bytes, position);
+		}
+		InputStream data = message.getData();
+		try {
+			return encode(message.isFinal(), message.getReservedBits(), message.getOpCode(), data, size, bytes, position);
+		}
+		finally {
+			data.close();
+		}
+	}
+	
+	/**
+	 * Encodes a single frame with the given amount of data from the stream, this returns the position after the frame
+	 */
+	int encode(boolean isFinal, int reservedBits, OpCode opCode, InputStream data, int size, byte [] bytes, int position) throws IOException {
+		int start = position;
+		position += writeHeader(bytes, position, isFinal, reservedBits, opCode, size);
+		int key = 0;
 		if (mask) {
-			maskingKey = new byte[4];
-			new Random().nextBytes(maskingKey);
-			buffer.write(maskingKey);
+			bytes[start + 1] |= 128;
+			key = WebSocketMask.newKey();
+			bytes[position++] = (byte) (key >>> 24);
+			bytes[position++] = (byte) (key >>> 16);
+			bytes[position++] = (byte) (key >>> 8);
+			bytes[position++] = (byte) key;
+		}
+		if (size > 0) {
+			int read = 0;
+			while (read < size) {
+				int amount = data.read(bytes, position + read, size - read);
+				if (amount < 0) {
+					throw new IOException("The message data is smaller than the indicated size " + size);
+				}
+				read += amount;
+			}
+			if (mask) {
+				WebSocketMask.apply(bytes, position, size, key, 0);
+			}
+		}
+		return position + size;
+	}
+
+	/**
+	 * Takes the next control frame from the priority lane so it can be sent ahead of (or in between the fragments of) data messages
+	 */
+	WebSocketMessage pollControl() {
+		return controlLane == null ? null : controlLane.poll();
+	}
+	
+	boolean isCloseSent() {
+		return controlLane != null && controlLane.isCloseSent();
+	}
+	
+	/**
+	 * Encodes all the control frames that are waiting in the priority lane
+	 */
+	private ByteBuffer formatControl() throws IOException {
+		List<WebSocketMessage> messages = null;
+		WebSocketMessage control;
+		long total = 0;
+		while ((control = pollControl()) != null) {
+			if (messages == null) {
+				messages = new ArrayList<WebSocketMessage>();
+			}
+			messages.add(control);
+			total += getFrameSize(control);
+		}
+		if (messages == null) {
+			return null;
+		}
+		byte [] bytes = new byte[(int) total];
+		int position = 0;
+		for (WebSocketMessage single : messages) {
+			position = encode(single, bytes, position);
 		}
+		ByteBuffer buffer = IOUtils.wrap(bytes, 0, position, true);
+		buffer.close();
 		return buffer;
 	}
+	
+	/**
+	 * Passes a complete data message through the negotiated extensions (e.g. compression) in order, any other message is sent as is.
+	 * Fragmented messages that are sent by the application are not transformed, nor are messages that already have reserved bits set (e.g. compressed once for a broadcast).
+	 */
+	private WebSocketMessage applyExtensions(WebSocketMessage message) throws IOException {
+		if (extensions == null || extensions.isEmpty() || !message.isFinal() || message.getReservedBits() != 0 || message.getOpCode().isControl() || OpCode.CONTINUATION.equals(message.getOpCode())) {
+			return message;
+		}
+		for (WebSocketExtension extension : extensions) {
+			message = extension.encode(message);
+		}
+		return message;
+	}
+	
+	void setExtensions(List<WebSocketExtension> extensions) {
+		this.extensions = extensions;
+	}
+	
+	void setFactory(WebSocketMessageFormatterFactory factory) {
+		this.factory = factory;
+	}
+	
+	void setControlLane(ControlLane controlLane) {
+		this.controlLane = controlLane;
+	}
+	
+	public int getCoalesceBudget() {
+		return coalesceBudget;
+	}
 
+	public void setCoalesceBudget(int coalesceBudget) {
+		this.coalesceBudget = coalesceBudget;
+	}
+
+	public int getFragmentSize() {
+		return fragmentSize;
+	}
+
+	public void setFragmentSize(int fragmentSize) {
+		this.fragmentSize = fragmentSize;
+	}
 }
@@ -17,6 +17,10 @@
 
 package be.nabu.libs.http.server.websockets.impl;
 
+import java.util.List;
+import java.util.Queue;
+
+import be.nabu.libs.http.server.websockets.api.WebSocketExtension;
 import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
 import be.nabu.libs.nio.api.MessageFormatter;
 import be.nabu.libs.nio.api.MessageFormatterFactory;
@@ -24,6 +28,16 @@ import be.nabu.libs.nio.api.MessageFormatterFactory;
 public class WebSocketMessageFormatterFactory implements MessageFormatterFactory<WebSocketMessage> {
 
 	private boolean shouldMask;
+	private int coalesceBudget;
+	private int fragmentSize;
+	// the formatter factory is created per connection, so the lane is shared by all the formatters of that connection
+	private ControlLane controlLane = new ControlLane();
+	// the extensions that were negotiated for this connection
+	private List<WebSocketExtension> extensions;
+	// the formatters of a connection format one message at a time and a message is fully written before the next one is formatted, so they can share the header buffer
+	private byte [] headerBytes = new byte[14];
+	// the outgoing queue of the connection, coalescing takes the messages that are waiting in it
+	private Queue<WebSocketMessage> responseQueue;
 
 	public WebSocketMessageFormatterFactory(boolean shouldMask) {
 		this.shouldMask = shouldMask;
@@ -31,7 +45,56 @@ public class WebSocketMessageFormatterFactory implements MessageFormatterFactory
 	
 	@Override
 	public MessageFormatter<WebSocketMessage> newMessageFormatter() {
-		return new WebSocketMessageFormatter(shouldMask);
+		WebSocketMessageFormatter formatter = new WebSocketMessageFormatter(shouldMask);
+		formatter.setCoalesceBudget(coalesceBudget);
+		formatter.setFragmentSize(fragmentSize);
+		formatter.setControlLane(controlLane);
+		formatter.setExtensions(extensions);
+		formatter.setFactory(this);
+		return formatter;
+	}
+	
+	byte [] getHeaderBytes() {
+		return headerBytes;
+	}
+	
+	Queue<WebSocketMessage> getResponseQueue() {
+		return responseQueue;
+	}
+
+	/**
+	 * Coalescing only happens if the outgoing queue of the connection is set
+	 */
+	public void setResponseQueue(Queue<WebSocketMessage> responseQueue) {
+		this.responseQueue = responseQueue;
+	}
+
+	public int getCoalesceBudget() {
+		return coalesceBudget;
+	}
+
+	public void setCoalesceBudget(int coalesceBudget) {
+		this.coalesceBudget = coalesceBudget;
+	}
+
+	public int getFragmentSize() {
+		return fragmentSize;
+	}
+
+	public void setFragmentSize(int fragmentSize) {
+		this.fragmentSize = fragmentSize;
+	}
+
+	public ControlLane getControlLane() {
+		return controlLane;
+	}
+
+	public List<WebSocketExtension> getExtensions() {
+		return extensions;
+	}
+
+	public void setExtensions(List<WebSocketExtension> extensions) {
+		this.extensions = extensions;
 	}
 
 }
@@ -17,9 +17,13 @@
 
 package be.nabu.libs.http.server.websockets.impl;
 
+import java.io.IOException;
 import java.util.Map;
 
 import be.nabu.libs.events.api.EventDispatcher;
+import be.nabu.libs.http.server.websockets.WebSocketCloseException;
+import be.nabu.libs.http.server.websockets.WebSocketUtils;
+import be.nabu.libs.http.server.websockets.api.FragmentListener;
 import be.nabu.libs.http.server.websockets.api.OpCode;
 import be.nabu.libs.http.server.websockets.api.PongListener;
 import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
@@ -27,6 +31,7 @@ import be.nabu.libs.http.server.websockets.api.WebSocketRequest;
 import be.nabu.libs.nio.PipelineUtils;
 import be.nabu.libs.nio.api.SecurityContext;
 import be.nabu.libs.nio.api.SourceContext;
+import be.nabu.libs.nio.api.StandardizedMessagePipeline;
 import be.nabu.libs.nio.impl.EventDrivenMessageProcessor;
 
 public class WebSocketMessageProcessor extends EventDrivenMessageProcessor<WebSocketRequest, WebSocketMessage> {
@@ -38,15 +43,18 @@ public class WebSocketMessageProcessor extends EventDrivenMessageProcessor<WebSo
 		this.factory = webSocketMessageProcessorFactory;
 	}
 
-	// TODO: set max limits on chained data size or # of messages
+	// the limits on chained data size and # of fragments are enforced by the parser, it also rejects a new message while a fragmented one is still open (see WebSocketRequestParserFactory)
 	@Override
 	public WebSocketMessage process(SecurityContext securityContext, SourceContext sourceContext, WebSocketRequest request) {
-		if (OpCode.CLOSE.equals(request.getOpCode())) {
-			return new WebSocketMessageImpl(OpCode.CLOSE, true, 0, null);
+		if (request instanceof WebSocketRequestBatch) {
+			return processBatch(securityContext, sourceContext, (WebSocketRequestBatch) request);
+		}
+		else if (OpCode.CLOSE.equals(request.getOpCode())) {
+			return prioritize(new WebSocketMessageImpl(OpCode.CLOSE, true, 0, null));
 		}
 		// send back a PONG
 		else if (OpCode.PING.equals(request.getOpCode())) {
-			return new WebSocketMessageImpl(OpCode.PONG, true, 0, null);
+			return prioritize(new WebSocketMessageImpl(OpCode.PONG, true, 0, null));
 		}
 		// pongs can be ignored
 		else if (OpCode.PONG.equals(request.getOpCode())) {
@@ -57,6 +65,22 @@ public class WebSocketMessageProcessor extends EventDrivenMessageProcessor<WebSo
 			}
 			return null;
 		}
+		// extensions (e.g. decompression) transform the frames before anything else sees the data
+		try {
+			request = factory.decode(request);
+		}
+		catch (WebSocketCloseException e) {
+			return prioritize(WebSocketExceptionFormatter.newClose(e.getCode(), e.getMessage()));
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		// if we have a fragment listener, fragmented messages are streamed rather than buffered
+		FragmentListener fragmentListener = factory.getFragmentListener();
+		if (fragmentListener != null && (!request.isFinal() || factory.isStreaming())) {
+			fragmentListener.fragmentReceived(securityContext, sourceContext, factory.newFragment(request));
+			return null;
+		}
 		if (request.isFinal()) {
 			// Use the factory (one instance per pipeline) to buffer incoming requests for chaining
 			if (!factory.getChain().isEmpty()) {
@@ -72,5 +96,36 @@ public class WebSocketMessageProcessor extends EventDrivenMessageProcessor<WebSo
 		return null;
 	}
 
+	/**
+	 * The response is still returned so it ends up in the regular queue, but the formatter will send it ahead of any data that is queued before it.
+	 */
+	private WebSocketMessage prioritize(WebSocketMessage message) {
+		ControlLane lane = WebSocketUtils.getControlLane(WebSocketUtils.getPipeline());
+		if (lane != null) {
+			lane.add(message);
+		}
+		return message;
+	}
 	
+	/**
+	 * Only one response can be returned, any earlier responses are queued directly in the correct order.
+	 * A close is always returned so the keep alive decider sees it, the frames after it are not processed.
+	 */
+	private WebSocketMessage processBatch(SecurityContext securityContext, SourceContext sourceContext, WebSocketRequestBatch batch) {
+		StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline = WebSocketUtils.getPipeline();
+		WebSocketMessage pending = null;
+		for (WebSocketRequest request : batch.getRequests()) {
+			WebSocketMessage response = process(securityContext, sourceContext, request);
+			if (response != null) {
+				if (pending != null) {
+					pipeline.getResponseQueue().add(pending);
+				}
+				pending = response;
+				if (OpCode.CLOSE.equals(response.getOpCode())) {
+					break;
+				}
+			}
+		}
+		return pending;
+	}
 }
@@ -17,19 +17,41 @@
 
 package be.nabu.libs.http.server.websockets.impl;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 import be.nabu.libs.events.api.EventDispatcher;
+import be.nabu.libs.http.server.websockets.WebSocketCloseException;
+import be.nabu.libs.http.server.websockets.api.CloseCode;
+import be.nabu.libs.http.server.websockets.api.FragmentListener;
+import be.nabu.libs.http.server.websockets.api.OpCode;
+import be.nabu.libs.http.server.websockets.api.WebSocketExtension;
+import be.nabu.libs.http.server.websockets.api.WebSocketFragment;
 import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
 import be.nabu.libs.http.server.websockets.api.WebSocketRequest;
+import be.nabu.libs.http.server.websockets.util.Utf8Validator;
 import be.nabu.libs.nio.api.MessageProcessor;
 import be.nabu.libs.nio.api.MessageProcessorFactory;
+import be.nabu.utils.io.IOUtils;
 
 public class WebSocketMessageProcessorFactory implements MessageProcessorFactory<WebSocketRequest, WebSocketMessage> {
 
 	private EventDispatcher dispatcher;
 	private List<WebSocketRequest> chain = new ArrayList<WebSocketRequest>();
+	private FragmentListener fragmentListener;
+	// the state of the fragmented message that is currently being streamed
+	private long messageId, messageOffset;
+	private OpCode messageOpCode;
+	private boolean streaming;
+	// the extensions that were negotiated for this connection
+	private List<WebSocketExtension> extensions;
+	// the state of the incoming message that is being transformed by extensions, text is validated after decoding
+	private boolean decoding;
+	private OpCode decodingOpCode;
+	private boolean validateText = true;
+	private Utf8Validator textValidator = new Utf8Validator();
 
 	public WebSocketMessageProcessorFactory(EventDispatcher dispatcher) {
 		this.dispatcher = dispatcher;
@@ -43,5 +65,96 @@ public class WebSocketMessageProcessorFactory implements MessageProcessorFactory
 	List<WebSocketRequest> getChain() {
 		return chain;
 	}
+	
+	/**
+	 * Wraps the frame with the metadata of the message it belongs to and updates the streaming state
+	 */
+	WebSocketFragment newFragment(WebSocketRequest request) {
+		if (!streaming) {
+			streaming = true;
+			messageId++;
+			messageOffset = 0;
+			messageOpCode = request.getOpCode();
+		}
+		WebSocketFragment fragment = new WebSocketFragmentImpl(request, messageId, messageOffset, messageOpCode);
+		messageOffset += request.getSize();
+		if (request.isFinal()) {
+			streaming = false;
+		}
+		return fragment;
+	}
+	
+	boolean isStreaming() {
+		return streaming;
+	}
+	
+	/**
+	 * Passes the frame through the negotiated extensions in reverse order, they can replace the frame (e.g. with inflated data).
+	 * This has to be called for every data frame in order, the state of extensions can span messages.
+	 * Text messages that were transformed could not be validated by the parser, so they are validated here, whatever kind of request the extensions return.
+	 */
+	WebSocketRequest decode(WebSocketRequest request) throws IOException, WebSocketCloseException {
+		if (extensions == null || extensions.isEmpty()) {
+			return request;
+		}
+		if (!OpCode.CONTINUATION.equals(request.getOpCode())) {
+			decoding = request.getReservedBits() != 0;
+			decodingOpCode = request.getOpCode();
+			textValidator.reset();
+		}
+		for (int i = extensions.size() - 1; i >= 0; i--) {
+			request = extensions.get(i).decode(request);
+		}
+		if (decoding && validateText && OpCode.TEXT.equals(decodingOpCode)) {
+			// an extension can return any kind of request, if the data is not in memory we read it once to validate it and keep the bytes
+			WebSocketRequestImpl decoded = request instanceof WebSocketRequestImpl && ((WebSocketRequestImpl) request).getBytes() != null
+				? (WebSocketRequestImpl) request
+				: WebSocketRequestImpl.newRequest(request, toBytes(request));
+			byte [] bytes = decoded.getBytes();
+			if (!textValidator.validate(bytes, 0, bytes.length) || (request.isFinal() && !textValidator.isComplete())) {
+				throw new WebSocketCloseException(CloseCode.INVALID_DATA, "The text message is not valid UTF-8");
+			}
+			decoded.setTextValidated(true);
+			request = decoded;
+		}
+		return request;
+	}
+
+	private static byte [] toBytes(WebSocketRequest request) throws IOException {
+		InputStream data = request.getData();
+		if (data == null) {
+			return new byte[0];
+		}
+		try {
+			return IOUtils.toBytes(IOUtils.wrap(data));
+		}
+		finally {
+			data.close();
+		}
+	}
+	
+	public List<WebSocketExtension> getExtensions() {
+		return extensions;
+	}
+
+	public void setExtensions(List<WebSocketExtension> extensions) {
+		this.extensions = extensions;
+	}
+
+	public boolean isValidateText() {
+		return validateText;
+	}
+
+	public void setValidateText(boolean validateText) {
+		this.validateText = validateText;
+	}
+
+	public FragmentListener getFragmentListener() {
+		return fragmentListener;
+	}
+
+	public void setFragmentListener(FragmentListener fragmentListener) {
+		this.fragmentListener = fragmentListener;
+	}
 
 }
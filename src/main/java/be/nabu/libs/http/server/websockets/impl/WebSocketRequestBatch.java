@@ -0,0 +1,102 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.InputStream;
+import java.util.List;
+
+import be.nabu.libs.authentication.api.Device;
+import be.nabu.libs.authentication.api.Token;
+import be.nabu.libs.http.server.websockets.api.OpCode;
+import be.nabu.libs.http.server.websockets.api.WebSocketRequest;
+
+/**
+ * A number of frames that were parsed in a single push, the message processor handles them one by one.
+ * The frame specific methods return the values of the first frame.
+ */
+public class WebSocketRequestBatch implements WebSocketRequest {
+
+	private List<WebSocketRequest> requests;
+
+	public WebSocketRequestBatch(List<WebSocketRequest> requests) {
+		if (requests == null || requests.isEmpty()) {
+			throw new IllegalArgumentException("No requests found");
+		}
+		this.requests = requests;
+	}
+	
+	public List<WebSocketRequest> getRequests() {
+		return requests;
+	}
+
+	@Override
+	public OpCode getOpCode() {
+		return requests.get(0).getOpCode();
+	}
+
+	@Override
+	public boolean isFinal() {
+		return requests.get(0).isFinal();
+	}
+
+	@Override
+	public long getSize() {
+		return requests.get(0).getSize();
+	}
+
+	@Override
+	public InputStream getData() {
+		return requests.get(0).getData();
+	}
+
+	@Override
+	public Token getToken() {
+		return requests.get(0).getToken();
+	}
+
+	@Override
+	public Device getDevice() {
+		return requests.get(0).getDevice();
+	}
+
+	@Override
+	public String getPath() {
+		return requests.get(0).getPath();
+	}
+
+	@Override
+	public double getVersion() {
+		return requests.get(0).getVersion();
+	}
+
+	@Override
+	public boolean isMasked() {
+		return requests.get(0).isMasked();
+	}
+
+	@Override
+	public boolean isTextValidated() {
+		return requests.get(0).isTextValidated();
+	}
+
+	@Override
+	public List<String> getProtocols() {
+		return requests.get(0).getProtocols();
+	}
+
+}
@@ -139,6 +139,16 @@ public class WebSocketRequestChain implements WebSocketRequest {
 		return IOUtils.toInputStream(IOUtils.chain(true, datas.toArray(new ReadableContainer[0])));
 	}
 
+	@Override
+	public boolean isTextValidated() {
+		for (WebSocketRequest request : requests) {
+			if (!request.isTextValidated()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	@Override
 	public List<String> getProtocols() {
 		return protocols;
@@ -17,6 +17,7 @@
 
 package be.nabu.libs.http.server.websockets.impl;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
@@ -26,11 +27,7 @@ import be.nabu.libs.authentication.api.Token;
 import be.nabu.libs.http.server.websockets.api.OpCode;
 import be.nabu.libs.http.server.websockets.api.WebSocketRequest;
 import be.nabu.libs.resources.api.ReadableResource;
-import be.nabu.utils.codec.TranscoderUtils;
-import be.nabu.utils.codec.impl.XORMaskTranscoder;
 import be.nabu.utils.io.IOUtils;
-import be.nabu.utils.io.api.ByteBuffer;
-import be.nabu.utils.io.api.ReadableContainer;
 
 public class WebSocketRequestImpl implements WebSocketRequest {
 
@@ -39,20 +36,21 @@ public class WebSocketRequestImpl implements WebSocketRequest {
 	private boolean isFinal;
 	private long size;
 	private ReadableResource data;
+	private byte [] bytes;
+	private boolean textValidated;
+	private int reservedBits;
 	private String path;
 	private double version;
 	private List<String> protocols;
-	private byte[] maskingKey;
 	private Token token;
 	private Device device;
 	
-	WebSocketRequestImpl(List<String> protocols, String path, double version, OpCode opCode, boolean isMasked, byte[] maskingKey, boolean isFinal, long size, ReadableResource data, Token token, Device device) {
+	WebSocketRequestImpl(List<String> protocols, String path, double version, OpCode opCode, boolean isMasked, boolean isFinal, long size, ReadableResource data, Token token, Device device) {
 		this.protocols = protocols;
 		this.path = path;
 		this.version = version;
 		this.opCode = opCode;
 		this.isMasked = isMasked;
-		this.maskingKey = maskingKey;
 		this.isFinal = isFinal;
 		this.size = size;
 		this.data = data;
@@ -60,6 +58,18 @@ public class WebSocketRequestImpl implements WebSocketRequest {
 		this.device = device;
 	}
 	
+	WebSocketRequestImpl(List<String> protocols, String path, double version, OpCode opCode, boolean isMasked, boolean isFinal, byte[] bytes, Token token, Device device) {
+		this(protocols, path, version, opCode, isMasked, isFinal, bytes.length, (ReadableResource) null, token, device);
+		this.bytes = bytes;
+	}
+	
+	/**
+	 * A copy of the frame with new data, for example after an extension transformed it
+	 */
+	public static WebSocketRequestImpl newRequest(WebSocketRequest frame, byte [] bytes) {
+		return new WebSocketRequestImpl(frame.getProtocols(), frame.getPath(), frame.getVersion(), frame.getOpCode(), frame.isMasked(), frame.isFinal(), bytes, frame.getToken(), frame.getDevice());
+	}
+	
 	@Override
 	public OpCode getOpCode() {
 		return opCode;
@@ -75,20 +85,26 @@ public class WebSocketRequestImpl implements WebSocketRequest {
 		return size;
 	}
 
+	/**
+	 * The parser unmasks the data as it comes in, so the stored data can be returned as is
+	 */
 	@Override
 	public InputStream getData() {
+		if (bytes != null) {
+			return new ByteArrayInputStream(bytes);
+		}
 		try {
-			ReadableContainer<ByteBuffer> readable = data.getReadable();
-			if (isMasked) {
-				readable = TranscoderUtils.transcodeBytes(readable, new XORMaskTranscoder(maskingKey));
-			}
-			return IOUtils.toInputStream(readable, true);
+			return IOUtils.toInputStream(data.getReadable(), true);
 		}
 		catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	byte [] getBytes() {
+		return bytes;
+	}
+
 	@Override
 	public String getPath() {
 		return path;
@@ -109,6 +125,24 @@ public class WebSocketRequestImpl implements WebSocketRequest {
 		return isMasked;
 	}
 	
+	@Override
+	public boolean isTextValidated() {
+		return textValidated;
+	}
+
+	void setTextValidated(boolean textValidated) {
+		this.textValidated = textValidated;
+	}
+	
+	@Override
+	public int getReservedBits() {
+		return reservedBits;
+	}
+
+	void setReservedBits(int reservedBits) {
+		this.reservedBits = reservedBits;
+	}
+	
 	@Override
 	public Token getToken() {
 		return token;
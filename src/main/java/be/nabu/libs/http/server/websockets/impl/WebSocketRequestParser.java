@@ -19,14 +19,19 @@ package be.nabu.libs.http.server.websockets.impl;
 
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
-import org.bouncycastle.util.Arrays;
-
 import be.nabu.libs.authentication.api.Device;
 import be.nabu.libs.authentication.api.Token;
+import be.nabu.libs.http.server.websockets.WebSocketCloseException;
+import be.nabu.libs.http.server.websockets.api.CloseCode;
 import be.nabu.libs.http.server.websockets.api.OpCode;
 import be.nabu.libs.http.server.websockets.api.WebSocketRequest;
+import be.nabu.libs.http.server.websockets.util.BufferPool;
+import be.nabu.libs.http.server.websockets.util.Utf8Validator;
+import be.nabu.libs.http.server.websockets.util.WebSocketMask;
 import be.nabu.libs.http.api.server.MessageDataProvider;
 import be.nabu.libs.nio.api.MessageParser;
 import be.nabu.libs.resources.ResourceUtils;
@@ -77,14 +82,18 @@ import be.nabu.utils.mime.impl.MimeHeader;
  */
 public class WebSocketRequestParser implements MessageParser<WebSocketRequest> {
 
+	private static final int COPY_SIZE = 4096;
+
 	private String path;
 	private double version;
 	
 	private OpCode opCode;
-	private Boolean isFinal, isMasked;
-	private byte [] mask;
-	private Byte payloadLength;
-	private Long extendedPayloadLength;
+	private boolean isFinal, isMasked;
+	private int reservedBits;
+	private int maskingKey;
+	private int payloadLength;
+	private long contentLength;
+	private int headerSize;
 	
 	private boolean headerParsed;
 	private boolean closed, done;
@@ -98,7 +107,24 @@ public class WebSocketRequestParser implements MessageParser<WebSocketRequest> {
 	private Resource resource;
 	private WritableContainer<ByteBuffer> writable;
 	private long dataRead;
-	private ByteBuffer copyBuffer = ByteBufferFactory.getInstance().newInstance(4096, true);
+	/**
+	 * The copy buffer is borrowed from the shared pool only for the duration of a push, idle connections don't hold on to one
+	 */
+	private byte [] copyBytes;
+	private ByteBuffer copyBuffer;
+	/**
+	 * Frames that are smaller than this threshold are kept in memory instead of being streamed to a resource from the data provider
+	 */
+	private int inMemoryThreshold;
+	private byte [] payload;
+	private ByteBuffer payloadBuffer;
+	/**
+	 * In batch mode all the complete frames in a single push are decoded, they are returned as a single batch message
+	 */
+	private boolean batch;
+	private WebSocketRequest message;
+	private WebSocketRequestParserFactory factory;
+	private Utf8Validator textValidator;
 	private List<String> protocols;
 	private Token token;
 	private Device device;
@@ -112,8 +138,23 @@ public class WebSocketRequestParser implements MessageParser<WebSocketRequest> {
 		this.device = device;
 	}
 	
+	/**
+	 * Clears all the frame state so the parser (and its buffers) can be reused for the next frame on the same connection
+	 */
+	void reset(Token token, Device device) {
+		this.token = token;
+		this.device = device;
+		resetFrame();
+		releaseCopyBuffer();
+		resource = null;
+		writable = null;
+		dataRead = 0;
+		message = null;
+	}
+	
 	@Override
 	public void close() throws IOException {
+		releaseCopyBuffer();
 		if (writable != null) {
 			writable.close();
 		}
@@ -131,7 +172,7 @@ public class WebSocketRequestParser implements MessageParser<WebSocketRequest> {
 				}
 				long read = content.read(buffer);
 				if (read < 0) {
-					closed = true;
+					remoteClosed();
 					break;
 				}
 				// not enough data available to finish parsing the header
@@ -139,20 +180,28 @@ public class WebSocketRequestParser implements MessageParser<WebSocketRequest> {
 					break;
 				}
 			}
-			if (headerParsed) {
+			if (headerParsed && contentLength < inMemoryThreshold) {
+				pushInMemory(content, (int) contentLength);
+			}
+			else if (headerParsed) {
 				if (writable == null) {
 					if (resource == null) {
-						resource = messageDataProvider.newResource("WEBSOCKET", path, version, new MimeHeader("Content-Length", "" + (extendedPayloadLength != null ? extendedPayloadLength : payloadLength)));
+						resource = messageDataProvider.newResource("WEBSOCKET", path, version, new MimeHeader("Content-Length", "" + contentLength));
 					}
 					writable = ((WritableResource) resource).getWritable();
 				}
 				if (buffer.remainingData() > 0) {
 					// if is theoretically possible that we read a byte or two that was not for this message if the payload length is _very_ small
-					if (buffer.remainingData() > payloadLength) {
+					if (buffer.remainingData() > contentLength) {
 						// write whatever we need
-						if (payloadLength > 0) {
-							writable.write(ByteBufferFactory.getInstance().limit(buffer, (long) payloadLength, null));
+						if (contentLength > 0) {
+							if (isMasked) {
+								WebSocketMask.apply(headerBytes, headerSize, (int) contentLength, maskingKey, 0);
+							}
+							validateText(headerBytes, headerSize, (int) contentLength);
+							writable.write(ByteBufferFactory.getInstance().limit(buffer, contentLength, null));
 						}
+						finishText();
 						// push back the rest
 						content.pushback(buffer);
 						// mark as done
@@ -162,6 +211,10 @@ public class WebSocketRequestParser implements MessageParser<WebSocketRequest> {
 					}
 					// otherwise, write out the rest of the buffer to the backend
 					else {
+						if (isMasked) {
+							WebSocketMask.apply(headerBytes, headerSize, (int) buffer.remainingData(), maskingKey, 0);
+						}
+						validateText(headerBytes, headerSize, (int) buffer.remainingData());
 						dataRead += buffer.remainingData();
 						writable.write(buffer);
 						if (buffer.remainingData() > 0) {
@@ -171,30 +224,214 @@ public class WebSocketRequestParser implements MessageParser<WebSocketRequest> {
 				}
 				// only read the data if we are not done (that rare usecase with tiny payload)
 				if (!done) {
+					if (copyBytes == null) {
+						copyBytes = BufferPool.getInstance().borrow((int) Math.min(COPY_SIZE, contentLength - dataRead));
+						copyBuffer = IOUtils.wrap(copyBytes, false);
+					}
 					long read = 0;
-					long contentLength = extendedPayloadLength != null ? extendedPayloadLength : payloadLength;
 					// copy data from the source
 					// we never copy too much because we know exactly how big it is, no need to push back "remainder"
-					while (!closed && !done && dataRead < contentLength && (copyBuffer.remainingData() > 0 || (read = content.read(ByteBufferFactory.getInstance().limit(copyBuffer, null, Math.min(copyBuffer.remainingSpace(), contentLength - dataRead)))) > 0)) {
-						dataRead += copyBuffer.remainingData();
+					// the copy buffer is emptied after every chunk so the data always starts at the beginning of the backing array, allowing us to unmask it in place
+					while (!closed && !done && dataRead < contentLength && (read = content.read(ByteBufferFactory.getInstance().limit(copyBuffer, null, Math.min(copyBuffer.remainingSpace(), contentLength - dataRead)))) > 0) {
+						int length = (int) copyBuffer.remainingData();
+						if (isMasked) {
+							WebSocketMask.apply(copyBytes, 0, length, maskingKey, dataRead);
+						}
+						validateText(copyBytes, 0, length);
+						dataRead += length;
 						writable.write(copyBuffer);
 						if (copyBuffer.remainingData() > 0) {
 							throw new IOException("Could not flush copy buffer to backend");
 						}
+						copyBuffer.truncate();
 					}
 					if (dataRead == contentLength) {
+						finishText();
 						done = true;
 						writable.close();
 					}
 					if (read == -1) {
-						closed = true;
+						remoteClosed();
 						writable.close();
 					}
+					releaseCopyBuffer();
+				}
+			}
+			if (done && batch) {
+				pushBatch(content);
+			}
+		}
+	}
+	
+	/**
+	 * In batch mode we keep decoding frames that are already available in full once the first frame is done.
+	 * Only frames that can be kept in memory are batched, the first frame that is incomplete or too large is pushed back for the next parser.
+	 * A frame is only validated against the factory once it is complete, a frame that is pushed back is validated by the parser that picks it up so the message limits are only counted once.
+	 * If a frame is invalid, the frames before it are still returned and the invalid frame is pushed back so the next parser fails on it, as it would without batching.
+	 */
+	private void pushBatch(PushbackContainer<ByteBuffer> content) throws ParseException, IOException {
+		List<WebSocketRequest> requests = new ArrayList<WebSocketRequest>();
+		requests.add(newRequest());
+		while (!closed) {
+			resetFrame();
+			try {
+				while (!parseHeader(false)) {
+					if (buffer.remainingSpace() == 0) {
+						throw new ParseException("Could not parse header within allotted space", 0);
+					}
+					long read = content.read(buffer);
+					if (read < 0) {
+						remoteClosed();
+						break;
+					}
+					else if (read == 0) {
+						break;
+					}
+				}
+			}
+			// the header has not been skipped yet, the buffer still contains the start of the frame
+			catch (ParseException e) {
+				content.pushback(buffer);
+				break;
+			}
+			if (!headerParsed) {
+				if (buffer.remainingData() > 0) {
+					content.pushback(buffer);
+				}
+				break;
+			}
+			else if (contentLength >= inMemoryThreshold) {
+				// the header has already been skipped in the buffer, push back the original bytes
+				content.pushback(IOUtils.wrap(Arrays.copyOf(headerBytes, headerSize + (int) buffer.remainingData()), true));
+				headerParsed = false;
+				break;
+			}
+			readInMemory(content, (int) contentLength);
+			if (payloadBuffer.remainingSpace() > 0) {
+				// push back the header and whatever part of the payload we already have (it is still masked)
+				int payloadRead = (int) (payload.length - payloadBuffer.remainingSpace());
+				byte [] bytes = new byte[headerSize + payloadRead];
+				System.arraycopy(headerBytes, 0, bytes, 0, headerSize);
+				System.arraycopy(payload, 0, bytes, headerSize, payloadRead);
+				content.pushback(IOUtils.wrap(bytes, true));
+				headerParsed = false;
+				break;
+			}
+			boolean unmasked = false;
+			try {
+				if (factory != null) {
+					factory.markFrame();
 				}
+				validateHeader();
+				unmasked = true;
+				finishInMemory();
 			}
+			catch (WebSocketCloseException e) {
+				if (factory != null) {
+					factory.rollbackFrame();
+				}
+				if (unmasked && isMasked) {
+					WebSocketMask.apply(payload, 0, payload.length, maskingKey, 0);
+				}
+				// any data after the frame has already been pushed back, this goes in front of it
+				byte [] bytes = new byte[headerSize + payload.length];
+				System.arraycopy(headerBytes, 0, bytes, 0, headerSize);
+				System.arraycopy(payload, 0, bytes, headerSize, payload.length);
+				content.pushback(IOUtils.wrap(bytes, true));
+				headerParsed = false;
+				break;
+			}
+			requests.add(newRequest());
 		}
+		done = true;
+		message = requests.size() == 1 ? requests.get(0) : new WebSocketRequestBatch(requests);
+	}
+	
+	private void resetFrame() {
+		opCode = null;
+		isFinal = false;
+		reservedBits = 0;
+		isMasked = false;
+		maskingKey = 0;
+		payloadLength = 0;
+		contentLength = 0;
+		headerSize = 0;
+		headerParsed = false;
+		done = false;
+		textValidator = null;
+		buffer.truncate();
+		payload = null;
+		payloadBuffer = null;
 	}
 
+	private void pushInMemory(PushbackContainer<ByteBuffer> content, int contentLength) throws ParseException, IOException {
+		readInMemory(content, contentLength);
+		if (payloadBuffer.remainingSpace() == 0) {
+			finishInMemory();
+		}
+	}
+	
+	private void readInMemory(PushbackContainer<ByteBuffer> content, int contentLength) throws IOException {
+		if (payload == null) {
+			payload = new byte[contentLength];
+			payloadBuffer = IOUtils.wrap(payload, false);
+			// the header buffer may already contain (a part of) the payload and possibly even the start of the next frame
+			if (buffer.remainingData() > 0) {
+				if (buffer.remainingData() > contentLength) {
+					if (contentLength > 0) {
+						payloadBuffer.write(ByteBufferFactory.getInstance().limit(buffer, (long) contentLength, null));
+					}
+					content.pushback(buffer);
+				}
+				else {
+					payloadBuffer.write(buffer);
+				}
+			}
+		}
+		while (payloadBuffer.remainingSpace() > 0) {
+			long read = content.read(payloadBuffer);
+			if (read < 0) {
+				remoteClosed();
+				break;
+			}
+			else if (read == 0) {
+				break;
+			}
+		}
+	}
+	
+	private void finishInMemory() throws WebSocketCloseException {
+		if (isMasked) {
+			WebSocketMask.apply(payload, 0, payload.length, maskingKey, 0);
+		}
+		validateText(payload, 0, payload.length);
+		finishText();
+		done = true;
+	}
+	
+	private void releaseCopyBuffer() {
+		if (copyBytes != null) {
+			BufferPool.getInstance().release(copyBytes);
+			copyBytes = null;
+			copyBuffer = null;
+		}
+	}
+	
+	/**
+	 * Text messages are validated as the (unmasked) data comes in so we can stop as soon as we encounter invalid data
+	 */
+	private void validateText(byte [] bytes, int offset, int length) throws WebSocketCloseException {
+		if (textValidator != null && !textValidator.validate(bytes, offset, length)) {
+			throw new WebSocketCloseException(CloseCode.INVALID_DATA, "The text message contains invalid UTF-8");
+		}
+	}
+	
+	private void finishText() throws WebSocketCloseException {
+		if (textValidator != null && isFinal && !textValidator.isComplete()) {
+			throw new WebSocketCloseException(CloseCode.INVALID_DATA, "The text message ends with an incomplete UTF-8 character");
+		}
+	}
+	
 	@Override
 	public boolean isIdentified() {
 		return headerParsed;
@@ -205,6 +442,14 @@ public class WebSocketRequestParser implements MessageParser<WebSocketRequest> {
 		return done;
 	}
 
+	// the remote end closed the connection
+	private void remoteClosed() {
+		closed = true;
+		if (factory != null) {
+			factory.close();
+		}
+	}
+
 	@Override
 	public boolean isClosed() {
 		return closed;
@@ -212,111 +457,110 @@ public class WebSocketRequestParser implements MessageParser<WebSocketRequest> {
 
 	@Override
 	public WebSocketRequest getMessage() {
-		WebSocketRequest request = done 
-			? new WebSocketRequestImpl(protocols, path, version, opCode, isMasked, mask, isFinal, extendedPayloadLength == null ? payloadLength : extendedPayloadLength, (ReadableResource) resource, token, device) 
-			: null;
+		if (!done) {
+			return null;
+		}
+		else if (message != null) {
+			return message;
+		}
+		return newRequest();
+	}
+	
+	private WebSocketRequest newRequest() {
+		WebSocketRequestImpl request = payload != null
+			? new WebSocketRequestImpl(protocols, path, version, opCode, isMasked, isFinal, payload, token, device)
+			: new WebSocketRequestImpl(protocols, path, version, opCode, isMasked, isFinal, contentLength, (ReadableResource) resource, token, device);
+		request.setTextValidated(textValidator != null);
+		request.setReservedBits(reservedBits);
 		return request;
 	}
 	
-	private boolean parseHeader() throws ParseException, IOException {
-		if (!headerParsed) {
-			int headerSize = 2;
-			if (isFinal == null) {
-				isFinal = parseFinal();
-			}
-			if (isFinal != null && opCode == null) {
-				opCode = parseOpCode();
-			}
-			if (opCode != null && isMasked == null) {
-				isMasked = parseMasked();
-			}
-			if (isMasked != null && payloadLength == null) {
-				payloadLength = parsePayloadLength();
-			}
-			if (payloadLength != null) {
-				if ((payloadLength == 126 || payloadLength == 127) && extendedPayloadLength == null) {
-					extendedPayloadLength = parseExtendedPayloadLength(payloadLength);
-					headerSize += payloadLength == 126 ? 2 : 8;
-				}
-				if ((payloadLength != 127 && payloadLength != 126) || extendedPayloadLength != null) {
-					if (isMasked && mask == null) {
-						mask = parseMaskingKey();
-						headerSize += 4;
-					}
-					if (!isMasked || mask != null) {
-						// make sure whatever remains in the buffer is actual data
-						buffer.skip(headerSize);
-						headerParsed = true;
-					}
-				}
-			}
-		}
-		return headerParsed;
+	public int getInMemoryThreshold() {
+		return inMemoryThreshold;
 	}
 
-	private OpCode parseOpCode() throws ParseException {
-		if (buffer.remainingData() >= 1) {
-			OpCode opCode = OpCode.getOpCode((byte) (headerBytes[0] & 15));
-			if (opCode == null) {
-				throw new ParseException("Invalid opcode: " + (headerBytes[0] & 15), 0);
-			}
-			return opCode;
-		}
-		return null;
+	public void setInMemoryThreshold(int inMemoryThreshold) {
+		this.inMemoryThreshold = inMemoryThreshold;
 	}
 	
-	private Boolean parseMasked() {
-		if (isMasked == null) {
-			isMasked = buffer.remainingData() >= 2 ? getBit(headerBytes[1], 7) == 1 : null;
-		}
-		return isMasked;
+	public boolean isBatch() {
+		return batch;
 	}
-	
-	private Boolean parseFinal() {
-		return buffer.remainingData() >= 1 ? getBit(headerBytes[0], 7) == 1 : null;
+
+	public void setBatch(boolean batch) {
+		this.batch = batch;
 	}
 
-	private Byte parsePayloadLength() {
-		return buffer.remainingData() >= 2 ? (byte) (headerBytes[1] & 127) : null;	
+	void setFactory(WebSocketRequestParserFactory factory) {
+		this.factory = factory;
 	}
 	
-	private Long parseExtendedPayloadLength(byte payloadLength) {
-		// additional 2 bytes of length
-		if ((payloadLength == 126 && this.buffer.remainingData() >= 4) || (payloadLength == 127 && this.buffer.remainingData() >= 10)) {
-			java.nio.ByteBuffer buffer = null;
-			buffer = java.nio.ByteBuffer.allocate(Long.BYTES);
-			if (payloadLength == 126) {
-				buffer.put(new byte[6]);
-				buffer.put(Arrays.copyOfRange(headerBytes, 2, 4));
-			}
-			else {
-				buffer.put(Arrays.copyOfRange(headerBytes, 2, 10));
-			}
-			buffer.flip();
-			// make sure the leading bit is 0
-			return buffer.getLong() & Long.MAX_VALUE;
-		}
-		return null;
+	/**
+	 * The header is decoded straight from the header bytes into primitive state, no intermediate objects are created.
+	 * As long as the first two bytes are not available we don't know the full header size, once they are we simply wait until the rest is available.
+	 * Unless validation is requested, decoding the header has no side effects on the factory.
+	 */
+	private boolean parseHeader() throws ParseException {
+		return parseHeader(true);
 	}
 	
-	private byte[] parseMaskingKey() {
-		Byte payloadLength = parsePayloadLength();
-		if (payloadLength != null) {
-			int startPosition;
-			if (payloadLength == 126) {
-				startPosition = 4;
-			}
-			else if (payloadLength == 127) {
-				startPosition = 10;
+	private boolean parseHeader(boolean validate) throws ParseException {
+		if (!headerParsed) {
+			long available = buffer.remainingData();
+			if (available < 2) {
+				return false;
 			}
-			else {
-				startPosition = 2;
+			if (headerSize == 0) {
+				isFinal = (headerBytes[0] & 128) != 0;
+				reservedBits = (headerBytes[0] >> 4) & 7;
+				opCode = OpCode.getOpCode((byte) (headerBytes[0] & 15));
+				if (opCode == null) {
+					throw new ParseException("Invalid opcode: " + (headerBytes[0] & 15), 0);
+				}
+				isMasked = (headerBytes[1] & 128) != 0;
+				payloadLength = headerBytes[1] & 127;
+				headerSize = 2 + (payloadLength == 126 ? 2 : (payloadLength == 127 ? 8 : 0)) + (isMasked ? 4 : 0);
 			}
-			if (buffer.remainingData() >= startPosition + 4) {
-				return Arrays.copyOfRange(headerBytes, startPosition, startPosition + 4);
+			if (available >= headerSize) {
+				int position = 2;
+				// additional 2 bytes of length
+				if (payloadLength == 126) {
+					contentLength = ((headerBytes[2] & 0xff) << 8) | (headerBytes[3] & 0xff);
+					position += 2;
+				}
+				// additional 8 bytes of length
+				else if (payloadLength == 127) {
+					long value = 0;
+					for (int i = 2; i < 10; i++) {
+						value = (value << 8) | (headerBytes[i] & 0xff);
+					}
+					// make sure the leading bit is 0
+					contentLength = value & Long.MAX_VALUE;
+					position += 8;
+				}
+				else {
+					contentLength = payloadLength;
+				}
+				if (isMasked) {
+					maskingKey = ((headerBytes[position] & 0xff) << 24) | ((headerBytes[position + 1] & 0xff) << 16) | ((headerBytes[position + 2] & 0xff) << 8) | (headerBytes[position + 3] & 0xff);
+				}
+				// check the limits before we start reading any of the payload
+				if (validate) {
+					validateHeader();
+				}
+				// make sure whatever remains in the buffer is actual data
+				buffer.skip(headerSize);
+				headerParsed = true;
 			}
 		}
-		return null;
+		return headerParsed;
+	}
+	
+	private void validateHeader() throws WebSocketCloseException {
+		if (factory != null) {
+			factory.validateFrame(opCode, isFinal, reservedBits, contentLength);
+			textValidator = opCode.isControl() ? null : factory.getTextValidator();
+		}
 	}
 	
 	public static byte getBit(byte value, int position) {
@@ -22,6 +22,12 @@ import java.util.List;
 import be.nabu.libs.authentication.api.Device;
 import be.nabu.libs.authentication.api.Token;
 import be.nabu.libs.authentication.api.TokenValidator;
+import be.nabu.libs.http.server.websockets.WebSocketCloseException;
+import be.nabu.libs.http.server.websockets.api.CloseCode;
+import be.nabu.libs.http.server.websockets.api.OpCode;
+import be.nabu.libs.http.server.websockets.api.WebSocketExtension;
+import be.nabu.libs.http.server.websockets.util.TokenCache;
+import be.nabu.libs.http.server.websockets.util.Utf8Validator;
 import be.nabu.libs.http.server.websockets.api.WebSocketRequest;
 import be.nabu.libs.nio.api.MessageParser;
 import be.nabu.libs.nio.api.MessageParserFactory;
@@ -29,6 +35,8 @@ import be.nabu.libs.http.api.server.MessageDataProvider;
 
 public class WebSocketRequestParserFactory implements MessageParserFactory<WebSocketRequest> {
 
+	public static final int DEFAULT_IN_MEMORY_THRESHOLD = 4096;
+
 	private MessageDataProvider dataProvider;
 	private List<String> protocols;
 	private String path;
@@ -36,6 +44,45 @@ public class WebSocketRequestParserFactory implements MessageParserFactory<WebSo
 	private Token token;
 	private TokenValidator tokenValidator;
 	private Device device;
+	private int inMemoryThreshold = DEFAULT_IN_MEMORY_THRESHOLD;
+	/**
+	 * When set, a single parser is recycled for all the frames on this connection instead of creating a new one (with new buffers) per frame
+	 */
+	private boolean reuseParser;
+	private WebSocketRequestParser parser;
+	private boolean batch;
+	/**
+	 * Limits on the size of a single frame, the size of a message over all its fragments and the amount of fragments in a message
+	 * A value of 0 means there is no limit
+	 */
+	private long maxFrameSize, maxMessageSize;
+	private int maxFragments;
+	// the state of the message that is currently coming in
+	private long messageSize;
+	private int messageFragments;
+	private OpCode messageOpCode;
+	// whether a fragmented message has been started that is not yet finished
+	private boolean messageOpen;
+	// whether the first frame of the message had reserved bits set, meaning an extension transformed the data
+	private boolean messageTransformed;
+	/**
+	 * The reserved bits that negotiated extensions are using, for example permessage-deflate uses RSV1 (4)
+	 */
+	private int allowedReservedBits;
+	// text messages are validated as UTF-8, the state is kept over the fragments of the message
+	private boolean validateText = true;
+	private Utf8Validator textValidator = new Utf8Validator();
+	// the message state before the frame that was last validated, a batching parser can roll back to it when it hands that frame to the next parser
+	private long markedSize;
+	private int markedFragments;
+	private OpCode markedOpCode;
+	private boolean markedTransformed, markedOpen;
+	private Utf8Validator markedTextValidator;
+	// the registry this connection is tracked in (if any) and whether the connection has been closed
+	private WebSocketConnectionRegistry registry;
+	private volatile boolean closed;
+	// the negotiated extensions, they are closed with the connection
+	private List<WebSocketExtension> extensions;
 
 	public WebSocketRequestParserFactory(MessageDataProvider dataProvider, List<String> protocols, String path, double version, Token token, Device device, TokenValidator tokenValidator) {
 		this.protocols = protocols;
@@ -52,7 +99,92 @@ public class WebSocketRequestParserFactory implements MessageParserFactory<WebSo
 		if (token != null && tokenValidator != null && !tokenValidator.isValid(token)) {
 			throw new RuntimeException("The token is no longer valid");
 		}
-		return new WebSocketRequestParser(dataProvider, protocols, path, version, token, device);
+		WebSocketRequestParser parser;
+		if (reuseParser && this.parser != null && !this.parser.isClosed()) {
+			parser = this.parser;
+			parser.reset(token, device);
+		}
+		else {
+			parser = new WebSocketRequestParser(dataProvider, protocols, path, version, token, device);
+			if (reuseParser) {
+				this.parser = parser;
+			}
+		}
+		parser.setInMemoryThreshold(inMemoryThreshold);
+		parser.setBatch(batch);
+		parser.setFactory(this);
+		return parser;
+	}
+	
+	/**
+	 * This is called as soon as the header of a frame is decoded, before any of the payload is read
+	 */
+	void validateFrame(OpCode opCode, boolean isFinal, int reservedBits, long size) throws WebSocketCloseException {
+		// the reserved bits can only be used by negotiated extensions and only on the first frame of a data message
+		if (reservedBits != 0 && ((reservedBits & ~allowedReservedBits) != 0 || opCode.isControl() || OpCode.CONTINUATION.equals(opCode))) {
+			throw new WebSocketCloseException(CloseCode.PROTOCOL_ERROR, "Unexpected reserved bits: " + reservedBits);
+		}
+		if (opCode.isControl()) {
+			// control frames have a hard limit in the spec and can not be fragmented: https://tools.ietf.org/html/rfc6455#section-5.5
+			if (size > 125 || !isFinal) {
+				throw new WebSocketCloseException(CloseCode.PROTOCOL_ERROR, "Invalid control frame");
+			}
+			return;
+		}
+		if (maxFrameSize > 0 && size > maxFrameSize) {
+			throw new WebSocketCloseException(CloseCode.MESSAGE_TOO_BIG, "The frame size " + size + " exceeds the maximum of " + maxFrameSize);
+		}
+		// fragments of different messages can not be interleaved: https://tools.ietf.org/html/rfc6455#section-5.4
+		if (OpCode.CONTINUATION.equals(opCode) && !messageOpen) {
+			throw new WebSocketCloseException(CloseCode.PROTOCOL_ERROR, "Unexpected continuation frame");
+		}
+		else if (!OpCode.CONTINUATION.equals(opCode) && messageOpen) {
+			throw new WebSocketCloseException(CloseCode.PROTOCOL_ERROR, "Expected a continuation frame");
+		}
+		messageOpen = !isFinal;
+		// a new message
+		if (!OpCode.CONTINUATION.equals(opCode)) {
+			messageSize = 0;
+			messageFragments = 0;
+			messageOpCode = opCode;
+			messageTransformed = reservedBits != 0;
+			textValidator.reset();
+		}
+		messageSize += size;
+		messageFragments++;
+		if (maxMessageSize > 0 && messageSize > maxMessageSize) {
+			throw new WebSocketCloseException(CloseCode.MESSAGE_TOO_BIG, "The message size exceeds the maximum of " + maxMessageSize);
+		}
+		if (maxFragments > 0 && messageFragments > maxFragments) {
+			throw new WebSocketCloseException(CloseCode.MESSAGE_TOO_BIG, "The message exceeds the maximum of " + maxFragments + " fragments");
+		}
+	}
+
+	/**
+	 * Remembers the message state so the next frame can be rolled back
+	 */
+	void markFrame() {
+		markedSize = messageSize;
+		markedFragments = messageFragments;
+		markedOpCode = messageOpCode;
+		markedTransformed = messageTransformed;
+		markedOpen = messageOpen;
+		if (markedTextValidator == null) {
+			markedTextValidator = new Utf8Validator();
+		}
+		markedTextValidator.copy(textValidator);
+	}
+	
+	/**
+	 * Undoes the validation of the frames since the last mark, they will be validated again by the parser that picks them up
+	 */
+	void rollbackFrame() {
+		messageSize = markedSize;
+		messageFragments = markedFragments;
+		messageOpCode = markedOpCode;
+		messageTransformed = markedTransformed;
+		messageOpen = markedOpen;
+		textValidator.copy(markedTextValidator);
 	}
 
 	public MessageDataProvider getDataProvider() {
@@ -84,11 +216,128 @@ public class WebSocketRequestParserFactory implements MessageParserFactory<WebSo
 	}
 
 	public void setToken(Token token) {
+		// cached roles of the previous token should not be used anymore
+		TokenCache cache = TokenCache.getInstance();
+		if (cache != null && this.token != null) {
+			cache.invalidate(this.token);
+		}
 		this.token = token;
+		if (registry != null) {
+			registry.reindex(this);
+		}
 	}
 
 	public void setDevice(Device device) {
 		this.device = device;
+		if (registry != null) {
+			registry.reindex(this);
+		}
+	}
+	
+	/**
+	 * Called when the connection is closed, either because a close frame was sent or because the remote end closed the socket
+	 */
+	public void close() {
+		closed = true;
+		if (registry != null) {
+			registry.unregister(this);
+		}
+		if (extensions != null) {
+			for (WebSocketExtension extension : extensions) {
+				extension.close();
+			}
+		}
+	}
+	
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	void setRegistry(WebSocketConnectionRegistry registry) {
+		this.registry = registry;
+	}
+
+	public List<WebSocketExtension> getExtensions() {
+		return extensions;
+	}
+
+	public void setExtensions(List<WebSocketExtension> extensions) {
+		this.extensions = extensions;
+	}
+
+	public int getInMemoryThreshold() {
+		return inMemoryThreshold;
+	}
+
+	public void setInMemoryThreshold(int inMemoryThreshold) {
+		this.inMemoryThreshold = inMemoryThreshold;
+	}
+
+	public boolean isReuseParser() {
+		return reuseParser;
+	}
+
+	public void setReuseParser(boolean reuseParser) {
+		this.reuseParser = reuseParser;
+		if (!reuseParser) {
+			this.parser = null;
+		}
+	}
+
+	public boolean isBatch() {
+		return batch;
+	}
+
+	public void setBatch(boolean batch) {
+		this.batch = batch;
+	}
+
+	/**
+	 * Returns the validator for the data frame that was last validated, if it belongs to a text message
+	 */
+	Utf8Validator getTextValidator() {
+		// transformed (e.g. compressed) data can only be validated once the extensions have decoded it
+		return validateText && !messageTransformed && OpCode.TEXT.equals(messageOpCode) ? textValidator : null;
+	}
+
+	public int getAllowedReservedBits() {
+		return allowedReservedBits;
+	}
+
+	public void setAllowedReservedBits(int allowedReservedBits) {
+		this.allowedReservedBits = allowedReservedBits;
+	}
+
+	public boolean isValidateText() {
+		return validateText;
+	}
+
+	public void setValidateText(boolean validateText) {
+		this.validateText = validateText;
+	}
+
+	public long getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	public void setMaxFrameSize(long maxFrameSize) {
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	public long getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	public void setMaxMessageSize(long maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	public int getMaxFragments() {
+		return maxFragments;
+	}
+
+	public void setMaxFragments(int maxFragments) {
+		this.maxFragments = maxFragments;
 	}
 	
 }
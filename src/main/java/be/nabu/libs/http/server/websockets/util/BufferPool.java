@@ -0,0 +1,133 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of byte arrays in power-of-two size classes.
+ * Buffers should only be borrowed for as long as they are actively used, idle connections should not hold on to them.
+ * Requests beyond the largest size class are simply allocated and not pooled.
+ */
+public class BufferPool {
+
+	private static BufferPool instance = new BufferPool(1024, 65536, 1024);
+	
+	private int minSize, maxSize, capacity;
+	private ArrayBlockingQueue<byte[]> [] sizeClasses;
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), dropped = new AtomicLong();
+	
+	public static BufferPool getInstance() {
+		return instance;
+	}
+	
+	public static void setInstance(BufferPool instance) {
+		BufferPool.instance = instance;
+	}
+	
+	/**
+	 * The sizes are rounded up to a power of two, the capacity is the maximum amount of idle buffers kept per size class
+	 */
+	@SuppressWarnings("unchecked")
+	public BufferPool(int minSize, int maxSize, int capacity) {
+		this.minSize = roundUp(minSize);
+		this.maxSize = roundUp(maxSize);
+		this.capacity = capacity;
+		int amount = Integer.numberOfTrailingZeros(this.maxSize) - Integer.numberOfTrailingZeros(this.minSize) + 1;
+		sizeClasses = new ArrayBlockingQueue[amount];
+		for (int i = 0; i < amount; i++) {
+			sizeClasses[i] = new ArrayBlockingQueue<byte[]>(capacity);
+		}
+	}
+	
+	/**
+	 * Returns a buffer that is at least the requested size
+	 */
+	public byte [] borrow(int size) {
+		if (size > maxSize) {
+			misses.incrementAndGet();
+			return new byte[size];
+		}
+		int index = getIndex(size);
+		byte [] bytes = sizeClasses[index].poll();
+		if (bytes == null) {
+			misses.incrementAndGet();
+			bytes = new byte[minSize << index];
+		}
+		else {
+			hits.incrementAndGet();
+		}
+		return bytes;
+	}
+	
+	public void release(byte [] bytes) {
+		// only arrays that match a size class exactly can go back in the pool
+		if (bytes.length >= minSize && bytes.length <= maxSize && Integer.bitCount(bytes.length) == 1) {
+			if (!sizeClasses[getIndex(bytes.length)].offer(bytes)) {
+				dropped.incrementAndGet();
+			}
+		}
+		else {
+			dropped.incrementAndGet();
+		}
+	}
+	
+	private int getIndex(int size) {
+		return Integer.numberOfTrailingZeros(roundUp(Math.max(size, minSize))) - Integer.numberOfTrailingZeros(minSize);
+	}
+	
+	private static int roundUp(int size) {
+		return size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * The amount of released buffers that could not be pooled because the size class was full or they did not match a size class
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+	
+	public int getIdle() {
+		int idle = 0;
+		for (ArrayBlockingQueue<byte[]> sizeClass : sizeClasses) {
+			idle += sizeClass.size();
+		}
+		return idle;
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+}
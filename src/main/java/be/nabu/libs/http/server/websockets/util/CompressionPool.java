@@ -0,0 +1,123 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.util;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A bounded pool of raw (no zlib wrapper) deflaters and inflaters, their native state is expensive to set up.
+ * Only connections without context takeover can use the pool, with context takeover the compression state belongs to the connection.
+ * Instances that do not fit in the pool anymore are ended immediately instead of waiting for garbage collection.
+ * Deflaters are pooled per compression level: changing the level of a used deflater only takes effect on the next call to deflate, which then produces no output.
+ */
+public class CompressionPool {
+
+	private static CompressionPool instance = new CompressionPool(256);
+	
+	private int capacity;
+	private Map<Integer, ArrayBlockingQueue<Deflater>> deflaters = new ConcurrentHashMap<Integer, ArrayBlockingQueue<Deflater>>();
+	private ArrayBlockingQueue<Inflater> inflaters;
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+	
+	public static CompressionPool getInstance() {
+		return instance;
+	}
+	
+	public static void setInstance(CompressionPool instance) {
+		CompressionPool.instance = instance;
+	}
+	
+	/**
+	 * The capacity is the maximum amount of idle inflaters and idle deflaters per compression level that is kept
+	 */
+	public CompressionPool(int capacity) {
+		this.capacity = capacity;
+		this.inflaters = new ArrayBlockingQueue<Inflater>(capacity);
+	}
+	
+	public Deflater borrowDeflater(int level) {
+		Deflater deflater = getDeflaters(level).poll();
+		if (deflater == null) {
+			misses.incrementAndGet();
+			return new Deflater(level, true);
+		}
+		hits.incrementAndGet();
+		return deflater;
+	}
+	
+	/**
+	 * The level must be the one the deflater was borrowed with
+	 */
+	public void release(Deflater deflater, int level) {
+		deflater.reset();
+		if (!getDeflaters(level).offer(deflater)) {
+			deflater.end();
+		}
+	}
+	
+	private ArrayBlockingQueue<Deflater> getDeflaters(int level) {
+		ArrayBlockingQueue<Deflater> queue = deflaters.get(level);
+		if (queue == null) {
+			deflaters.putIfAbsent(level, new ArrayBlockingQueue<Deflater>(capacity));
+			queue = deflaters.get(level);
+		}
+		return queue;
+	}
+	
+	public Inflater borrowInflater() {
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			misses.incrementAndGet();
+			return new Inflater(true);
+		}
+		hits.incrementAndGet();
+		return inflater;
+	}
+	
+	public void release(Inflater inflater) {
+		inflater.reset();
+		if (!inflaters.offer(inflater)) {
+			inflater.end();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	public int getIdle() {
+		int idle = inflaters.size();
+		for (ArrayBlockingQueue<Deflater> queue : deflaters.values()) {
+			idle += queue.size();
+		}
+		return idle;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+}
@@ -17,6 +17,8 @@
 
 package be.nabu.libs.http.server.websockets.util;
 
+import java.util.regex.Pattern;
+
 import be.nabu.libs.events.api.EventHandler;
 import be.nabu.libs.http.server.websockets.api.WebSocketRequest;
 
@@ -24,6 +26,7 @@ public class PathFilter implements EventHandler<WebSocketRequest, Boolean> {
 
 	private String path;
 	private boolean isRegex, whitelist;
+	private Pattern pattern;
 
 	public PathFilter(String path) {
 		this(path, false, true);
@@ -37,18 +40,22 @@ public class PathFilter implements EventHandler<WebSocketRequest, Boolean> {
 		if (!isRegex && !this.path.startsWith("/")) {
 			this.path = "/" + this.path;
 		}
+		// compile once instead of on every message
+		if (isRegex) {
+			this.pattern = Pattern.compile(path);
+		}
 	}
 	
 	@Override
 	public Boolean handle(WebSocketRequest request) {
 		if (whitelist) {
 			return isRegex
-				? !request.getPath().matches(path)
+				? !pattern.matcher(request.getPath()).matches()
 				: !request.getPath().startsWith(path);
 		}
 		else {
 			return isRegex
-				? request.getPath().matches(path)
+				? pattern.matcher(request.getPath()).matches()
 				: request.getPath().startsWith(path);
 		}
 	}
@@ -0,0 +1,151 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import be.nabu.libs.events.api.EventHandler;
+import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
+import be.nabu.libs.http.server.websockets.api.WebSocketRequest;
+import be.nabu.libs.nio.PipelineUtils;
+import be.nabu.libs.nio.api.Pipeline;
+
+/**
+ * Routes incoming messages to the handlers registered for their path, this replaces subscribing a handler per path with a limitToPath() filter.
+ * Prefixes are stored in a trie and patterns are compiled once, so a path is resolved in a single pass regardless of the amount of routes.
+ * The path of a websocket connection does not change, so the resolved handlers are cached in the pipeline context.
+ */
+public class PathRouter implements EventHandler<WebSocketRequest, WebSocketMessage> {
+
+	private static AtomicLong counter = new AtomicLong();
+	
+	private String key = "websocket-routes-" + counter.incrementAndGet();
+	private Node root = new Node();
+	private List<PatternRoute> patterns = new ArrayList<PatternRoute>();
+	// updated whenever a route is added so cached resolutions are discarded
+	private volatile long version;
+	
+	/**
+	 * Routes all messages whose path starts with the given prefix (same semantics as PathFilter)
+	 */
+	public synchronized PathRouter route(String path, EventHandler<WebSocketRequest, WebSocketMessage> handler) {
+		if (!path.startsWith("/")) {
+			path = "/" + path;
+		}
+		Node node = root;
+		for (int i = 0; i < path.length(); i++) {
+			Node child = node.children.get(path.charAt(i));
+			if (child == null) {
+				child = new Node();
+				node.children.put(path.charAt(i), child);
+			}
+			node = child;
+		}
+		node.handlers.add(handler);
+		version++;
+		return this;
+	}
+	
+	/**
+	 * Routes all messages whose path matches the regex
+	 */
+	public synchronized PathRouter route(Pattern pattern, EventHandler<WebSocketRequest, WebSocketMessage> handler) {
+		patterns.add(new PatternRoute(pattern, handler));
+		version++;
+		return this;
+	}
+	
+	/**
+	 * Returns the handlers for the path: prefix routes from the shortest to the longest prefix, followed by the pattern routes in registration order
+	 */
+	public synchronized List<EventHandler<WebSocketRequest, WebSocketMessage>> resolve(String path) {
+		List<EventHandler<WebSocketRequest, WebSocketMessage>> handlers = new ArrayList<EventHandler<WebSocketRequest, WebSocketMessage>>();
+		if (path == null) {
+			return handlers;
+		}
+		Node node = root;
+		handlers.addAll(node.handlers);
+		for (int i = 0; i < path.length(); i++) {
+			node = node.children.get(path.charAt(i));
+			if (node == null) {
+				break;
+			}
+			handlers.addAll(node.handlers);
+		}
+		for (PatternRoute route : patterns) {
+			if (route.pattern.matcher(path).matches()) {
+				handlers.add(route.handler);
+			}
+		}
+		return handlers;
+	}
+	
+	@Override
+	public WebSocketMessage handle(WebSocketRequest request) {
+		for (EventHandler<WebSocketRequest, WebSocketMessage> handler : getHandlers(request)) {
+			WebSocketMessage response = handler.handle(request);
+			if (response != null) {
+				return response;
+			}
+		}
+		return null;
+	}
+
+	private List<EventHandler<WebSocketRequest, WebSocketMessage>> getHandlers(WebSocketRequest request) {
+		Pipeline pipeline = PipelineUtils.getPipeline();
+		if (pipeline == null) {
+			return resolve(request.getPath());
+		}
+		long version = this.version;
+		Resolved resolved = (Resolved) pipeline.getContext().get(key);
+		if (resolved == null || resolved.version != version) {
+			resolved = new Resolved(version, Collections.unmodifiableList(resolve(request.getPath())));
+			pipeline.getContext().put(key, resolved);
+		}
+		return resolved.handlers;
+	}
+	
+	private static class Node {
+		private Map<Character, Node> children = new HashMap<Character, Node>();
+		private List<EventHandler<WebSocketRequest, WebSocketMessage>> handlers = new ArrayList<EventHandler<WebSocketRequest, WebSocketMessage>>();
+	}
+	
+	private static class PatternRoute {
+		private Pattern pattern;
+		private EventHandler<WebSocketRequest, WebSocketMessage> handler;
+		public PatternRoute(Pattern pattern, EventHandler<WebSocketRequest, WebSocketMessage> handler) {
+			this.pattern = pattern;
+			this.handler = handler;
+		}
+	}
+	
+	private static class Resolved {
+		private long version;
+		private List<EventHandler<WebSocketRequest, WebSocketMessage>> handlers;
+		public Resolved(long version, List<EventHandler<WebSocketRequest, WebSocketMessage>> handlers) {
+			this.version = version;
+			this.handlers = handlers;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.authentication.api.RoleHandler;
+import be.nabu.libs.authentication.api.Token;
+import be.nabu.libs.authentication.api.TokenValidator;
+
+/**
+ * Caches role checks (and optionally token validation) per token for a specific validator and role handler, role handlers can be backed by expensive (e.g. directory) lookups.
+ * The cache is disabled by default, it is only used by broadcasts once an instance is set and only for the validator and role handler it was created for.
+ * Token validity is not cached unless a validity time to live is configured: a revoked token should stop receiving messages as soon as possible.
+ * When the token of a connection changes, the old token is invalidated.
+ */
+public class TokenCache {
+
+	private static volatile TokenCache instance;
+	
+	private TokenValidator tokenValidator;
+	private RoleHandler roleHandler;
+	private Map<Token, Entry> entries = new ConcurrentHashMap<Token, Entry>();
+	private long timeToLive = 30000, validityTimeToLive;
+	private int maxSize = 10000;
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+	
+	/**
+	 * Returns null if no cache is configured
+	 */
+	public static TokenCache getInstance() {
+		return instance;
+	}
+	
+	public static void setInstance(TokenCache instance) {
+		TokenCache.instance = instance;
+	}
+	
+	public TokenCache(TokenValidator tokenValidator, RoleHandler roleHandler) {
+		this.tokenValidator = tokenValidator;
+		this.roleHandler = roleHandler;
+	}
+	
+	/**
+	 * Whether this cache holds the answers of the given validator and role handler
+	 */
+	public boolean isFor(TokenValidator tokenValidator, RoleHandler roleHandler) {
+		return this.tokenValidator == tokenValidator && this.roleHandler == roleHandler;
+	}
+	
+	public boolean isValid(Token token) {
+		if (token == null || validityTimeToLive <= 0) {
+			return tokenValidator.isValid(token);
+		}
+		long now = System.currentTimeMillis();
+		Entry entry = getEntry(token, now);
+		if (entry.valid == null || entry.validUntil < now) {
+			misses.incrementAndGet();
+			entry.valid = tokenValidator.isValid(token);
+			entry.validUntil = now + validityTimeToLive;
+		}
+		else {
+			hits.incrementAndGet();
+		}
+		return entry.valid;
+	}
+	
+	public boolean hasRole(Token token, String role) {
+		if (token == null || timeToLive <= 0) {
+			return roleHandler.hasRole(token, role);
+		}
+		Entry entry = getEntry(token, System.currentTimeMillis());
+		Boolean result = entry.roles.get(role);
+		if (result == null) {
+			misses.incrementAndGet();
+			result = roleHandler.hasRole(token, role);
+			entry.roles.put(role, result);
+		}
+		else {
+			hits.incrementAndGet();
+		}
+		return result;
+	}
+	
+	public void invalidate(Token token) {
+		if (token != null) {
+			entries.remove(token);
+		}
+	}
+	
+	public void invalidate() {
+		entries.clear();
+	}
+	
+	private Entry getEntry(Token token, long now) {
+		Entry entry = entries.get(token);
+		if (entry == null || entry.expires < now) {
+			if (entries.size() >= maxSize) {
+				evict(now);
+			}
+			entry = new Entry(now + timeToLive);
+			entries.put(token, entry);
+		}
+		return entry;
+	}
+	
+	private void evict(long now) {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().expires < now) {
+				iterator.remove();
+			}
+		}
+		// nothing expired, start over rather than growing unbounded
+		if (entries.size() >= maxSize) {
+			entries.clear();
+		}
+	}
+	
+	public TokenValidator getTokenValidator() {
+		return tokenValidator;
+	}
+
+	public RoleHandler getRoleHandler() {
+		return roleHandler;
+	}
+
+	/**
+	 * How long (in ms) role checks are cached, 0 disables the caching of roles
+	 */
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * How long (in ms) the validity of a token is cached, by default (0) it is checked every time
+	 */
+	public long getValidityTimeToLive() {
+		return validityTimeToLive;
+	}
+
+	public void setValidityTimeToLive(long validityTimeToLive) {
+		this.validityTimeToLive = validityTimeToLive;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	public int size() {
+		return entries.size();
+	}
+
+	private static class Entry {
+		private long expires;
+		private volatile Boolean valid;
+		private volatile long validUntil;
+		private Map<String, Boolean> roles = new ConcurrentHashMap<String, Boolean>();
+		public Entry(long expires) {
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.util;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * An index of topic subscriptions, topics are "/" separated levels.
+ * A subscription can use "+" to match exactly one level and "#" (as the last level) to match any remaining levels including none, so "prices/+/eur" matches "prices/stock/eur" and "prices/#" matches "prices" and "prices/stock/eur".
+ * Subscriptions are stored in a tree of concurrent maps: publishing only walks the levels of the topic and never copies or locks, changing subscriptions is synchronized.
+ */
+public class TopicIndex<T> {
+
+	public static final String SEPARATOR = "/";
+	public static final String SINGLE_LEVEL = "+";
+	public static final String MULTI_LEVEL = "#";
+	
+	private static final Pattern TRIM = Pattern.compile("^[/]+|[/]+$");
+	
+	private Node<T> root = new Node<T>();
+	private Map<T, Set<String>> subscriptions = new ConcurrentHashMap<T, Set<String>>();
+	
+	public synchronized void subscribe(String filter, T subscriber) {
+		String [] levels = split(filter);
+		for (int i = 0; i < levels.length - 1; i++) {
+			if (MULTI_LEVEL.equals(levels[i])) {
+				throw new IllegalArgumentException("The multi level wildcard can only be used as the last level: " + filter);
+			}
+		}
+		Node<T> node = root;
+		for (String level : levels) {
+			Node<T> child = node.children.get(level);
+			if (child == null) {
+				child = new Node<T>();
+				node.children.put(level, child);
+			}
+			node = child;
+		}
+		node.subscribers.add(subscriber);
+		Set<String> filters = subscriptions.get(subscriber);
+		if (filters == null) {
+			filters = ConcurrentHashMap.newKeySet();
+			subscriptions.put(subscriber, filters);
+		}
+		filters.add(filter);
+	}
+	
+	public synchronized void unsubscribe(String filter, T subscriber) {
+		remove(root, split(filter), 0, subscriber);
+		Set<String> filters = subscriptions.get(subscriber);
+		if (filters != null) {
+			filters.remove(filter);
+			if (filters.isEmpty()) {
+				subscriptions.remove(subscriber);
+			}
+		}
+	}
+	
+	public synchronized void unsubscribeAll(T subscriber) {
+		Set<String> filters = subscriptions.remove(subscriber);
+		if (filters != null) {
+			for (String filter : filters) {
+				remove(root, split(filter), 0, subscriber);
+			}
+		}
+	}
+	
+	public Set<String> getSubscriptions(T subscriber) {
+		Set<String> filters = subscriptions.get(subscriber);
+		return filters == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(filters);
+	}
+	
+	/**
+	 * Returns every subscriber with at least one matching subscription, each subscriber is returned once
+	 */
+	public Set<T> getSubscribers(String topic) {
+		Set<T> result = new HashSet<T>();
+		collect(root, split(topic), 0, result);
+		return result;
+	}
+	
+	private void collect(Node<T> node, String [] levels, int index, Set<T> result) {
+		Node<T> multi = node.children.get(MULTI_LEVEL);
+		if (multi != null) {
+			result.addAll(multi.subscribers);
+		}
+		if (index == levels.length) {
+			result.addAll(node.subscribers);
+			return;
+		}
+		Node<T> child = node.children.get(levels[index]);
+		if (child != null) {
+			collect(child, levels, index + 1, result);
+		}
+		Node<T> single = node.children.get(SINGLE_LEVEL);
+		if (single != null) {
+			collect(single, levels, index + 1, result);
+		}
+	}
+	
+	// returns true if the node is no longer used
+	private boolean remove(Node<T> node, String [] levels, int index, T subscriber) {
+		if (index == levels.length) {
+			node.subscribers.remove(subscriber);
+		}
+		else {
+			Node<T> child = node.children.get(levels[index]);
+			if (child != null && remove(child, levels, index + 1, subscriber)) {
+				node.children.remove(levels[index]);
+			}
+		}
+		return node.subscribers.isEmpty() && node.children.isEmpty();
+	}
+	
+	private static String [] split(String topic) {
+		return TRIM.matcher(topic).replaceAll("").split(SEPARATOR);
+	}
+	
+	private static class Node<T> {
+		private Map<String, Node<T>> children = new ConcurrentHashMap<String, Node<T>>();
+		private Set<T> subscribers = ConcurrentHashMap.newKeySet();
+	}
+}
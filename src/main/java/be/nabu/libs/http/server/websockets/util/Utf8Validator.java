@@ -0,0 +1,129 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.util;
+
+/**
+ * Validates UTF-8 incrementally as described in https://tools.ietf.org/html/rfc3629#section-4
+ * 
+ * The data can be passed in in arbitrary chunks, a multibyte character can be split over multiple chunks (or fragments).
+ * As long as we are not in the middle of a character, ASCII is skipped 8 bytes at a time.
+ * Once invalid data is found the validator stays invalid until it is reset.
+ */
+public class Utf8Validator {
+	
+	private static final long ASCII_MASK = 0x8080808080808080L;
+	
+	// the amount of continuation bytes we still expect for the current character
+	private int needed;
+	// the allowed range for the next continuation byte, this excludes overlong encodings, surrogates and code points beyond U+10FFFF
+	private int lower = 0x80, upper = 0xBF;
+	private boolean valid = true;
+	
+	public boolean validate(byte [] bytes, int offset, int length) {
+		if (!valid) {
+			return false;
+		}
+		int end = offset + length;
+		int i = offset;
+		java.nio.ByteBuffer buffer = null;
+		while (i < end) {
+			if (needed == 0 && end - i >= 8) {
+				if (buffer == null) {
+					buffer = java.nio.ByteBuffer.wrap(bytes);
+				}
+				if ((buffer.getLong(i) & ASCII_MASK) == 0) {
+					i += 8;
+					continue;
+				}
+			}
+			int value = bytes[i++] & 0xff;
+			if (needed == 0) {
+				if (value < 0x80) {
+					continue;
+				}
+				else if (value >= 0xC2 && value <= 0xDF) {
+					needed = 1;
+				}
+				else if (value == 0xE0) {
+					needed = 2;
+					lower = 0xA0;
+				}
+				else if (value == 0xED) {
+					needed = 2;
+					upper = 0x9F;
+				}
+				else if (value >= 0xE1 && value <= 0xEF) {
+					needed = 2;
+				}
+				else if (value == 0xF0) {
+					needed = 3;
+					lower = 0x90;
+				}
+				else if (value == 0xF4) {
+					needed = 3;
+					upper = 0x8F;
+				}
+				else if (value >= 0xF1 && value <= 0xF3) {
+					needed = 3;
+				}
+				else {
+					valid = false;
+					return false;
+				}
+			}
+			else {
+				if (value < lower || value > upper) {
+					valid = false;
+					return false;
+				}
+				lower = 0x80;
+				upper = 0xBF;
+				needed--;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Whether all the data so far is valid and does not end in the middle of a character, this should be checked at the end of the message
+	 */
+	public boolean isComplete() {
+		return valid && needed == 0;
+	}
+	
+	public boolean isValid() {
+		return valid;
+	}
+	
+	/**
+	 * Takes over the state of another validator
+	 */
+	public void copy(Utf8Validator validator) {
+		needed = validator.needed;
+		lower = validator.lower;
+		upper = validator.upper;
+		valid = validator.valid;
+	}
+	
+	public void reset() {
+		needed = 0;
+		lower = 0x80;
+		upper = 0xBF;
+		valid = true;
+	}
+}
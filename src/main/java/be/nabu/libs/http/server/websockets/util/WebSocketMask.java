@@ -0,0 +1,71 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.util;
+
+import java.security.SecureRandom;
+
+/**
+ * Applies a websocket masking key to a payload, as described in https://tools.ietf.org/html/rfc6455#section-5.3
+ * 
+ * The mask is expanded to a long so the bulk of the payload is XOR-ed 8 bytes at a time, only the tail is done byte per byte.
+ * Because the data may arrive in multiple chunks, the position of the chunk within the payload determines the rotation of the key.
+ */
+public class WebSocketMask {
+	
+	// every thread has its own generator so connections don't contend on a single one
+	private static ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>() {
+		@Override
+		protected SecureRandom initialValue() {
+			return new SecureRandom();
+		}
+	};
+	
+	/**
+	 * The masking key of a frame must be unpredictable, so it is taken from a strong source of entropy: https://tools.ietf.org/html/rfc6455#section-10.3
+	 */
+	public static int newKey() {
+		return random.get().nextInt();
+	}
+	
+	/**
+	 * The masking key is expected in network byte order (the first byte of the key is the most significant byte of the int)
+	 * The XOR is symmetrical so the same method is used to both mask and unmask
+	 * It returns the position in the payload after the chunk, which can be fed into the next call
+	 */
+	public static long apply(byte [] bytes, int offset, int length, int maskingKey, long position) {
+		// rotate the key so the first byte lines up with the start of this chunk
+		int rotated = Integer.rotateLeft(maskingKey, ((int) (position & 3)) * 8);
+		int i = 0;
+		if (length >= 8) {
+			long wide = ((rotated & 0xffffffffL) << 32) | (rotated & 0xffffffffL);
+			// the wrapper is big endian so the bytes line up with the int key
+			java.nio.ByteBuffer buffer = java.nio.ByteBuffer.wrap(bytes);
+			for (; i <= length - 8; i += 8) {
+				buffer.putLong(offset + i, buffer.getLong(offset + i) ^ wide);
+			}
+		}
+		for (; i < length; i++) {
+			bytes[offset + i] ^= (byte) (rotated >>> (24 - ((i & 3) * 8)));
+		}
+		return position + length;
+	}
+	
+	public static int toInt(byte [] maskingKey) {
+		return ((maskingKey[0] & 0xff) << 24) | ((maskingKey[1] & 0xff) << 16) | ((maskingKey[2] & 0xff) << 8) | (maskingKey[3] & 0xff);
+	}
+}
@@ -29,6 +29,18 @@ public class BitTest extends TestCase {
 		assertEquals(OpCode.TEXT, (OpCode.getOpCode((byte) (113 & 15))));
 	}
 	
+	public void testOpCodeLookup() {
+		for (OpCode opCode : OpCode.values()) {
+			assertEquals(opCode, OpCode.getOpCode(opCode.getCode()));
+		}
+		// reserved opcodes
+		assertNull(OpCode.getOpCode((byte) 3));
+		assertNull(OpCode.getOpCode((byte) 15));
+		// out of range
+		assertNull(OpCode.getOpCode((byte) 16));
+		assertNull(OpCode.getOpCode((byte) -1));
+	}
+	
 	public void testLongSignBit() {
 		long a = Long.MIN_VALUE + 100;
 		// need to set the most significant bit to 0
@@ -0,0 +1,247 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.DataOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import be.nabu.libs.authentication.api.RoleHandler;
+import be.nabu.libs.authentication.api.TokenValidator;
+import be.nabu.libs.http.server.websockets.api.BroadcastBusListener;
+import be.nabu.libs.http.server.websockets.api.ClusterBroadcast;
+import junit.framework.TestCase;
+
+public class BroadcastBusTest extends TestCase {
+	
+	public void testBatching() throws Exception {
+		LocalBroadcastBus first = new LocalBroadcastBus();
+		LocalBroadcastBus second = new LocalBroadcastBus(first);
+		first.setBatchSize(3);
+		first.setLingerTime(60000);
+		Collector collector = new Collector(3);
+		second.subscribe(collector);
+		
+		first.publish(ClusterBroadcastImpl.newTopicBroadcast("node1", "a", "1".getBytes("UTF-8")));
+		first.publish(ClusterBroadcastImpl.newTopicBroadcast("node1", "b", "2".getBytes("UTF-8")));
+		assertEquals(0, collector.batches.size());
+		first.publish(ClusterBroadcastImpl.newTopicBroadcast("node1", "c", "3".getBytes("UTF-8")));
+		assertEquals(1, collector.batches.size());
+		assertEquals(3, collector.batches.get(0).size());
+		assertEquals("c", collector.batches.get(0).get(2).getTopic());
+		first.close();
+		second.close();
+	}
+	
+	public void testTcp() throws Exception {
+		TcpBroadcastBus first = new TcpBroadcastBus(0);
+		TcpBroadcastBus second = new TcpBroadcastBus(0);
+		first.connect(second.getPort());
+		first.setLingerTime(1);
+		Collector local = new Collector(2), remote = new Collector(2);
+		first.subscribe(local);
+		second.subscribe(remote);
+		
+		first.publish(ClusterBroadcastImpl.newPathBroadcast("node1", "/chat", "hello".getBytes("UTF-8"), Arrays.asList("alice"), null, null, null, null, Arrays.asList("guest"), null, null));
+		first.publish(ClusterBroadcastImpl.newTopicBroadcast("node1", "prices/eur", "10".getBytes("UTF-8")));
+		assertTrue(remote.await());
+		assertTrue(local.await());
+		
+		ClusterBroadcast received = remote.getBroadcasts().get(0);
+		assertEquals("node1", received.getOrigin());
+		assertEquals("/chat", received.getPath());
+		assertEquals("hello", new String(received.getBytes(), "UTF-8"));
+		assertEquals(Arrays.asList("alice"), received.getUsers());
+		assertNull(received.getRoles());
+		assertEquals(Arrays.asList("guest"), received.getNotRoles());
+		assertEquals("prices/eur", remote.getBroadcasts().get(1).getTopic());
+		first.close();
+		second.close();
+	}
+	
+	// a peer that announces more than we accept is dropped before anything is allocated
+	public void testTcpLimits() throws Exception {
+		TcpBroadcastBus bus = new TcpBroadcastBus(0);
+		bus.setMaxBatchSize(10);
+		bus.setMaxBroadcastSize(100);
+		try {
+			assertDropped(bus, Integer.MAX_VALUE, -1);
+			assertDropped(bus, 1, Integer.MAX_VALUE);
+		}
+		finally {
+			bus.close();
+		}
+	}
+	
+	private static void assertDropped(TcpBroadcastBus bus, int size, int length) throws Exception {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), bus.getPort());
+		try {
+			socket.setSoTimeout(5000);
+			DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+			output.writeInt(size);
+			// a broadcast without origin, topic and path
+			output.writeBoolean(false);
+			output.writeBoolean(false);
+			output.writeBoolean(false);
+			output.writeInt(length);
+			output.flush();
+			assertEquals(-1, socket.getInputStream().read());
+		}
+		finally {
+			socket.close();
+		}
+	}
+	
+	// batches that are filled up by publishers must not overtake batches that are flushed by the scheduler
+	public void testOrdering() throws Exception {
+		LocalBroadcastBus bus = new LocalBroadcastBus();
+		bus.setBatchSize(7);
+		bus.setLingerTime(1);
+		int amount = 5000;
+		Collector collector = new Collector(amount);
+		bus.subscribe(collector);
+		for (int i = 0; i < amount; i++) {
+			bus.publish(ClusterBroadcastImpl.newTopicBroadcast("node1", "topic", Integer.toString(i).getBytes("ASCII")));
+			if (i % 100 == 0) {
+				Thread.sleep(1);
+			}
+		}
+		assertTrue(collector.await());
+		List<ClusterBroadcast> broadcasts = collector.getBroadcasts();
+		for (int i = 0; i < amount; i++) {
+			assertEquals(Integer.toString(i), new String(broadcasts.get(i).getBytes(), "ASCII"));
+		}
+		bus.close();
+	}
+	
+	public void testEchoSuppression() throws Exception {
+		LocalBroadcastBus firstBus = new LocalBroadcastBus();
+		LocalBroadcastBus secondBus = new LocalBroadcastBus(firstBus);
+		firstBus.setLingerTime(0);
+		RecordingNode first = new RecordingNode(firstBus), second = new RecordingNode(secondBus);
+		
+		first.publish(ClusterBroadcastImpl.newTopicBroadcast(first.getNodeId(), "prices/eur", "10".getBytes("UTF-8")));
+		assertEquals(0, first.delivered.size());
+		assertEquals(1, first.getSuppressed());
+		assertEquals(1, second.delivered.size());
+		assertEquals(0, second.getSuppressed());
+		assertEquals("prices/eur", second.delivered.get(0).getTopic());
+		
+		try {
+			first.publish(ClusterBroadcastImpl.newTopicBroadcast(second.getNodeId(), "prices/eur", "10".getBytes("UTF-8")));
+			fail("A node can only publish its own broadcasts");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	public void testRoleFilteredRelay() throws Exception {
+		LocalBroadcastBus firstBus = new LocalBroadcastBus();
+		LocalBroadcastBus secondBus = new LocalBroadcastBus(firstBus);
+		firstBus.setLingerTime(0);
+		RecordingNode first = new RecordingNode(firstBus), second = new RecordingNode(secondBus);
+		
+		first.publish(ClusterBroadcastImpl.newPathBroadcast(first.getNodeId(), "/chat", "hello".getBytes("UTF-8"), null, Arrays.asList("admin"), null, null, null, Arrays.asList("guest"), null, null));
+		assertEquals(1, second.delivered.size());
+		ClusterBroadcast received = second.delivered.get(0);
+		assertEquals(Arrays.asList("admin"), received.getRoles());
+		assertEquals(Arrays.asList("guest"), received.getNotRoles());
+		// the receiving node filters with its own validator and role handler
+		assertNotNull(second.getRoleHandler());
+		assertNotNull(second.getTokenValidator());
+	}
+	
+	public void testMissingRoleHandler() {
+		try {
+			new ClusterNode(null, new LocalBroadcastBus(), newProxy(TokenValidator.class), null);
+			fail("The role handler is required");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	// a node whose server is gone leaves the bus
+	public void testServerGone() throws Exception {
+		LocalBroadcastBus bus = new LocalBroadcastBus();
+		bus.setLingerTime(0);
+		ClusterNode node = new ClusterNode(null, bus, newProxy(TokenValidator.class), newProxy(RoleHandler.class));
+		bus.subscribe(node);
+		bus.publish(ClusterBroadcastImpl.newTopicBroadcast("other", "prices/eur", "10".getBytes("UTF-8")));
+		assertEquals(1, node.getReceived());
+		bus.publish(ClusterBroadcastImpl.newTopicBroadcast("other", "prices/eur", "11".getBytes("UTF-8")));
+		assertEquals(1, node.getReceived());
+		bus.close();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> T newProxy(Class<T> type) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?> [] { type }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				return method.getReturnType().equals(boolean.class) ? true : null;
+			}
+		});
+	}
+	
+	private static class RecordingNode extends ClusterNode {
+		private List<ClusterBroadcast> delivered = new ArrayList<ClusterBroadcast>();
+		public RecordingNode(LocalBroadcastBus bus) {
+			super(null, bus, newProxy(TokenValidator.class), newProxy(RoleHandler.class));
+			bus.subscribe(this);
+		}
+		@Override
+		protected void deliver(ClusterBroadcast broadcast) {
+			delivered.add(broadcast);
+		}
+	}
+	
+	private static class Collector implements BroadcastBusListener {
+		private List<List<ClusterBroadcast>> batches = new ArrayList<List<ClusterBroadcast>>();
+		private CountDownLatch latch;
+		public Collector(int expected) {
+			latch = new CountDownLatch(expected);
+		}
+		@Override
+		public synchronized void received(List<ClusterBroadcast> broadcasts) {
+			batches.add(broadcasts);
+			for (int i = 0; i < broadcasts.size(); i++) {
+				latch.countDown();
+			}
+		}
+		public boolean await() throws InterruptedException {
+			return latch.await(5, TimeUnit.SECONDS);
+		}
+		public synchronized List<ClusterBroadcast> getBroadcasts() {
+			List<ClusterBroadcast> broadcasts = new ArrayList<ClusterBroadcast>();
+			for (List<ClusterBroadcast> batch : batches) {
+				broadcasts.addAll(batch);
+			}
+			return broadcasts;
+		}
+	}
+}
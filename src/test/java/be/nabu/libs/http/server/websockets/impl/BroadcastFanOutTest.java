@@ -0,0 +1,116 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class BroadcastFanOutTest extends TestCase {
+	
+	public void testInline() throws Exception {
+		BroadcastFanOut fanOut = new BroadcastFanOut();
+		final Thread caller = Thread.currentThread();
+		final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+		BroadcastResult result = fanOut.fanOut(newTargets(10), new BroadcastFanOut.Delivery<Integer>() {
+			@Override
+			public boolean deliver(Integer target) {
+				threads.add(Thread.currentThread());
+				return target % 2 == 0;
+			}
+		}).get();
+		assertEquals(10, result.getCandidates());
+		assertEquals(5, result.getDelivered());
+		assertEquals(1, result.getPartitions());
+		assertEquals(1, threads.size());
+		assertTrue(threads.contains(caller));
+	}
+	
+	public void testParallel() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			BroadcastFanOut fanOut = new BroadcastFanOut();
+			fanOut.setExecutor(executor);
+			fanOut.setThreshold(100);
+			fanOut.setPartitionSize(30);
+			final Set<Integer> delivered = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+			BroadcastResult result = fanOut.fanOut(newTargets(1000), new BroadcastFanOut.Delivery<Integer>() {
+				@Override
+				public boolean deliver(Integer target) {
+					assertTrue(delivered.add(target));
+					return target % 10 != 0;
+				}
+			}).get(10, TimeUnit.SECONDS);
+			assertEquals(1000, result.getCandidates());
+			assertEquals(900, result.getDelivered());
+			assertEquals(34, result.getPartitions());
+			assertEquals(1000, delivered.size());
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+	
+	public void testFailure() throws Exception {
+		BroadcastFanOut fanOut = new BroadcastFanOut();
+		fanOut.setThreshold(10);
+		fanOut.setPartitionSize(5);
+		try {
+			fanOut.fanOut(newTargets(50), new BroadcastFanOut.Delivery<Integer>() {
+				@Override
+				public boolean deliver(Integer target) throws IOException {
+					if (target == 42) {
+						throw new IOException("Could not deliver");
+					}
+					return true;
+				}
+			}).get(10, TimeUnit.SECONDS);
+			fail("The failure of a partition should fail the broadcast");
+		}
+		catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+	
+	public void testInvalidPartitionSize() {
+		try {
+			new BroadcastFanOut().setPartitionSize(0);
+			fail("A partition size of 0 would never finish");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	private static List<Integer> newTargets(int amount) {
+		List<Integer> targets = new ArrayList<Integer>();
+		for (int i = 0; i < amount; i++) {
+			targets.add(i);
+		}
+		return targets;
+	}
+}
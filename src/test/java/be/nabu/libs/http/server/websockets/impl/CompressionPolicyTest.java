@@ -0,0 +1,60 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class CompressionPolicyTest extends TestCase {
+	
+	public void testEntropy() throws Exception {
+		CompressionPolicy policy = new CompressionPolicy();
+		byte [] random = new byte[1024];
+		new Random().nextBytes(random);
+		assertFalse(policy.isCompressible(random, random.length));
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			builder.append("{\"id\": " + i + ", \"name\": \"entry " + i + "\"}");
+		}
+		byte [] json = builder.toString().getBytes("UTF-8");
+		assertTrue(policy.isCompressible(json, json.length));
+	}
+	
+	public void testBackoff() {
+		CompressionPolicy policy = new CompressionPolicy();
+		policy.setProbeInterval(4);
+		CompressionPolicy.Tracker tracker = new CompressionPolicy.Tracker();
+		byte [] bytes = new byte[1024];
+		assertTrue(policy.shouldCompress(tracker, "/test", bytes, bytes.length));
+		// the data barely compresses
+		policy.record(tracker, "/test", 1000, 990);
+		int compressed = 0;
+		for (int i = 0; i < 8; i++) {
+			if (policy.shouldCompress(tracker, "/test", bytes, bytes.length)) {
+				compressed++;
+			}
+		}
+		// only the probes go through
+		assertEquals(2, compressed);
+		assertEquals(6, policy.getSkippedBackoff());
+		// a new connection on the same path starts from the path history
+		assertFalse(policy.shouldCompress(new CompressionPolicy.Tracker(), "/test", bytes, bytes.length));
+		assertTrue(policy.shouldCompress(new CompressionPolicy.Tracker(), "/other", bytes, bytes.length));
+	}
+}
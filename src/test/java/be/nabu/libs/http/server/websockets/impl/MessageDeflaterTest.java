@@ -0,0 +1,141 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import be.nabu.libs.http.server.websockets.WebSocketCloseException;
+import be.nabu.libs.http.server.websockets.api.CloseCode;
+import be.nabu.libs.http.server.websockets.api.OpCode;
+import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
+import be.nabu.libs.http.server.websockets.util.CompressionPool;
+import junit.framework.TestCase;
+
+public class MessageDeflaterTest extends TestCase {
+	
+	// the example from https://tools.ietf.org/html/rfc7692#section-7.2.3.1
+	public void testInflateExample() throws Exception {
+		MessageInflater inflater = new MessageInflater(false, 0);
+		byte [] inflated = inflater.inflate(new ByteArrayInputStream(new byte [] { (byte) 0xf2, 0x48, (byte) 0xcd, (byte) 0xc9, (byte) 0xc9, 0x07, 0x00 }), true);
+		assertEquals("Hello", new String(inflated, "ASCII"));
+	}
+	
+	public void testRoundTrip() throws Exception {
+		for (boolean noContextTakeover : new boolean [] { false, true }) {
+			MessageDeflater deflater = new MessageDeflater(noContextTakeover, 6);
+			MessageInflater inflater = new MessageInflater(noContextTakeover, 0);
+			for (int i = 0; i < 5; i++) {
+				byte [] original = ("{\"message\": " + i + ", \"content\": \"the same content in every message\"}").getBytes("UTF-8");
+				byte [] deflated = deflater.deflate(original);
+				assertTrue(Arrays.equals(original, inflater.inflate(new ByteArrayInputStream(deflated), true)));
+			}
+		}
+	}
+	
+	// pooled deflaters are reused across levels, the first flush after a level change does not produce any output
+	public void testEmptyPayloadAcrossLevels() throws Exception {
+		for (int level : new int [] { 9, 6, 1, 9, 0, 6 }) {
+			for (boolean noContextTakeover : new boolean [] { true, false }) {
+				MessageDeflater deflater = new MessageDeflater(noContextTakeover, level);
+				for (byte [] original : new byte [][] { new byte[0], "a".getBytes("ASCII"), new byte[0] }) {
+					byte [] deflated = deflater.deflate(original);
+					assertTrue(deflated.length > 0);
+					MessageInflater inflater = new MessageInflater(true, 0);
+					assertTrue(Arrays.equals(original, inflater.inflate(new ByteArrayInputStream(deflated), true)));
+				}
+			}
+		}
+	}
+	
+	public void testStaticDeflateAcrossLevels() throws Exception {
+		byte [] original = "{\"message\": \"shared between levels\"}".getBytes("UTF-8");
+		for (int level : new int [] { 9, 6, 9, 1 }) {
+			byte [] deflated = MessageDeflater.deflate(level, original);
+			assertTrue(Arrays.equals(original, new MessageInflater(true, 0).inflate(new ByteArrayInputStream(deflated), true)));
+			assertTrue(Arrays.equals(new byte[0], new MessageInflater(true, 0).inflate(new ByteArrayInputStream(MessageDeflater.deflate(level, new byte[0])), true)));
+		}
+	}
+	
+	public void testFragmentedInflate() throws Exception {
+		byte [] original = new byte[100000];
+		for (int i = 0; i < original.length; i++) {
+			original[i] = (byte) ('a' + (i % 7));
+		}
+		byte [] deflated = new MessageDeflater(false, 6).deflate(original);
+		MessageInflater inflater = new MessageInflater(false, 0);
+		int half = deflated.length / 2;
+		byte [] first = inflater.inflate(new ByteArrayInputStream(deflated, 0, half), false);
+		byte [] second = inflater.inflate(new ByteArrayInputStream(deflated, half, deflated.length - half), true);
+		byte [] inflated = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, inflated, first.length, second.length);
+		assertTrue(Arrays.equals(original, inflated));
+	}
+	
+	public void testInflateLimit() throws Exception {
+		byte [] deflated = new MessageDeflater(false, 9).deflate(new byte[1024 * 1024]);
+		MessageInflater inflater = new MessageInflater(false, 1024);
+		try {
+			inflater.inflate(new ByteArrayInputStream(deflated), true);
+			fail("The inflated size should exceed the limit");
+		}
+		catch (WebSocketCloseException e) {
+			assertEquals(CloseCode.MESSAGE_TOO_BIG, e.getCode());
+		}
+	}
+	
+	// the zlib state of a connection is freed when it closes, a pooled inflater held in the middle of a message is given back
+	public void testClose() throws Exception {
+		CompressionPool original = CompressionPool.getInstance();
+		CompressionPool pool = new CompressionPool(4);
+		CompressionPool.setInstance(pool);
+		try {
+			byte [] deflated = new MessageDeflater(true, 6).deflate("a message in two fragments".getBytes("ASCII"));
+			PerMessageDeflate extension = new PerMessageDeflate(true, false, true, 6, 0, null, "/test");
+			extension.getInflater().inflate(new ByteArrayInputStream(deflated, 0, deflated.length / 2), false);
+			extension.getDeflater().deflate("with context takeover".getBytes("ASCII"));
+			int idle = pool.getIdle();
+			extension.close();
+			assertEquals(idle + 1, pool.getIdle());
+			// closing again does nothing
+			extension.close();
+			assertEquals(idle + 1, pool.getIdle());
+			try {
+				extension.getDeflater().deflate("after close".getBytes("ASCII"));
+				fail("The deflater should be closed");
+			}
+			catch (IOException e) {
+				// expected
+			}
+		}
+		finally {
+			CompressionPool.setInstance(original);
+		}
+	}
+	
+	// large messages are not read into memory to be compressed
+	public void testMaxDeflateSize() throws Exception {
+		PerMessageDeflate extension = new PerMessageDeflate(true, false, false, 6, 0, null, "/test");
+		extension.setMaxDeflateSize(16);
+		WebSocketMessage small = EncodedWebSocketMessage.encode(OpCode.TEXT, true, "aaaaaaaaaaaaaaaa".getBytes("ASCII"));
+		assertEquals(4, extension.encode(small).getReservedBits());
+		WebSocketMessage large = EncodedWebSocketMessage.encode(OpCode.TEXT, true, "aaaaaaaaaaaaaaaaa".getBytes("ASCII"));
+		assertTrue(large == extension.encode(large));
+	}
+}
@@ -0,0 +1,175 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import be.nabu.libs.authentication.api.Token;
+import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
+import be.nabu.libs.http.server.websockets.api.WebSocketRequest;
+import be.nabu.libs.nio.api.NIOServer;
+import be.nabu.libs.nio.api.Pipeline;
+import be.nabu.libs.nio.api.StandardizedMessagePipeline;
+import junit.framework.TestCase;
+
+public class WebSocketConnectionRegistryTest extends TestCase {
+	
+	// the pipelines the server currently knows about
+	private List<Pipeline> alive = new ArrayList<Pipeline>();
+	
+	public void testLookup() {
+		WebSocketConnectionRegistry registry = new WebSocketConnectionRegistry(newServer());
+		StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> alice = newPipeline("/chat", "alice");
+		StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> bob = newPipeline("/chat", "bob");
+		StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> other = newPipeline("/other", "alice");
+		registry.register(alice);
+		registry.register(bob);
+		registry.register(other);
+		assertEquals(3, registry.size());
+		assertEquals(2, registry.getPipelines("/chat").size());
+		assertEquals(3, registry.getPipelines(null).size());
+		assertEquals(Arrays.asList(alice), registry.getPipelines("/chat", Arrays.asList("alice"), null, null));
+		assertEquals(0, registry.getPipelines("/chat", Arrays.asList("charlie"), null, null).size());
+	}
+	
+	public void testCloseFrame() {
+		WebSocketConnectionRegistry registry = new WebSocketConnectionRegistry(newServer());
+		StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline = newPipeline("/chat", "alice");
+		registry.register(pipeline);
+		registry.subscribe(pipeline, "news/+");
+		assertEquals(1, registry.getSubscribers("news/sports").size());
+		((WebSocketRequestParserFactory) pipeline.getRequestParserFactory()).close();
+		assertEquals(0, registry.size());
+		assertEquals(0, registry.getPipelines("/chat").size());
+		assertEquals(0, registry.getSubscribers("news/sports").size());
+	}
+	
+	// the server can close a connection without a close frame (idle timeout, io error, shutdown), those must not linger in the registry
+	public void testClosedByServer() {
+		WebSocketConnectionRegistry registry = new WebSocketConnectionRegistry(newServer());
+		registry.setPruneInterval(0);
+		StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> alice = newPipeline("/chat", "alice");
+		StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> bob = newPipeline("/chat", "bob");
+		registry.register(alice);
+		registry.register(bob);
+		registry.subscribe(bob, "news");
+		
+		alive.remove(bob);
+		assertEquals(Arrays.asList(alice), registry.getPipelines("/chat"));
+		assertEquals(1, registry.size());
+		assertTrue(((WebSocketRequestParserFactory) bob.getRequestParserFactory()).isClosed());
+		assertEquals(0, registry.getSubscribers("news").size());
+		
+		// server shutdown
+		alive.clear();
+		assertEquals(0, registry.getPipelines(null).size());
+		assertEquals(0, registry.size());
+	}
+	
+	public void testPruneInterval() {
+		WebSocketConnectionRegistry registry = new WebSocketConnectionRegistry(newServer());
+		registry.setPruneInterval(60000);
+		StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline = newPipeline("/chat", "alice");
+		registry.register(pipeline);
+		alive.remove(pipeline);
+		// not yet due
+		assertEquals(1, registry.getPipelines("/chat").size());
+		registry.prune();
+		assertEquals(0, registry.getPipelines("/chat").size());
+	}
+	
+	// a connection that closes while it is being registered is not kept
+	public void testClosedBeforeRegistration() {
+		WebSocketConnectionRegistry registry = new WebSocketConnectionRegistry(newServer());
+		StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline = newPipeline("/chat", "alice");
+		((WebSocketRequestParserFactory) pipeline.getRequestParserFactory()).close();
+		registry.register(pipeline);
+		assertEquals(0, registry.size());
+	}
+	
+	// the connections pin the server in the weak map, removing the registry on shutdown releases both
+	public void testRemove() {
+		NIOServer server = newServer();
+		WebSocketConnectionRegistry registry = WebSocketConnectionRegistry.getInstance(server);
+		StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline = newPipeline("/chat", "alice");
+		registry.register(pipeline);
+		WebSocketConnectionRegistry.remove(server);
+		assertTrue(((WebSocketRequestParserFactory) pipeline.getRequestParserFactory()).isClosed());
+		assertEquals(0, registry.size());
+		assertFalse(registry == WebSocketConnectionRegistry.getInstance(server));
+		WebSocketConnectionRegistry.remove(server);
+	}
+	
+	private NIOServer newServer() {
+		return (NIOServer) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?> [] { NIOServer.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("getPipelines")) {
+					return new ArrayList<Pipeline>(alive);
+				}
+				return defaultValue(proxy, method, args);
+			}
+		});
+	}
+	
+	@SuppressWarnings("unchecked")
+	private StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> newPipeline(String path, String user) {
+		final WebSocketRequestParserFactory factory = new WebSocketRequestParserFactory(null, null, path, 13, newToken(user), null, null);
+		StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage> pipeline = (StandardizedMessagePipeline<WebSocketRequest, WebSocketMessage>) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?> [] { StandardizedMessagePipeline.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("getRequestParserFactory")) {
+					return factory;
+				}
+				return defaultValue(proxy, method, args);
+			}
+		});
+		alive.add(pipeline);
+		return pipeline;
+	}
+	
+	private Token newToken(final String name) {
+		return (Token) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?> [] { Token.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("getName")) {
+					return name;
+				}
+				return defaultValue(proxy, method, args);
+			}
+		});
+	}
+	
+	private static Object defaultValue(Object proxy, Method method, Object[] args) {
+		if (method.getName().equals("equals")) {
+			return proxy == args[0];
+		}
+		else if (method.getName().equals("hashCode")) {
+			return System.identityHashCode(proxy);
+		}
+		else if (method.getName().equals("toString")) {
+			return "proxy@" + System.identityHashCode(proxy);
+		}
+		return method.getReturnType().equals(boolean.class) ? false : null;
+	}
+}
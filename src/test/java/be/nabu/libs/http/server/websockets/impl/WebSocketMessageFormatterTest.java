@@ -0,0 +1,374 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import be.nabu.libs.http.server.websockets.api.OpCode;
+import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
+import be.nabu.libs.http.server.websockets.util.BufferPool;
+import be.nabu.libs.http.server.websockets.util.WebSocketMask;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import junit.framework.TestCase;
+
+public class WebSocketMessageFormatterTest extends TestCase {
+	
+	public void testFrame() throws IOException {
+		WebSocketMessageFormatterFactory factory = new WebSocketMessageFormatterFactory(false);
+		List<Frame> frames = format(factory, message(OpCode.TEXT, "hello".getBytes("UTF-8")));
+		assertEquals(1, frames.size());
+		assertFrame(frames.get(0), OpCode.TEXT, true, "hello".getBytes("UTF-8"));
+		assertFalse(frames.get(0).masked);
+	}
+	
+	// the data is masked in chunks as it is streamed, every frame gets its own key
+	public void testMasked() throws IOException {
+		WebSocketMessageFormatterFactory factory = new WebSocketMessageFormatterFactory(true);
+		byte [] payload = payload(10000);
+		Set<Integer> keys = new HashSet<Integer>();
+		for (int i = 0; i < 10; i++) {
+			List<Frame> frames = format(factory, message(OpCode.BINARY, payload));
+			assertEquals(1, frames.size());
+			assertTrue(frames.get(0).masked);
+			assertFrame(frames.get(0), OpCode.BINARY, true, payload);
+			keys.add(frames.get(0).maskingKey);
+		}
+		assertTrue(keys.size() > 1);
+	}
+	
+	// the formatters of a connection share the header buffer, one message is formatted after the other
+	public void testSharedBuffers() throws IOException {
+		WebSocketMessageFormatterFactory factory = new WebSocketMessageFormatterFactory(false);
+		byte [] header = factory.getHeaderBytes();
+		assertFrame(format(factory, message(OpCode.BINARY, payload(70000))).get(0), OpCode.BINARY, true, payload(70000));
+		assertFrame(format(factory, message(OpCode.TEXT, "short".getBytes("UTF-8"))).get(0), OpCode.TEXT, true, "short".getBytes("UTF-8"));
+		assertFrame(format(factory, message(OpCode.BINARY, payload(300))).get(0), OpCode.BINARY, true, payload(300));
+		assertTrue(header == factory.getHeaderBytes());
+	}
+	
+	// the buffers for masking, fragments and coalesced frames are only borrowed while the message is being written
+	public void testPooledBuffers() throws IOException {
+		BufferPool original = BufferPool.getInstance();
+		BufferPool pool = new BufferPool(1024, 8192, 4);
+		BufferPool.setInstance(pool);
+		try {
+			WebSocketMessageFormatterFactory factory = new WebSocketMessageFormatterFactory(true);
+			format(factory, message(OpCode.BINARY, payload(10000)));
+			assertEquals(1, pool.getIdle());
+			format(factory, message(OpCode.BINARY, payload(10000)));
+			assertEquals(1, pool.getIdle());
+			assertEquals(1, pool.getMisses());
+			
+			factory = new WebSocketMessageFormatterFactory(false);
+			factory.setFragmentSize(1000);
+			assertEquals(3, format(factory, message(OpCode.BINARY, payload(2500))).size());
+			assertEquals(2, pool.getIdle());
+			
+			Queue<WebSocketMessage> queue = new ConcurrentLinkedQueue<WebSocketMessage>();
+			queue.add(message(OpCode.BINARY, payload(100)));
+			WebSocketMessageFormatter formatter = newFormatter(queue);
+			formatter.setCoalesceBudget(1024);
+			assertEquals(2, decode(read(formatter.format(message(OpCode.BINARY, payload(100))), 1000, null)).size());
+			assertEquals(2, pool.getIdle());
+			assertEquals(2, pool.getMisses());
+		}
+		finally {
+			BufferPool.setInstance(original);
+		}
+	}
+	
+	// small messages that are already queued are sent in the same write
+	public void testCoalesce() throws IOException {
+		Queue<WebSocketMessage> queue = new ConcurrentLinkedQueue<WebSocketMessage>();
+		queue.add(message(OpCode.TEXT, "second".getBytes("UTF-8")));
+		queue.add(message(OpCode.BINARY, payload(200)));
+		WebSocketMessageFormatter formatter = newFormatter(queue);
+		formatter.setCoalesceBudget(1024);
+		List<Frame> frames = decode(read(formatter.format(message(OpCode.TEXT, "first".getBytes("UTF-8"))), 1000, null));
+		assertEquals(3, frames.size());
+		assertFrame(frames.get(0), OpCode.TEXT, true, "first".getBytes("UTF-8"));
+		assertFrame(frames.get(1), OpCode.TEXT, true, "second".getBytes("UTF-8"));
+		assertFrame(frames.get(2), OpCode.BINARY, true, payload(200));
+		assertTrue(queue.isEmpty());
+	}
+	
+	// control frames stay in the queue for the keep alive decider and the budget is never exceeded
+	public void testCoalesceLimits() throws IOException {
+		WebSocketMessage ping = message(OpCode.PING, new byte[0]);
+		Queue<WebSocketMessage> queue = new ConcurrentLinkedQueue<WebSocketMessage>();
+		queue.add(message(OpCode.BINARY, payload(10)));
+		queue.add(ping);
+		queue.add(message(OpCode.BINARY, payload(10)));
+		WebSocketMessageFormatter formatter = newFormatter(queue);
+		formatter.setCoalesceBudget(100);
+		assertEquals(2, decode(read(formatter.format(message(OpCode.BINARY, payload(10))), 1000, null)).size());
+		assertTrue(ping == queue.peek());
+		
+		queue.clear();
+		queue.add(message(OpCode.BINARY, payload(50)));
+		queue.add(message(OpCode.BINARY, payload(50)));
+		assertEquals(2, decode(read(formatter.format(message(OpCode.BINARY, payload(20))), 1000, null)).size());
+		assertEquals(1, queue.size());
+		
+		// messages that don't fit the budget on their own are not coalesced
+		assertEquals(1, decode(read(formatter.format(message(OpCode.BINARY, payload(200))), 1000, null)).size());
+		assertEquals(1, queue.size());
+	}
+	
+	// messages that need to be fragmented are not coalesced, even if they fit the budget
+	public void testCoalesceFragments() throws IOException {
+		Queue<WebSocketMessage> queue = new ConcurrentLinkedQueue<WebSocketMessage>();
+		queue.add(message(OpCode.BINARY, payload(50)));
+		queue.add(message(OpCode.BINARY, payload(200)));
+		WebSocketMessageFormatter formatter = newFormatter(queue);
+		formatter.setCoalesceBudget(1024);
+		formatter.setFragmentSize(100);
+		assertEquals(2, decode(read(formatter.format(message(OpCode.BINARY, payload(10))), 1000, null)).size());
+		assertEquals(1, queue.size());
+		List<Frame> frames = decode(read(formatter.format(queue.poll()), 1000, null));
+		assertEquals(2, frames.size());
+		assertFalse(frames.get(0).isFinal);
+	}
+	
+	public void testFragments() throws IOException {
+		WebSocketMessageFormatterFactory factory = new WebSocketMessageFormatterFactory(false);
+		factory.setFragmentSize(100);
+		byte [] payload = payload(250);
+		List<Frame> frames = format(factory, message(OpCode.TEXT, payload));
+		assertEquals(3, frames.size());
+		assertFrame(frames.get(0), OpCode.TEXT, false, Arrays.copyOfRange(payload, 0, 100));
+		assertFrame(frames.get(1), OpCode.CONTINUATION, false, Arrays.copyOfRange(payload, 100, 200));
+		assertFrame(frames.get(2), OpCode.CONTINUATION, true, Arrays.copyOfRange(payload, 200, 250));
+		
+		// control frames and small messages are never fragmented
+		assertEquals(1, format(factory, message(OpCode.PING, payload(120))).size());
+		assertEquals(1, format(factory, message(OpCode.BINARY, payload(100))).size());
+	}
+	
+	public void testMaskedFragments() throws IOException {
+		WebSocketMessageFormatterFactory factory = new WebSocketMessageFormatterFactory(true);
+		factory.setFragmentSize(1000);
+		byte [] payload = payload(2500);
+		List<Frame> frames = format(factory, message(OpCode.BINARY, payload));
+		assertEquals(3, frames.size());
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		for (Frame frame : frames) {
+			assertTrue(frame.masked);
+			output.write(frame.payload, 0, frame.payload.length);
+		}
+		assertTrue(Arrays.equals(payload, output.toByteArray()));
+	}
+	
+	// prioritized control frames go ahead of the message and are skipped when they reach the front of the regular queue
+	public void testControlLane() throws IOException {
+		WebSocketMessageFormatterFactory factory = new WebSocketMessageFormatterFactory(false);
+		WebSocketMessage ping = message(OpCode.PING, "ping".getBytes("UTF-8"));
+		factory.getControlLane().add(ping);
+		List<Frame> frames = format(factory, message(OpCode.TEXT, "data".getBytes("UTF-8")));
+		assertEquals(2, frames.size());
+		assertFrame(frames.get(0), OpCode.PING, true, "ping".getBytes("UTF-8"));
+		assertFrame(frames.get(1), OpCode.TEXT, true, "data".getBytes("UTF-8"));
+		assertEquals(0, format(factory, ping).size());
+		assertEquals(1, factory.getControlLane().getControlFrames());
+	}
+	
+	// a control frame that is prioritized while a large message is being sent goes in between its fragments
+	public void testControlBetweenFragments() throws IOException {
+		final WebSocketMessageFormatterFactory factory = new WebSocketMessageFormatterFactory(false);
+		factory.setFragmentSize(100);
+		final WebSocketMessage pong = message(OpCode.PONG, new byte[0]);
+		byte [] bytes = read(factory.newMessageFormatter().format(message(OpCode.BINARY, payload(300))), 102, new Runnable() {
+			@Override
+			public void run() {
+				factory.getControlLane().add(pong);
+			}
+		});
+		List<Frame> frames = decode(bytes);
+		assertEquals(4, frames.size());
+		assertEquals(OpCode.BINARY, frames.get(0).opCode);
+		assertEquals(OpCode.PONG, frames.get(1).opCode);
+		assertEquals(OpCode.CONTINUATION, frames.get(2).opCode);
+		assertEquals(OpCode.CONTINUATION, frames.get(3).opCode);
+		assertTrue(frames.get(3).isFinal);
+	}
+	
+	// nothing is sent after a close
+	public void testCloseSent() throws IOException {
+		WebSocketMessageFormatterFactory factory = new WebSocketMessageFormatterFactory(false);
+		factory.getControlLane().add(message(OpCode.CLOSE, new byte[] { 3, (byte) 232 }));
+		List<Frame> frames = format(factory, message(OpCode.TEXT, "data".getBytes("UTF-8")));
+		assertEquals(1, frames.size());
+		assertEquals(OpCode.CLOSE, frames.get(0).opCode);
+		assertEquals(0, format(factory, message(OpCode.TEXT, "more".getBytes("UTF-8"))).size());
+	}
+	
+	// a region of the file is read straight from the channel
+	public void testFile() throws IOException {
+		byte [] content = payload(100000);
+		File file = File.createTempFile("websocket", ".bin");
+		try {
+			FileOutputStream output = new FileOutputStream(file);
+			try {
+				output.write(content);
+			}
+			finally {
+				output.close();
+			}
+			List<Frame> frames = format(new WebSocketMessageFormatterFactory(false), new FileWebSocketMessage(OpCode.BINARY, true, file, 10, 70000));
+			assertEquals(1, frames.size());
+			assertFrame(frames.get(0), OpCode.BINARY, true, Arrays.copyOfRange(content, 10, 70010));
+			
+			frames = format(new WebSocketMessageFormatterFactory(false), new FileWebSocketMessage(OpCode.BINARY, file));
+			assertFrame(frames.get(0), OpCode.BINARY, true, content);
+			
+			// masked data can not be sent from the channel as is
+			frames = format(new WebSocketMessageFormatterFactory(true), new FileWebSocketMessage(OpCode.BINARY, true, file, 500, 1000));
+			assertTrue(frames.get(0).masked);
+			assertFrame(frames.get(0), OpCode.BINARY, true, Arrays.copyOfRange(content, 500, 1500));
+		}
+		finally {
+			file.delete();
+		}
+	}
+	
+	private static WebSocketMessageFormatter newFormatter(Queue<WebSocketMessage> queue) {
+		WebSocketMessageFormatterFactory factory = new WebSocketMessageFormatterFactory(false);
+		factory.setResponseQueue(queue);
+		return (WebSocketMessageFormatter) factory.newMessageFormatter();
+	}
+	
+	private static void assertFrame(Frame frame, OpCode opCode, boolean isFinal, byte [] payload) {
+		assertEquals(opCode, frame.opCode);
+		assertEquals(isFinal, frame.isFinal);
+		assertTrue(Arrays.equals(payload, frame.payload));
+	}
+	
+	private static List<Frame> format(WebSocketMessageFormatterFactory factory, WebSocketMessage message) throws IOException {
+		return decode(read(factory.newMessageFormatter().format(message), 1000, null));
+	}
+	
+	/**
+	 * Reads the formatted data in chunks like the writer would, the callback is run after the first chunk
+	 */
+	private static byte [] read(ReadableContainer<ByteBuffer> container, int chunkSize, Runnable afterFirst) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte [] bytes = new byte[chunkSize];
+		while (true) {
+			ByteBuffer target = IOUtils.wrap(bytes, false);
+			long read = container.read(target);
+			if (read <= 0) {
+				break;
+			}
+			int length = (int) target.remainingData();
+			target.read(bytes, 0, length);
+			output.write(bytes, 0, length);
+			if (afterFirst != null) {
+				afterFirst.run();
+				afterFirst = null;
+			}
+		}
+		container.close();
+		return output.toByteArray();
+	}
+	
+	private static List<Frame> decode(byte [] bytes) {
+		List<Frame> frames = new ArrayList<Frame>();
+		int position = 0;
+		while (position < bytes.length) {
+			Frame frame = new Frame();
+			frame.isFinal = (bytes[position] & 128) != 0;
+			frame.reservedBits = (bytes[position] >> 4) & 7;
+			frame.opCode = OpCode.getOpCode((byte) (bytes[position] & 15));
+			frame.masked = (bytes[position + 1] & 128) != 0;
+			long size = bytes[position + 1] & 127;
+			position += 2;
+			if (size == 126) {
+				size = ((bytes[position] & 0xff) << 8) | (bytes[position + 1] & 0xff);
+				position += 2;
+			}
+			else if (size == 127) {
+				size = 0;
+				for (int i = 0; i < 8; i++) {
+					size = (size << 8) | (bytes[position + i] & 0xff);
+				}
+				position += 8;
+			}
+			if (frame.masked) {
+				frame.maskingKey = WebSocketMask.toInt(Arrays.copyOfRange(bytes, position, position + 4));
+				position += 4;
+			}
+			frame.payload = Arrays.copyOfRange(bytes, position, position + (int) size);
+			if (frame.masked) {
+				WebSocketMask.apply(frame.payload, 0, frame.payload.length, frame.maskingKey, 0);
+			}
+			position += size;
+			frames.add(frame);
+		}
+		return frames;
+	}
+	
+	private static WebSocketMessage message(final OpCode opCode, final byte [] bytes) {
+		return new WebSocketMessage() {
+			@Override
+			public OpCode getOpCode() {
+				return opCode;
+			}
+			@Override
+			public boolean isFinal() {
+				return true;
+			}
+			@Override
+			public long getSize() {
+				return bytes.length;
+			}
+			@Override
+			public InputStream getData() {
+				return new ByteArrayInputStream(bytes);
+			}
+		};
+	}
+	
+	private static byte [] payload(int size) {
+		byte [] bytes = new byte[size];
+		for (int i = 0; i < size; i++) {
+			bytes[i] = (byte) (i * 17);
+		}
+		return bytes;
+	}
+	
+	private static class Frame {
+		private boolean isFinal, masked;
+		private int reservedBits, maskingKey;
+		private OpCode opCode;
+		private byte [] payload;
+	}
+}
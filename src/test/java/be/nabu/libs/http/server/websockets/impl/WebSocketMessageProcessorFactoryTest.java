@@ -0,0 +1,161 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+
+import be.nabu.libs.http.server.websockets.WebSocketCloseException;
+import be.nabu.libs.http.server.websockets.api.CloseCode;
+import be.nabu.libs.http.server.websockets.api.OpCode;
+import be.nabu.libs.http.server.websockets.api.WebSocketExtension;
+import be.nabu.libs.http.server.websockets.api.WebSocketFragment;
+import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
+import be.nabu.libs.http.server.websockets.api.WebSocketRequest;
+import be.nabu.utils.io.IOUtils;
+import junit.framework.TestCase;
+
+public class WebSocketMessageProcessorFactoryTest extends TestCase {
+	
+	private static final byte [] EURO = new byte[] { (byte) 0xe2, (byte) 0x82, (byte) 0xac };
+	
+	// every fragment carries the message it belongs to and its offset within that message
+	public void testFragments() throws Exception {
+		WebSocketMessageProcessorFactory factory = new WebSocketMessageProcessorFactory(null);
+		WebSocketFragment first = factory.newFragment(frame(OpCode.TEXT, false, "first ".getBytes("UTF-8")));
+		assertTrue(factory.isStreaming());
+		WebSocketFragment second = factory.newFragment(frame(OpCode.CONTINUATION, false, "second ".getBytes("UTF-8")));
+		WebSocketFragment last = factory.newFragment(frame(OpCode.CONTINUATION, true, "last".getBytes("UTF-8")));
+		assertFalse(factory.isStreaming());
+		
+		assertEquals(first.getMessageId(), second.getMessageId());
+		assertEquals(first.getMessageId(), last.getMessageId());
+		assertEquals(0, first.getOffset());
+		assertEquals(6, second.getOffset());
+		assertEquals(13, last.getOffset());
+		assertEquals(OpCode.TEXT, last.getMessageOpCode());
+		assertEquals(OpCode.CONTINUATION, last.getOpCode());
+		assertTrue(last.isFinal());
+		assertEquals("last", new String(IOUtils.toBytes(IOUtils.wrap(last.getData())), "UTF-8"));
+		
+		WebSocketFragment next = factory.newFragment(frame(OpCode.BINARY, false, new byte[] { 1 }));
+		assertFalse(first.getMessageId() == next.getMessageId());
+		assertEquals(0, next.getOffset());
+		assertEquals(OpCode.BINARY, next.getMessageOpCode());
+	}
+	
+	// the extension returns a request that is not backed by bytes, the decoded text must still be validated
+	public void testDecodedStreamValidated() throws Exception {
+		WebSocketMessageProcessorFactory factory = newFactory();
+		WebSocketRequest decoded = factory.decode(frame(OpCode.TEXT, true, "hello".getBytes("UTF-8")));
+		assertTrue(decoded.isTextValidated());
+		assertEquals("hello", new String(IOUtils.toBytes(IOUtils.wrap(decoded.getData())), "UTF-8"));
+	}
+	
+	public void testDecodedStreamInvalid() throws Exception {
+		assertInvalid(newFactory(), frame(OpCode.TEXT, true, new byte[] { (byte) 0xc3, 0x28 }));
+	}
+	
+	// the validation state spans the fragments of the message
+	public void testDecodedFragments() throws Exception {
+		WebSocketMessageProcessorFactory factory = newFactory();
+		factory.decode(frame(OpCode.TEXT, false, Arrays.copyOf(EURO, 1)));
+		WebSocketRequest decoded = factory.decode(frame(OpCode.CONTINUATION, true, Arrays.copyOfRange(EURO, 1, EURO.length)));
+		assertTrue(decoded.isTextValidated());
+		
+		factory.decode(frame(OpCode.TEXT, false, Arrays.copyOf(EURO, 2)));
+		assertInvalid(factory, frame(OpCode.CONTINUATION, true, new byte[0]));
+	}
+	
+	// binary data is never validated
+	public void testDecodedBinary() throws Exception {
+		WebSocketRequest decoded = newFactory().decode(frame(OpCode.BINARY, true, new byte[] { (byte) 0xc3, 0x28 }));
+		assertFalse(decoded.isTextValidated());
+	}
+	
+	private void assertInvalid(WebSocketMessageProcessorFactory factory, WebSocketRequest frame) throws IOException {
+		try {
+			factory.decode(frame);
+			fail("Expected the decoded text to be rejected");
+		}
+		catch (WebSocketCloseException e) {
+			assertEquals(CloseCode.INVALID_DATA, e.getCode());
+		}
+	}
+	
+	// an extension that returns its own request implementation streaming the original data
+	private WebSocketMessageProcessorFactory newFactory() {
+		WebSocketMessageProcessorFactory factory = new WebSocketMessageProcessorFactory(null);
+		factory.setExtensions(Arrays.<WebSocketExtension>asList(new WebSocketExtension() {
+			@Override
+			public String getName() {
+				return "x-test";
+			}
+			@Override
+			public int getReservedBits() {
+				return 4;
+			}
+			@Override
+			public String getResponse() {
+				return getName();
+			}
+			@Override
+			public WebSocketRequest decode(final WebSocketRequest frame) throws IOException, WebSocketCloseException {
+				final byte [] bytes = ((WebSocketRequestImpl) frame).getBytes();
+				return (WebSocketRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?> [] { WebSocketRequest.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("getData")) {
+							return new ByteArrayInputStream(bytes);
+						}
+						else if (method.getName().equals("getSize")) {
+							return (long) bytes.length;
+						}
+						else if (method.getName().equals("isTextValidated")) {
+							return false;
+						}
+						else if (method.getName().equals("getReservedBits")) {
+							return 0;
+						}
+						else if (method.getName().equals("getVersion")) {
+							return 13d;
+						}
+						return method.invoke(frame, args);
+					}
+				});
+			}
+			@Override
+			public WebSocketMessage encode(WebSocketMessage message) throws IOException {
+				return message;
+			}
+		}));
+		return factory;
+	}
+	
+	private static WebSocketRequestImpl frame(OpCode opCode, boolean isFinal, byte [] bytes) {
+		WebSocketRequestImpl frame = new WebSocketRequestImpl(null, "/test", 13, opCode, true, isFinal, bytes, null, null);
+		if (!OpCode.CONTINUATION.equals(opCode)) {
+			frame.setReservedBits(4);
+		}
+		return frame;
+	}
+}
@@ -0,0 +1,507 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import be.nabu.libs.http.api.server.MessageDataProvider;
+import be.nabu.libs.http.server.websockets.WebSocketCloseException;
+import be.nabu.libs.http.server.websockets.api.CloseCode;
+import be.nabu.libs.http.server.websockets.api.OpCode;
+import be.nabu.libs.http.server.websockets.api.WebSocketExtension;
+import be.nabu.libs.http.server.websockets.api.WebSocketRequest;
+import be.nabu.libs.http.server.websockets.util.BufferPool;
+import be.nabu.libs.nio.api.MessageParser;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.WritableResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.PushbackContainer;
+import be.nabu.utils.io.api.ReadableContainer;
+import junit.framework.TestCase;
+
+public class WebSocketRequestParserTest extends TestCase {
+	
+	private static final int MASK = 0x37fa213d;
+	
+	// the amount of resources created by the data provider
+	private int resources;
+	
+	public void testInMemoryFrame() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		Feed feed = new Feed(frame(OpCode.TEXT, true, "hello".getBytes("UTF-8")));
+		WebSocketRequest request = parse(factory, feed);
+		assertEquals(OpCode.TEXT, request.getOpCode());
+		assertEquals(5, request.getSize());
+		assertEquals("hello", new String(toBytes(request.getData()), "UTF-8"));
+		assertEquals(0, resources);
+	}
+	
+	public void testLargeFrame() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		factory.setInMemoryThreshold(16);
+		byte [] payload = payload(10000);
+		Feed feed = new Feed(frame(OpCode.BINARY, true, payload));
+		WebSocketRequest request = parse(factory, feed);
+		assertEquals(10000, request.getSize());
+		assertTrue(Arrays.equals(payload, toBytes(request.getData())));
+		assertEquals(1, resources);
+	}
+	
+	// the copy buffer is only borrowed while the payload is streamed to the resource
+	public void testCopyBufferReleased() throws Exception {
+		BufferPool original = BufferPool.getInstance();
+		BufferPool pool = new BufferPool(1024, 8192, 4);
+		BufferPool.setInstance(pool);
+		try {
+			WebSocketRequestParserFactory factory = newFactory();
+			factory.setInMemoryThreshold(16);
+			byte [] frame = frame(OpCode.BINARY, true, payload(10000));
+			Feed feed = new Feed(Arrays.copyOf(frame, 5000));
+			PushbackContainer<ByteBuffer> content = IOUtils.pushback(feed);
+			MessageParser<WebSocketRequest> parser = factory.newMessageParser();
+			parser.push(content);
+			assertFalse(parser.isDone());
+			assertEquals(1, pool.getIdle());
+			feed.add(Arrays.copyOfRange(frame, 5000, frame.length));
+			parser.push(content);
+			assertTrue(parser.isDone());
+			assertEquals(1, pool.getIdle());
+			assertEquals(1, pool.getHits());
+			
+			// frames that stay in memory don't need one
+			long borrowed = pool.getHits() + pool.getMisses();
+			parse(factory, new Feed(frame(OpCode.BINARY, true, payload(10))));
+			assertEquals(borrowed, pool.getHits() + pool.getMisses());
+		}
+		finally {
+			BufferPool.setInstance(original);
+		}
+	}
+	
+	// the data trickles in, the parser should pick up where it left off
+	public void testPartialReads() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		byte [] frame = frame(OpCode.TEXT, true, "partial reads".getBytes("UTF-8"));
+		Feed feed = new Feed();
+		PushbackContainer<ByteBuffer> content = IOUtils.pushback(feed);
+		MessageParser<WebSocketRequest> parser = factory.newMessageParser();
+		for (int i = 0; i < frame.length; i++) {
+			assertFalse(parser.isDone());
+			feed.add(new byte[] { frame[i] });
+			parser.push(content);
+		}
+		assertTrue(parser.isDone());
+		assertEquals("partial reads", new String(toBytes(parser.getMessage().getData()), "UTF-8"));
+	}
+	
+	public void testReuse() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		factory.setReuseParser(true);
+		Feed feed = new Feed(frame(OpCode.TEXT, true, "first".getBytes("UTF-8")), frame(OpCode.TEXT, true, "second".getBytes("UTF-8")));
+		PushbackContainer<ByteBuffer> content = IOUtils.pushback(feed);
+		MessageParser<WebSocketRequest> parser = factory.newMessageParser();
+		parser.push(content);
+		assertEquals("first", new String(toBytes(parser.getMessage().getData()), "UTF-8"));
+		MessageParser<WebSocketRequest> next = factory.newMessageParser();
+		assertTrue(parser == next);
+		assertFalse(next.isDone());
+		next.push(content);
+		assertEquals("second", new String(toBytes(next.getMessage().getData()), "UTF-8"));
+	}
+	
+	public void testBatch() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		factory.setBatch(true);
+		Feed feed = new Feed(concat(frame(OpCode.TEXT, true, "a".getBytes("UTF-8")), frame(OpCode.TEXT, true, "b".getBytes("UTF-8")), frame(OpCode.BINARY, true, new byte[] { 1, 2, 3 })));
+		WebSocketRequest request = parse(factory, feed);
+		assertTrue(request instanceof WebSocketRequestBatch);
+		List<WebSocketRequest> requests = ((WebSocketRequestBatch) request).getRequests();
+		assertEquals(3, requests.size());
+		assertEquals("a", new String(toBytes(requests.get(0).getData()), "UTF-8"));
+		assertEquals("b", new String(toBytes(requests.get(1).getData()), "UTF-8"));
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, toBytes(requests.get(2).getData())));
+	}
+	
+	// the incomplete frame at the end of a read is pushed back and picked up by the next parser
+	public void testBatchPushback() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		factory.setBatch(true);
+		byte [] last = frame(OpCode.TEXT, true, "incomplete".getBytes("UTF-8"));
+		Feed feed = new Feed(concat(frame(OpCode.TEXT, true, "complete".getBytes("UTF-8")), Arrays.copyOf(last, 8)));
+		PushbackContainer<ByteBuffer> content = IOUtils.pushback(feed);
+		MessageParser<WebSocketRequest> parser = factory.newMessageParser();
+		parser.push(content);
+		assertTrue(parser.isDone());
+		assertEquals("complete", new String(toBytes(parser.getMessage().getData()), "UTF-8"));
+		
+		feed.add(Arrays.copyOfRange(last, 8, last.length));
+		parser = factory.newMessageParser();
+		parser.push(content);
+		assertTrue(parser.isDone());
+		assertEquals("incomplete", new String(toBytes(parser.getMessage().getData()), "UTF-8"));
+	}
+	
+	// a frame that is pushed back must only be counted once towards the message limits
+	public void testBatchPushbackLimits() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		factory.setBatch(true);
+		factory.setMaxMessageSize(20);
+		factory.setMaxFragments(2);
+		byte [] last = frame(OpCode.CONTINUATION, true, payload(10));
+		Feed feed = new Feed(concat(frame(OpCode.BINARY, false, payload(10)), Arrays.copyOf(last, 12)));
+		PushbackContainer<ByteBuffer> content = IOUtils.pushback(feed);
+		MessageParser<WebSocketRequest> parser = factory.newMessageParser();
+		parser.push(content);
+		assertTrue(parser.isDone());
+		assertEquals(10, parser.getMessage().getSize());
+		
+		feed.add(Arrays.copyOfRange(last, 12, last.length));
+		parser = factory.newMessageParser();
+		parser.push(content);
+		assertTrue(parser.isDone());
+		assertEquals(OpCode.CONTINUATION, parser.getMessage().getOpCode());
+		assertEquals(10, parser.getMessage().getSize());
+	}
+	
+	// the frames before an invalid frame are still delivered, the next parser fails on the invalid frame as it would without batching
+	public void testBatchInvalidFrame() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		factory.setBatch(true);
+		Feed feed = new Feed(concat(frame(OpCode.TEXT, true, "valid".getBytes("UTF-8")), frame(OpCode.PING, true, payload(126))));
+		PushbackContainer<ByteBuffer> content = IOUtils.pushback(feed);
+		MessageParser<WebSocketRequest> parser = factory.newMessageParser();
+		parser.push(content);
+		assertTrue(parser.isDone());
+		assertEquals("valid", new String(toBytes(parser.getMessage().getData()), "UTF-8"));
+		assertClosed(factory, content, CloseCode.PROTOCOL_ERROR);
+		
+		// the invalid frame is validated again from the same message state
+		factory = newFactory();
+		factory.setBatch(true);
+		feed = new Feed(concat(frame(OpCode.TEXT, false, "a".getBytes("UTF-8")), frame(OpCode.CONTINUATION, true, new byte[] { (byte) 0xc3, 0x28 })));
+		content = IOUtils.pushback(feed);
+		parser = factory.newMessageParser();
+		parser.push(content);
+		assertEquals("a", new String(toBytes(parser.getMessage().getData()), "UTF-8"));
+		assertClosed(factory, content, CloseCode.INVALID_DATA);
+	}
+	
+	// frames above the in memory threshold are never batched, they are pushed back without being counted
+	public void testBatchLargeFrame() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		factory.setBatch(true);
+		factory.setInMemoryThreshold(64);
+		factory.setMaxMessageSize(1010);
+		byte [] large = payload(1000);
+		Feed feed = new Feed(concat(frame(OpCode.BINARY, false, payload(10)), frame(OpCode.CONTINUATION, true, large)));
+		PushbackContainer<ByteBuffer> content = IOUtils.pushback(feed);
+		MessageParser<WebSocketRequest> parser = factory.newMessageParser();
+		parser.push(content);
+		assertEquals(10, parser.getMessage().getSize());
+		parser = factory.newMessageParser();
+		parser.push(content);
+		assertTrue(parser.isDone());
+		assertTrue(Arrays.equals(large, toBytes(parser.getMessage().getData())));
+		assertEquals(1, resources);
+	}
+	
+	public void testBatchRemoteClosed() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		factory.setBatch(true);
+		Feed feed = new Feed(frame(OpCode.TEXT, true, "last".getBytes("UTF-8")));
+		feed.end();
+		MessageParser<WebSocketRequest> parser = factory.newMessageParser();
+		parser.push(IOUtils.pushback(feed));
+		assertTrue(parser.isDone());
+		assertEquals("last", new String(toBytes(parser.getMessage().getData()), "UTF-8"));
+		assertTrue(parser.isClosed());
+		assertTrue(factory.isClosed());
+	}
+	
+	// the frame is rejected based on the header alone, before the payload arrives
+	public void testFrameLimit() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		factory.setMaxFrameSize(100);
+		byte [] frame = frame(OpCode.BINARY, true, payload(101));
+		assertClosed(factory, new Feed(Arrays.copyOf(frame, 8)), CloseCode.MESSAGE_TOO_BIG);
+	}
+	
+	public void testMessageLimit() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		factory.setMaxMessageSize(15);
+		Feed feed = new Feed(frame(OpCode.BINARY, false, payload(10)), frame(OpCode.CONTINUATION, true, payload(10)));
+		PushbackContainer<ByteBuffer> content = IOUtils.pushback(feed);
+		factory.newMessageParser().push(content);
+		assertClosed(factory, content, CloseCode.MESSAGE_TOO_BIG);
+	}
+	
+	public void testFragmentLimit() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		factory.setMaxFragments(2);
+		Feed feed = new Feed(frame(OpCode.TEXT, false, "a".getBytes("UTF-8")), frame(OpCode.CONTINUATION, false, "b".getBytes("UTF-8")), frame(OpCode.CONTINUATION, true, "c".getBytes("UTF-8")));
+		PushbackContainer<ByteBuffer> content = IOUtils.pushback(feed);
+		factory.newMessageParser().push(content);
+		factory.newMessageParser().push(content);
+		assertClosed(factory, content, CloseCode.MESSAGE_TOO_BIG);
+	}
+	
+	// control frames can be interleaved with the fragments of a message, they don't count towards its limits
+	public void testControlFramesBetweenFragments() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		factory.setBatch(true);
+		factory.setMaxFragments(2);
+		factory.setMaxMessageSize(4);
+		Feed feed = new Feed(concat(
+			frame(OpCode.TEXT, false, "ab".getBytes("UTF-8")), 
+			frame(OpCode.PING, true, "ping".getBytes("UTF-8")), 
+			frame(OpCode.CONTINUATION, true, "cd".getBytes("UTF-8"))
+		));
+		WebSocketRequest request = parse(factory, feed);
+		List<WebSocketRequest> requests = ((WebSocketRequestBatch) request).getRequests();
+		assertEquals(3, requests.size());
+		assertEquals(OpCode.PING, requests.get(1).getOpCode());
+		assertEquals("ping", new String(toBytes(requests.get(1).getData()), "UTF-8"));
+		assertEquals(OpCode.CONTINUATION, requests.get(2).getOpCode());
+		assertEquals("cd", new String(toBytes(requests.get(2).getData()), "UTF-8"));
+	}
+	
+	// a multibyte character can be split over fragments with a control frame in between
+	public void testTextSplitOverFragments() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		byte [] euro = new byte[] { (byte) 0xe2, (byte) 0x82, (byte) 0xac };
+		Feed feed = new Feed(
+			frame(OpCode.TEXT, false, Arrays.copyOf(euro, 1)), 
+			frame(OpCode.PONG, true, new byte[0]), 
+			frame(OpCode.CONTINUATION, true, Arrays.copyOfRange(euro, 1, euro.length))
+		);
+		PushbackContainer<ByteBuffer> content = IOUtils.pushback(feed);
+		for (int i = 0; i < 3; i++) {
+			MessageParser<WebSocketRequest> parser = factory.newMessageParser();
+			parser.push(content);
+			assertTrue(parser.isDone());
+		}
+	}
+	
+	public void testInvalidText() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		assertClosed(factory, new Feed(frame(OpCode.TEXT, true, new byte[] { (byte) 0xc3, 0x28 })), CloseCode.INVALID_DATA);
+	}
+	
+	public void testInvalidControlFrame() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		assertClosed(factory, new Feed(frame(OpCode.PING, true, payload(126))), CloseCode.PROTOCOL_ERROR);
+		assertClosed(newFactory(), new Feed(frame(OpCode.PING, false, new byte[0])), CloseCode.PROTOCOL_ERROR);
+	}
+	
+	// a new message can not start while a fragmented message is still open, otherwise the limits are bypassed
+	public void testInterleavedMessages() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		factory.setMaxMessageSize(15);
+		Feed feed = new Feed(frame(OpCode.BINARY, false, payload(10)), frame(OpCode.BINARY, false, payload(10)));
+		PushbackContainer<ByteBuffer> content = IOUtils.pushback(feed);
+		factory.newMessageParser().push(content);
+		assertClosed(factory, content, CloseCode.PROTOCOL_ERROR);
+	}
+	
+	public void testUnexpectedContinuation() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		Feed feed = new Feed(frame(OpCode.BINARY, true, payload(10)), frame(OpCode.CONTINUATION, true, payload(10)));
+		PushbackContainer<ByteBuffer> content = IOUtils.pushback(feed);
+		factory.newMessageParser().push(content);
+		assertClosed(factory, content, CloseCode.PROTOCOL_ERROR);
+	}
+	
+	// the negotiated extensions are closed with the connection so they can release their resources
+	public void testCloseExtensions() throws Exception {
+		WebSocketRequestParserFactory factory = newFactory();
+		final List<String> calls = new LinkedList<String>();
+		factory.setExtensions(Arrays.asList((WebSocketExtension) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?> [] { WebSocketExtension.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				calls.add(method.getName());
+				return null;
+			}
+		})));
+		// the remote end closes the socket
+		Feed feed = new Feed();
+		feed.end();
+		factory.newMessageParser().push(IOUtils.pushback(feed));
+		assertTrue(factory.isClosed());
+		assertEquals(Arrays.asList("close"), calls);
+	}
+	
+	private void assertClosed(WebSocketRequestParserFactory factory, Feed feed, CloseCode code) throws IOException {
+		assertClosed(factory, IOUtils.pushback(feed), code);
+	}
+	
+	private void assertClosed(WebSocketRequestParserFactory factory, PushbackContainer<ByteBuffer> content, CloseCode code) throws IOException {
+		try {
+			factory.newMessageParser().push(content);
+			fail("Expected a close with " + code);
+		}
+		catch (WebSocketCloseException e) {
+			assertEquals(code, e.getCode());
+		}
+		catch (ParseException e) {
+			fail("Expected a close with " + code + " but got: " + e.getMessage());
+		}
+	}
+	
+	private WebSocketRequest parse(WebSocketRequestParserFactory factory, Feed feed) throws ParseException, IOException {
+		MessageParser<WebSocketRequest> parser = factory.newMessageParser();
+		parser.push(IOUtils.pushback(feed));
+		assertTrue(parser.isDone());
+		return parser.getMessage();
+	}
+	
+	private WebSocketRequestParserFactory newFactory() {
+		return new WebSocketRequestParserFactory(newDataProvider(), null, "/test", 13, null, null, null);
+	}
+	
+	// resources are kept in memory
+	private MessageDataProvider newDataProvider() {
+		return (MessageDataProvider) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?> [] { MessageDataProvider.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("newResource")) {
+					resources++;
+					final ByteArrayOutputStream output = new ByteArrayOutputStream();
+					return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?> [] { ReadableResource.class, WritableResource.class }, new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+							if (method.getName().equals("getWritable")) {
+								return IOUtils.wrap(output);
+							}
+							else if (method.getName().equals("getReadable")) {
+								return IOUtils.wrap(new ByteArrayInputStream(output.toByteArray()));
+							}
+							return null;
+						}
+					});
+				}
+				return null;
+			}
+		});
+	}
+	
+	private static byte [] frame(OpCode opCode, boolean isFinal, byte [] payload) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		output.write((isFinal ? 128 : 0) | opCode.getCode());
+		if (payload.length < 126) {
+			output.write(128 | payload.length);
+		}
+		else if (payload.length <= 0xffff) {
+			output.write(128 | 126);
+			output.write(payload.length >> 8);
+			output.write(payload.length);
+		}
+		else {
+			output.write(128 | 127);
+			for (int i = 7; i >= 0; i--) {
+				output.write((int) ((long) payload.length >> (i * 8)));
+			}
+		}
+		byte [] key = new byte[] { (byte) (MASK >> 24), (byte) (MASK >> 16), (byte) (MASK >> 8), (byte) MASK };
+		output.write(key, 0, key.length);
+		for (int i = 0; i < payload.length; i++) {
+			output.write(payload[i] ^ key[i % 4]);
+		}
+		return output.toByteArray();
+	}
+	
+	private static byte [] payload(int size) {
+		byte [] bytes = new byte[size];
+		for (int i = 0; i < size; i++) {
+			bytes[i] = (byte) (i * 31);
+		}
+		return bytes;
+	}
+	
+	private static byte [] concat(byte [] ...parts) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		for (byte [] part : parts) {
+			output.write(part, 0, part.length);
+		}
+		return output.toByteArray();
+	}
+	
+	private static byte [] toBytes(InputStream input) throws IOException {
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte [] buffer = new byte[4096];
+			int read;
+			while ((read = input.read(buffer)) > 0) {
+				output.write(buffer, 0, read);
+			}
+			return output.toByteArray();
+		}
+		finally {
+			input.close();
+		}
+	}
+	
+	/**
+	 * Simulates a socket: it returns the chunks that have arrived so far, 0 if nothing is available and -1 once it has ended
+	 */
+	private static class Feed implements ReadableContainer<ByteBuffer> {
+		private LinkedList<byte []> chunks = new LinkedList<byte []>();
+		private boolean ended;
+		
+		public Feed(byte [] ...chunks) {
+			this.chunks.addAll(Arrays.asList(chunks));
+		}
+		
+		public void add(byte [] chunk) {
+			chunks.add(chunk);
+		}
+		
+		public void end() {
+			ended = true;
+		}
+		
+		@Override
+		public long read(ByteBuffer target) throws IOException {
+			long total = 0;
+			while (!chunks.isEmpty() && target.remainingSpace() > 0) {
+				byte [] chunk = chunks.removeFirst();
+				int written = target.write(chunk, 0, chunk.length);
+				if (written < chunk.length) {
+					chunks.addFirst(Arrays.copyOfRange(chunk, written, chunk.length));
+				}
+				total += written;
+			}
+			return total == 0 && ended && chunks.isEmpty() ? -1 : total;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			ended = true;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.util;
+
+import junit.framework.TestCase;
+
+public class BufferPoolTest extends TestCase {
+	
+	public void testSizeClasses() {
+		BufferPool pool = new BufferPool(1000, 5000, 4);
+		assertEquals(1024, pool.getMinSize());
+		assertEquals(8192, pool.getMaxSize());
+		assertEquals(1024, pool.borrow(1).length);
+		assertEquals(1024, pool.borrow(1024).length);
+		assertEquals(2048, pool.borrow(1025).length);
+		assertEquals(8192, pool.borrow(8000).length);
+	}
+	
+	public void testReuse() {
+		BufferPool pool = new BufferPool(1024, 8192, 4);
+		byte [] bytes = pool.borrow(3000);
+		assertEquals(1, pool.getMisses());
+		pool.release(bytes);
+		assertEquals(1, pool.getIdle());
+		assertTrue(bytes == pool.borrow(4096));
+		assertEquals(1, pool.getHits());
+		assertEquals(0, pool.getIdle());
+		// a different size class does not get the pooled buffer
+		pool.release(bytes);
+		assertEquals(2048, pool.borrow(2048).length);
+		assertEquals(1, pool.getIdle());
+	}
+	
+	// only a bounded amount of idle buffers is kept
+	public void testCapacity() {
+		BufferPool pool = new BufferPool(1024, 8192, 2);
+		for (int i = 0; i < 3; i++) {
+			pool.release(new byte[1024]);
+		}
+		assertEquals(2, pool.getIdle());
+		assertEquals(1, pool.getDropped());
+	}
+	
+	// buffers above the largest size class or with a size that does not match a class are not pooled
+	public void testNotPooled() {
+		BufferPool pool = new BufferPool(1024, 8192, 2);
+		byte [] large = pool.borrow(10000);
+		assertEquals(10000, large.length);
+		pool.release(large);
+		pool.release(new byte[1500]);
+		pool.release(new byte[512]);
+		assertEquals(0, pool.getIdle());
+		assertEquals(3, pool.getDropped());
+	}
+}
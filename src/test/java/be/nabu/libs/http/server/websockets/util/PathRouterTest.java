@@ -0,0 +1,61 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.util;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import be.nabu.libs.events.api.EventHandler;
+import be.nabu.libs.http.server.websockets.api.WebSocketMessage;
+import be.nabu.libs.http.server.websockets.api.WebSocketRequest;
+import junit.framework.TestCase;
+
+public class PathRouterTest extends TestCase {
+	
+	public void testResolve() {
+		EventHandler<WebSocketRequest, WebSocketMessage> root = newHandler(), chat = newHandler(), room = newHandler(), other = newHandler(), regex = newHandler();
+		PathRouter router = new PathRouter()
+			.route("/", root)
+			.route("chat", chat)
+			.route("/chat/room", room)
+			.route("/other", other)
+			.route(Pattern.compile("/chat/[0-9]+"), regex);
+		
+		List<EventHandler<WebSocketRequest, WebSocketMessage>> handlers = router.resolve("/chat/room/1");
+		assertEquals(3, handlers.size());
+		assertTrue(handlers.get(0) == root);
+		assertTrue(handlers.get(1) == chat);
+		assertTrue(handlers.get(2) == room);
+		
+		handlers = router.resolve("/chat/12");
+		assertEquals(3, handlers.size());
+		assertTrue(handlers.get(2) == regex);
+		
+		assertEquals(1, router.resolve("/unknown").size());
+		assertEquals(0, router.resolve(null).size());
+	}
+	
+	private static EventHandler<WebSocketRequest, WebSocketMessage> newHandler() {
+		return new EventHandler<WebSocketRequest, WebSocketMessage>() {
+			@Override
+			public WebSocketMessage handle(WebSocketRequest event) {
+				return null;
+			}
+		};
+	}
+}
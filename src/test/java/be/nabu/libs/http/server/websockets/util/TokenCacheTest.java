@@ -0,0 +1,149 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import be.nabu.libs.authentication.api.RoleHandler;
+import be.nabu.libs.authentication.api.Token;
+import be.nabu.libs.authentication.api.TokenValidator;
+import junit.framework.TestCase;
+
+public class TokenCacheTest extends TestCase {
+	
+	private AtomicInteger validations = new AtomicInteger(), roleChecks = new AtomicInteger();
+	private boolean valid;
+	
+	@Override
+	protected void setUp() {
+		validations.set(0);
+		roleChecks.set(0);
+		valid = true;
+	}
+	
+	public void testRolesCached() {
+		TokenCache cache = new TokenCache(newValidator(), newRoleHandler());
+		Token token = newToken("alice");
+		assertTrue(cache.hasRole(token, "admin"));
+		assertTrue(cache.hasRole(token, "admin"));
+		assertFalse(cache.hasRole(token, "guest"));
+		assertEquals(2, roleChecks.get());
+		
+		cache.invalidate(token);
+		assertTrue(cache.hasRole(token, "admin"));
+		assertEquals(3, roleChecks.get());
+	}
+	
+	public void testRolesExpire() throws InterruptedException {
+		TokenCache cache = new TokenCache(newValidator(), newRoleHandler());
+		cache.setTimeToLive(20);
+		Token token = newToken("alice");
+		cache.hasRole(token, "admin");
+		Thread.sleep(50);
+		cache.hasRole(token, "admin");
+		assertEquals(2, roleChecks.get());
+	}
+	
+	// a revoked token must not stay valid unless the validity is explicitly cached
+	public void testValidityNotCachedByDefault() {
+		TokenCache cache = new TokenCache(newValidator(), newRoleHandler());
+		Token token = newToken("alice");
+		assertTrue(cache.isValid(token));
+		valid = false;
+		assertFalse(cache.isValid(token));
+		assertEquals(2, validations.get());
+	}
+	
+	public void testValidityCached() {
+		TokenCache cache = new TokenCache(newValidator(), newRoleHandler());
+		cache.setValidityTimeToLive(60000);
+		Token token = newToken("alice");
+		assertTrue(cache.isValid(token));
+		assertTrue(cache.isValid(token));
+		assertEquals(1, validations.get());
+		valid = false;
+		cache.invalidate(token);
+		assertFalse(cache.isValid(token));
+		assertEquals(2, validations.get());
+	}
+	
+	public void testBoundToHandlers() {
+		TokenValidator validator = newValidator();
+		RoleHandler roleHandler = newRoleHandler();
+		TokenCache cache = new TokenCache(validator, roleHandler);
+		assertTrue(cache.isFor(validator, roleHandler));
+		assertFalse(cache.isFor(validator, newRoleHandler()));
+		assertFalse(cache.isFor(null, roleHandler));
+	}
+	
+	public void testMaxSize() {
+		TokenCache cache = new TokenCache(newValidator(), newRoleHandler());
+		cache.setMaxSize(10);
+		for (int i = 0; i < 25; i++) {
+			cache.hasRole(newToken("user" + i), "admin");
+		}
+		assertTrue(cache.size() <= 10);
+	}
+	
+	private TokenValidator newValidator() {
+		return (TokenValidator) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?> [] { TokenValidator.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("isValid")) {
+					validations.incrementAndGet();
+					return valid;
+				}
+				return method.getReturnType().equals(boolean.class) ? false : null;
+			}
+		});
+	}
+	
+	private RoleHandler newRoleHandler() {
+		return (RoleHandler) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?> [] { RoleHandler.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("hasRole")) {
+					roleChecks.incrementAndGet();
+					return "admin".equals(args[1]);
+				}
+				return method.getReturnType().equals(boolean.class) ? false : null;
+			}
+		});
+	}
+	
+	private static Token newToken(final String name) {
+		return (Token) Proxy.newProxyInstance(TokenCacheTest.class.getClassLoader(), new Class<?> [] { Token.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("getName")) {
+					return name;
+				}
+				else if (method.getName().equals("equals")) {
+					return proxy == args[0];
+				}
+				else if (method.getName().equals("hashCode")) {
+					return System.identityHashCode(proxy);
+				}
+				return null;
+			}
+		});
+	}
+}
@@ -0,0 +1,74 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.util;
+
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class TopicIndexTest extends TestCase {
+	
+	public void testWildcards() {
+		TopicIndex<String> index = new TopicIndex<String>();
+		index.subscribe("prices/stock/eur", "exact");
+		index.subscribe("prices/+/eur", "single");
+		index.subscribe("prices/#", "multi");
+		index.subscribe("#", "all");
+		
+		Set<String> subscribers = index.getSubscribers("prices/stock/eur");
+		assertEquals(4, subscribers.size());
+		
+		subscribers = index.getSubscribers("prices/bond/eur");
+		assertEquals(3, subscribers.size());
+		assertFalse(subscribers.contains("exact"));
+		
+		subscribers = index.getSubscribers("prices");
+		assertEquals(2, subscribers.size());
+		assertTrue(subscribers.contains("multi"));
+		
+		subscribers = index.getSubscribers("news/sports");
+		assertEquals(1, subscribers.size());
+		assertTrue(subscribers.contains("all"));
+	}
+	
+	public void testUnsubscribe() {
+		TopicIndex<String> index = new TopicIndex<String>();
+		index.subscribe("chat/room1", "a");
+		index.subscribe("chat/+", "a");
+		index.subscribe("chat/room1", "b");
+		assertEquals(2, index.getSubscribers("chat/room1").size());
+		
+		index.unsubscribe("chat/room1", "b");
+		assertEquals(1, index.getSubscribers("chat/room1").size());
+		assertEquals(0, index.getSubscriptions("b").size());
+		
+		index.unsubscribeAll("a");
+		assertEquals(0, index.getSubscribers("chat/room1").size());
+		assertEquals(0, index.getSubscriptions("a").size());
+	}
+	
+	public void testInvalidWildcard() {
+		try {
+			new TopicIndex<String>().subscribe("prices/#/eur", "invalid");
+			fail("The multi level wildcard is only allowed at the end");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
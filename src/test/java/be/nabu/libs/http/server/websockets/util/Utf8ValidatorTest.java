@@ -0,0 +1,67 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.util;
+
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+public class Utf8ValidatorTest extends TestCase {
+	
+	private static Charset UTF8 = Charset.forName("UTF-8");
+	
+	public void testValid() {
+		assertTrue(validate("plain ascii that is longer than eight bytes".getBytes(UTF8), 3));
+		assertTrue(validate("caf\u00e9 \u20ac \ud83d\ude00 and some more ascii".getBytes(UTF8), 1));
+		assertTrue(validate(new byte[0], 1));
+	}
+	
+	public void testCharacterSplitOverChunks() {
+		byte [] bytes = "\ud83d\ude00\ud83d\ude00".getBytes(UTF8);
+		assertTrue(validate(bytes, 1));
+		assertTrue(validate(bytes, 3));
+		
+		// ending in the middle of a character is not complete
+		Utf8Validator validator = new Utf8Validator();
+		assertTrue(validator.validate(bytes, 0, 2));
+		assertFalse(validator.isComplete());
+		assertTrue(validator.validate(bytes, 2, 2));
+		assertTrue(validator.isComplete());
+	}
+	
+	public void testInvalid() {
+		// lone continuation byte
+		assertFalse(validate(new byte[] { 'a', (byte) 0x80 }, 1));
+		// overlong encoding of '/'
+		assertFalse(validate(new byte[] { (byte) 0xC0, (byte) 0xAF }, 1));
+		// utf-16 surrogate U+D800
+		assertFalse(validate(new byte[] { (byte) 0xED, (byte) 0xA0, (byte) 0x80 }, 1));
+		// beyond U+10FFFF
+		assertFalse(validate(new byte[] { (byte) 0xF4, (byte) 0x90, (byte) 0x80, (byte) 0x80 }, 2));
+		// non-ascii hidden in the middle of a long ascii run
+		assertFalse(validate("0123456789\u00ff0123456789".getBytes(Charset.forName("ISO-8859-1")), 20));
+	}
+	
+	private boolean validate(byte [] bytes, int chunkSize) {
+		Utf8Validator validator = new Utf8Validator();
+		for (int i = 0; i < bytes.length; i += chunkSize) {
+			validator.validate(bytes, i, Math.min(chunkSize, bytes.length - i));
+		}
+		return validator.isComplete();
+	}
+}
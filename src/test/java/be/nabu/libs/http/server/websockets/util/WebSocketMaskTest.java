@@ -0,0 +1,55 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.server.websockets.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class WebSocketMaskTest extends TestCase {
+	
+	public void testMaskInChunks() {
+		Random random = new Random();
+		for (int test = 0; test < 1000; test++) {
+			int length = random.nextInt(100);
+			int offset = random.nextInt(7);
+			byte [] data = new byte[length + offset];
+			random.nextBytes(data);
+			byte [] key = new byte[4];
+			random.nextBytes(key);
+			
+			// the byte-per-byte reference implementation
+			byte [] expected = data.clone();
+			for (int i = 0; i < length; i++) {
+				expected[offset + i] ^= key[i % 4];
+			}
+			
+			// apply it in random chunks, as it would come off the network
+			long position = 0;
+			int done = 0;
+			while (done < length) {
+				int chunk = Math.min(length - done, 1 + random.nextInt(20));
+				position = WebSocketMask.apply(data, offset + done, chunk, WebSocketMask.toInt(key), position);
+				done += chunk;
+			}
+			assertTrue(Arrays.equals(expected, data));
+		}
+	}
+	
+}